@@ -0,0 +1,185 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains benchmarks for the sampled audio engine, using the drum samples that come with the  */
+/* application:                                                                                           */
+/*   playHandOff  - SampledAudio.play() handing a sound to an output that does nothing                    */
+/*   mixerPlay    - SampledAudio.play() handing a sound to the mixer, followed by one period of mixing    */
+/*   mixerRender  - one period of mixing with the given number of voices playing                          */
+/*   scaleChunk   - scaling a chunk of samples by a velocity gain, as the data line handlers do           */
+/*   mixChunk     - adding a period of each of the given number of samples into a mix                     */
+/*   fadeChunk    - adding a period of each of the given number of samples into a mix while fading out    */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.audiogenerator.sampled;
+
+import java.io.BufferedInputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SampledAudioBenchmark {
+
+	private final static String [] FILES = {
+		"CyCdh_K3Crash-02-16.wav",
+		"CyCdh_K3HfHat-16.wav",
+		"CyCdh_K3Tom-01-16.wav",
+		"CyCdh_K3Tom-04-16.wav",
+		"CyCdh_K3SdSt-07-16.wav",
+		"CyCdh_K3Kick-01-16.wav"
+	};
+
+	// How many periods the mixer renders before the voices are started again, which is less than the
+	// shortest sample, so the requested number of voices is always playing
+	private final static int RESTART_PERIODS = 100;
+
+	@Param({"1", "6", "16"})
+	public int voices;
+
+	private AudioFormat m_Format;
+	private ByteBuffer [] m_Samples;
+	private int [] m_Mix;
+	private byte [] m_Scaled;
+	private int m_Position;
+
+	private SampledAudio [] m_HandOffAudio;
+	private AudioMixer m_Mixer;
+	private SampledAudio [] m_MixerAudio;
+	private int m_Index;
+	private int m_Periods;
+
+	@Setup
+	public void setUp() throws Exception {
+		AudioInputStream audioStream = AudioSystem.getAudioInputStream(new BufferedInputStream(SampledAudioBenchmark.class.getResourceAsStream("/" + FILES[0])));
+		m_Format = audioStream.getFormat();
+		audioStream.close();
+
+		// One layer and one variant of each sample, as the benchmarks are about moving the audio, not
+		// choosing it
+		SampleBank bank = new SampleBank(m_Format);
+		for (int i=0; i<FILES.length; i++) {
+			bank.add(bank.decode(FILES[i]));
+		}
+		bank.build();
+		m_Samples = new ByteBuffer [FILES.length];
+		for (int i=0; i<FILES.length; i++) {
+			m_Samples[i] = bank.getSample(i);
+		}
+
+		VelocityCurve velocityCurve = new VelocityCurve();
+		m_Mixer = new AudioMixer(m_Format, velocityCurve, false);
+		m_Mix = new int [m_Mixer.render().length / 2];
+		m_Scaled = new byte [m_Mix.length * 2];
+
+		IAudioOutput nullOutput = new IAudioOutput() {
+			private IDataLineHandler m_Handler = new IDataLineHandler() {
+				public int play(ByteBuffer p_Data, int p_Volume, int p_Note) {
+					return 0;
+				}
+				public boolean stop(int p_Ticket) {
+					return false;
+				}
+			};
+			public IDataLineHandler getHandler() {
+				return m_Handler;
+			}
+		};
+
+		m_HandOffAudio = new SampledAudio [FILES.length];
+		m_MixerAudio = new SampledAudio [voices];
+		for (int i=0; i<FILES.length; i++) {
+			m_HandOffAudio[i] = new SampledAudio(i, new ByteBuffer [][] {{m_Samples[i]}}, nullOutput, 1);
+		}
+		for (int i=0; i<voices; i++) {
+			m_MixerAudio[i] = new SampledAudio(i, new ByteBuffer [][] {{m_Samples[i % FILES.length]}}, m_Mixer, 1);
+		}
+	}
+
+	@Benchmark
+	public void playHandOff() {
+		m_Index = (m_Index + 1) % m_HandOffAudio.length;
+		m_HandOffAudio[m_Index].play(100);
+	}
+
+	@Benchmark
+	public byte [] mixerPlay() {
+		m_Index = (m_Index + 1) % m_MixerAudio.length;
+		m_MixerAudio[m_Index].play(100);
+		return m_Mixer.render();
+	}
+
+	@Benchmark
+	public byte [] mixerRender() {
+		if (m_Periods % RESTART_PERIODS == 0) {
+			for (SampledAudio audio : m_MixerAudio) {
+				audio.play(100);
+			}
+		}
+		m_Periods++;
+		return m_Mixer.render();
+	}
+
+	@Benchmark
+	public byte [] scaleChunk() {
+		ByteBuffer sample = m_Samples[0];
+		m_Position = m_Position + m_Scaled.length;
+		if (m_Position + m_Scaled.length > sample.limit()) {
+			m_Position = 0;
+		}
+		Pcm16.scale(sample, m_Position, m_Scaled, 0, m_Scaled.length, VelocityCurve.UNITY / 2, m_Format.isBigEndian());
+		return m_Scaled;
+	}
+
+	@Benchmark
+	public int [] mixChunk() {
+		m_Position = m_Position + m_Scaled.length;
+		if (m_Position + m_Scaled.length > m_Samples[5].limit()) {
+			m_Position = 0;
+		}
+		for (int i=0; i<m_Mix.length; i++) {
+			m_Mix[i] = 0;
+		}
+		for (int i=0; i<voices; i++) {
+			Pcm16.mix(m_Samples[i % FILES.length], m_Position, m_Mix, m_Mix.length, VelocityCurve.UNITY / 2);
+		}
+		return m_Mix;
+	}
+
+	@Benchmark
+	public int [] fadeChunk() {
+		m_Position = m_Position + m_Scaled.length;
+		if (m_Position + m_Scaled.length > m_Samples[5].limit()) {
+			m_Position = 0;
+		}
+		for (int i=0; i<m_Mix.length; i++) {
+			m_Mix[i] = 0;
+		}
+		int channels = m_Format.getChannels();
+		for (int i=0; i<voices; i++) {
+			Pcm16.mixRamp(m_Samples[i % FILES.length], m_Position, m_Mix, m_Mix.length / channels, channels, VelocityCurve.UNITY / 2, 0);
+		}
+		return m_Mix;
+	}
+}
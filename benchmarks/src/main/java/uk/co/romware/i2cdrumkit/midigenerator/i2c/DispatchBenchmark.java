@@ -0,0 +1,72 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains benchmarks for passing a strike from the polling thread to a number of listeners.   */
+/* informListeners() is what I2CHandler does, putting the note into each listener's ring.  callListeners  */
+/* is the old way, calling each listener directly, for comparison.  The listeners do nothing, so this     */
+/* measures the cost to the polling thread only                                                           */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.midigenerator.i2c;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.co.romware.i2cdrumkit.midigenerator.IMidiGenerator.IMidiGeneratorListener;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+	@Param({"1", "2", "4"})
+	public int listeners;
+
+	private I2CHandler m_Handler;
+	private IMidiGeneratorListener [] m_Listeners;
+	private int m_Strike;
+
+	@Setup
+	public void setUp() throws Exception {
+		m_Handler = new I2CHandler(new SimulatedI2CBus());
+		m_Listeners = new IMidiGeneratorListener [listeners];
+		for (int i=0; i<listeners; i++) {
+			m_Listeners[i] = new IMidiGeneratorListener() {
+				public void noteOn(int p_Note, int p_Velocity) {
+				}
+			};
+			m_Handler.addListener(m_Listeners[i]);
+		}
+
+		byte [] report = new byte [I2CBus.REPORT_SIZE];
+		DrumData.encode(DrumData.ControlType.RED, 2, report);
+		m_Strike = DrumData.decode(report[2], report[3]);
+	}
+
+	@Benchmark
+	public void informListeners() {
+		m_Handler.informListeners(m_Strike, System.nanoTime());
+	}
+
+	@Benchmark
+	public void callListeners() {
+		for (IMidiGeneratorListener listener : m_Listeners) {
+			listener.noteOn(38, 84);
+		}
+	}
+}
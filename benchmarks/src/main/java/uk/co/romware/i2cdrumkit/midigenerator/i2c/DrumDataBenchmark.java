@@ -0,0 +1,66 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains benchmarks for turning the 6 byte reports from the drums into strikes, both the     */
+/* packed int decode and the DrumOperation adapter.  One report in eight contains a strike, which is      */
+/* far more than the real drums produce, so the strike path is well exercised                             */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.midigenerator.i2c;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DrumDataBenchmark {
+
+	private final static int REPORTS = 64;
+
+	private byte [][] m_Reports = new byte [REPORTS][I2CBus.REPORT_SIZE];
+	private int m_Index;
+
+	@Setup
+	public void setUp() {
+		DrumData.ControlType [] pads = DrumData.ControlType.values();
+		for (int i=0; i<REPORTS; i++) {
+			if (i % 8 == 0) {
+				DrumData.encode(pads[(i / 8) % pads.length], i % 7, m_Reports[i]);
+			} else {
+				DrumData.encodeIdle(m_Reports[i]);
+			}
+		}
+	}
+
+	private byte [] nextReport() {
+		m_Index = (m_Index + 1) & (REPORTS - 1);
+		return m_Reports[m_Index];
+	}
+
+	@Benchmark
+	public Object getDrumOperation() {
+		byte [] report = nextReport();
+		return DrumData.getDrumOperation(report[0], report[1], report[2], report[3], report[4], report[5]);
+	}
+
+	@Benchmark
+	public int decode() {
+		byte [] report = nextReport();
+		return DrumData.decode(report[2], report[3]);
+	}
+}
@@ -0,0 +1,2 @@
+
+cd ../benchmarks && java -jar target/benchmarks.jar -rf json -rff results-$(hostname).json "$@"
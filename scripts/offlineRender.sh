@@ -0,0 +1,2 @@
+
+java -Dlog4j.configurationFile=../conf/log4j.xml -cp ../build/I2CDrumKit_0_1.jar uk.co.romware.i2cdrumkit.tools.OfflineRender "$@"
\ No newline at end of file
@@ -1,2 +1,2 @@
 
-java -agentlib:hprof=cpu=samples -Dlog4j.configurationFile=../conf/log4j.xml -jar ../build/I2CDrumKit_0_1.jar 
+java -XX:StartFlightRecording=filename=I2CDrumKit.jfr,settings=profile -Dlog4j.configurationFile=../conf/log4j.xml -jar ../build/I2CDrumKit_0_1.jar 
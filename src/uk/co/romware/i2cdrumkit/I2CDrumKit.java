@@ -5,6 +5,16 @@
 /* This file contains the start point for the application to read drum signals from the I2C interface     */
 /* and generate appropriate sounds.                                                                       */
 /*                                                                                                        */
+/* The system property audioGenerator chooses what is done with the notes: "sampled" (the default) plays  */
+/* them with SampledAudioGenerator, "midi" with the Java MIDI synthesizer, "server" sends them to any     */
+/* clients connected to ServerAudioGenerator, "udp" sends them as datagrams with UdpAudioGenerator and    */
+/* "rtpmidi" sends them to a DAW or soft synth with RtpMidiAudioGenerator                                 */
+/*                                                                                                        */
+/* The system property kitFile names a kit file (see KitDefinition), which changes the note each pad      */
+/* plays and the sample each note plays, and is watched so the kit can be changed while it is played      */
+/*                                                                                                        */
+/* The system property sessionFile names a file every note played is recorded to (see SessionJournal)     */
+/*                                                                                                        */
 /* Use at your own risk                                                                                   */
 /*                                                                                                        */
 /**********************************************************************************************************/
@@ -12,14 +22,23 @@ package uk.co.romware.i2cdrumkit;
 
 
 
+import java.io.File;
+import java.io.IOException;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import uk.co.romware.i2cdrumkit.audiogenerator.IAudioGenerator;
+import uk.co.romware.i2cdrumkit.audiogenerator.midi.MidiAudioGenerator;
+import uk.co.romware.i2cdrumkit.audiogenerator.rtpmidi.RtpMidiAudioGenerator;
 import uk.co.romware.i2cdrumkit.audiogenerator.sampled.SampledAudioGenerator;
+import uk.co.romware.i2cdrumkit.audiogenerator.server.ServerAudioGenerator;
+import uk.co.romware.i2cdrumkit.audiogenerator.udp.UdpAudioGenerator;
+import uk.co.romware.i2cdrumkit.kit.KitWatcher;
 import uk.co.romware.i2cdrumkit.midigenerator.IMidiGenerator;
 import uk.co.romware.i2cdrumkit.midigenerator.IMidiGenerator.IMidiGeneratorListener;
 import uk.co.romware.i2cdrumkit.midigenerator.i2c.I2CHandler;
+import uk.co.romware.i2cdrumkit.session.SessionJournal;
 
 
 
@@ -30,26 +49,63 @@ public class I2CDrumKit {
 	public static void main(String[] args) throws Exception {
 		LOGGER.info("Starting");
 
-		//IAudioGenerator gen = new MidiAudioGenerator();
-		//IAudioGenerator gen = new ServerAudioGenerator();
-		
 		// This takes MIDI noteOn commands and generates audio  
-		IAudioGenerator audioGen = new SampledAudioGenerator();
+		IAudioGenerator audioGen = createAudioGenerator(System.getProperty("audioGenerator", "sampled"));
 		
 		
 		// This gets WII Drum signals via I2C and generates MIDI "note on" commands
-		IMidiGenerator midiGen = I2CHandler.getInstance();
-		midiGen.addListener(new IMidiGeneratorListener() {
+		I2CHandler midiGen = I2CHandler.getInstance();
+		midiGen.addAudioListener(new IMidiGeneratorListener() {
 			@Override
 			public void noteOn(int p_Note, int p_Velocity) {
 				audioGen.playNote(p_Note, p_Velocity);
 			}			
 		});
+		watchKit(midiGen, audioGen);
+		recordSession(midiGen);
 		midiGen.start();
 
 		
 		LOGGER.info("Started");
 	}
+	
+	// If the system property kitFile is set, the kit it describes is used and watched for changes
+	public static void watchKit(I2CHandler p_MidiGen, IAudioGenerator p_AudioGen) throws IOException {
+		String kitFile = System.getProperty("kitFile");
+		if (kitFile == null) {
+			return;
+		}
+		KitWatcher watcher = new KitWatcher(new File(kitFile));
+		watcher.addListener(p_MidiGen);
+		if (p_AudioGen instanceof KitWatcher.IKitListener) {
+			watcher.addListener((KitWatcher.IKitListener)p_AudioGen);
+		}
+		watcher.start();
+	}
+	
+	// If the system property sessionFile is set, every note is recorded to it
+	public static void recordSession(IMidiGenerator p_MidiGen) throws IOException {
+		File file = SessionJournal.getFile("sessionFile");
+		if (file != null) {
+			p_MidiGen.addListener(new SessionJournal(file));
+		}
+	}
+	
+	public static IAudioGenerator createAudioGenerator(String p_Type) throws Exception {
+		if ("midi".equals(p_Type)) {
+			return new MidiAudioGenerator();
+		}
+		if ("server".equals(p_Type)) {
+			return new ServerAudioGenerator();
+		}
+		if ("udp".equals(p_Type)) {
+			return new UdpAudioGenerator();
+		}
+		if ("rtpmidi".equals(p_Type)) {
+			return new RtpMidiAudioGenerator();
+		}
+		return new SampledAudioGenerator();
+	}
 		
 
 }
@@ -11,29 +11,47 @@
 /* directory on the java implementation.  This produced a good quality sound, but there was a significant */
 /* lag between requesting the sound and it being output.                                                  */
 /*                                                                                                        */
+/* Setting the system property soundFont to a SoundFont 2 file avoids the Java synthesizer altogether.    */
+/* Only the drum kit is read from the file, by SoundFont, and its notes are played through the sampled    */
+/* output by a SampledAudioGenerator, which with sampledOutput=mixer mixes a small block at a time.  This */
+/* gives the same General MIDI drums with far less memory, startup time and lag                           */
+/*                                                                                                        */
 /* Use at your own risk                                                                                   */
 /*                                                                                                        */
 /**********************************************************************************************************/
 package uk.co.romware.i2cdrumkit.audiogenerator.midi;
 
+import java.io.IOException;
+
 import javax.sound.midi.MidiChannel;
 import javax.sound.midi.MidiDevice;
 import javax.sound.midi.MidiSystem;
 import javax.sound.midi.MidiUnavailableException;
 import javax.sound.midi.Synthesizer;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.UnsupportedAudioFileException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import uk.co.romware.i2cdrumkit.audiogenerator.IAudioGenerator;
+import uk.co.romware.i2cdrumkit.audiogenerator.sampled.SampledAudioGenerator;
 
 public class MidiAudioGenerator implements IAudioGenerator {
 
 	private final static Logger LOGGER = LoggerFactory.getLogger(MidiAudioGenerator.class);
 
 	private MidiChannel m_Channel;
+	// Set instead of the channel if the drums come from a SoundFont
+	private IAudioGenerator m_SoundFontDrums;
 	
-	public MidiAudioGenerator() throws MidiUnavailableException {
+	public MidiAudioGenerator() throws MidiUnavailableException, UnsupportedAudioFileException, IOException, LineUnavailableException {
+		if (System.getProperty("soundFont") != null) {
+			LOGGER.info("Playing the drums from " + System.getProperty("soundFont") + " without the MIDI synthesizer");
+			m_SoundFontDrums = new SampledAudioGenerator();
+			return;
+		}
+
 		LOGGER.info("Setting up MIDI");
 		Synthesizer synth = null;
 		for (MidiDevice.Info info:  MidiSystem.getMidiDeviceInfo()) {
@@ -55,10 +73,18 @@ public class MidiAudioGenerator implements IAudioGenerator {
 	}
 	
 	public void playNote (int p_Note, int p_Velocity) {
+		if (m_SoundFontDrums != null) {
+			m_SoundFontDrums.playNote(p_Note, p_Velocity);
+			return;
+		}
 		m_Channel.noteOn(p_Note, p_Velocity);
 	}
 	
 	public void stopNote (int p_Note) {
+		if (m_SoundFontDrums != null) {
+			m_SoundFontDrums.stopNote(p_Note);
+			return;
+		}
 		m_Channel.noteOff(p_Note);
 	}
 	
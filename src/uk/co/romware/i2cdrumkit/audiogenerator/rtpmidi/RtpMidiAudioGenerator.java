@@ -0,0 +1,489 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains a class that sends the notes as standard MIDI messages over RTP-MIDI (RFC 6295),    */
+/* using the AppleMIDI session protocol, so that any DAW or soft synth on the network that supports       */
+/* network MIDI (macOS Audio MIDI Setup, rtpMIDI on Windows, etc.) can play the drums, without a custom   */
+/* client like the one ServerAudioGenerator needs.                                                        */
+/*                                                                                                        */
+/* This end only answers sessions: add the Raspberry PI's address and rtpPort to the other machine's      */
+/* session directory and connect from there.  The session protocol runs on rtpPort (the control port) and */
+/* the MIDI on rtpPort + 1 (the data port).  Invitations (IN) are accepted, clock synchronisation (CK) is */
+/* answered, and a session ends when the other end says goodbye (BY) or has not been heard from for two   */
+/* minutes.  Any number of sessions can be open at once.                                                  */
+/*                                                                                                        */
+/* Each hit is sent as a 3 byte Note On, followed rtpNoteOffMillis later by a Note Off, sent as a Note On */
+/* with velocity 0.  The notes are put into a ring and sent by their own thread, which puts every note    */
+/* waiting into one packet, with running status and delta times, so a flam or a burst of hits costs one   */
+/* packet rather than one each.  No recovery journal is sent, so a lost packet loses its notes, which for */
+/* drums is better than them arriving late.                                                               */
+/*                                                                                                        */
+/* It is set up with the system properties:                                                               */
+/*   rtpPort           - the control port; the data port is one higher (default 5004)                     */
+/*   rtpName           - the name shown in the other machine's session list (default I2CDrumKit)          */
+/*   rtpChannel        - the MIDI channel, 1 to 16 (default 10, the General MIDI percussion channel)      */
+/*   rtpNoteOffMillis  - how long after each Note On its Note Off is sent (default 100)                   */
+/*   rtpBatchMicros    - how long to wait after a note for more to put in the same packet (default 0,     */
+/*                       which only batches notes that arrive while the previous packet is being sent)    */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.audiogenerator.rtpmidi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.romware.i2cdrumkit.audiogenerator.IAudioGenerator;
+import uk.co.romware.i2cdrumkit.midigenerator.NoteEventRing;
+import uk.co.romware.i2cdrumkit.midigenerator.NoteEventRing.INoteEventConsumer;
+import uk.co.romware.i2cdrumkit.midigenerator.NoteEventRing.OverflowPolicy;
+import uk.co.romware.i2cdrumkit.threads.ThreadManager;
+import uk.co.romware.i2cdrumkit.threads.ThreadRole;
+
+public class RtpMidiAudioGenerator implements IAudioGenerator {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(RtpMidiAudioGenerator.class);
+
+	public final static int DEFAULT_PORT = 5004;
+
+	// AppleMIDI session commands all start with 0xFFFF and two letters
+	public final static int SIGNATURE = 0xFFFF;
+	public final static int INVITATION = ('I' << 8) | 'N';
+	public final static int ACCEPTED = ('O' << 8) | 'K';
+	public final static int REJECTED = ('N' << 8) | 'O';
+	public final static int SYNC = ('C' << 8) | 'K';
+	public final static int GOODBYE = ('B' << 8) | 'Y';
+	public final static int PROTOCOL_VERSION = 2;
+
+	// The RTP header: version 2 and the payload type AppleMIDI uses for MIDI
+	public final static int RTP_VERSION = 0x80;
+	public final static int RTP_PAYLOAD_TYPE = 0x61;
+	public final static int RTP_HEADER_SIZE = 12;
+	// The flags in the first byte of the MIDI command section
+	public final static int LONG_HEADER = 0x80;
+	public final static int JOURNAL = 0x40;
+	public final static int FIRST_HAS_DELTA = 0x20;
+
+	public final static int NOTE_ON = 0x90;
+
+	// RTP-MIDI timestamps are in units of 100 microseconds
+	private final static long NANOS_PER_TICK = 100000L;
+	private final static long SESSION_TIMEOUT = 120000000000L;
+	private final static int RING_SIZE = 256;
+	// The most commands put into one packet, which keeps the packet well inside one Ethernet frame
+	private final static int MAX_COMMANDS = 64;
+
+	private class Session {
+		private int m_Ssrc;
+		private int m_Token;
+		private String m_Name;
+		private SocketAddress m_ControlAddress;
+		private volatile SocketAddress m_DataAddress;
+		private int m_Sequence;
+		private volatile long m_LastHeard;
+
+		public String toString() {
+			return m_Name + " (" + m_ControlAddress + ")";
+		}
+	}
+
+	private DatagramChannel m_ControlChannel;
+	private DatagramChannel m_DataChannel;
+	private Selector m_Selector;
+	private int m_Ssrc;
+	private byte [] m_Name;
+	private long m_Start = System.nanoTime();
+	private ByteBuffer m_Received = ByteBuffer.allocate(512);
+	private ByteBuffer m_Reply = ByteBuffer.allocate(512);
+	// The array is replaced, rather than changed, when a session starts or ends, so the sending thread can
+	// read it without locking.  Only the session thread replaces it
+	private volatile Session [] m_Sessions = new Session [0];
+
+	private int m_Status;
+	private long m_NoteOffNanos;
+	private long m_BatchNanos;
+	private NoteEventRing m_Ring = new NoteEventRing(RING_SIZE, OverflowPolicy.DROP_OLDEST);
+	private Thread m_SendThread;
+	private volatile boolean m_Waiting;
+
+	// Only used by the sending thread
+	private ByteBuffer m_Packet = ByteBuffer.allocateDirect(RTP_HEADER_SIZE + 2 + MAX_COMMANDS * 7);
+	private ByteBuffer m_Commands = ByteBuffer.allocate(MAX_COMMANDS * 7);
+	private int m_CommandCount;
+	private long m_FirstTime;
+	private long m_LastTime;
+	private boolean [] m_NoteOffPending = new boolean [128];
+	private long [] m_NoteOffTimes = new long [128];
+	private long m_ReportedDropped;
+
+
+	public RtpMidiAudioGenerator() throws IOException {
+		int port = Integer.getInteger("rtpPort", DEFAULT_PORT);
+		m_Name = System.getProperty("rtpName", "I2CDrumKit").getBytes(StandardCharsets.UTF_8);
+		m_Status = NOTE_ON | ((Math.max(1, Math.min(16, Integer.getInteger("rtpChannel", 10))) - 1) & 0x0f);
+		m_NoteOffNanos = Integer.getInteger("rtpNoteOffMillis", 100) * 1000000L;
+		m_BatchNanos = Integer.getInteger("rtpBatchMicros", 0) * 1000L;
+		m_Ssrc = new Random().nextInt();
+
+		m_Selector = Selector.open();
+		m_ControlChannel = DatagramChannel.open();
+		m_ControlChannel.bind(new InetSocketAddress(port));
+		m_ControlChannel.configureBlocking(false);
+		m_ControlChannel.register(m_Selector, SelectionKey.OP_READ);
+		m_DataChannel = DatagramChannel.open();
+		m_DataChannel.bind(new InetSocketAddress(port + 1));
+		m_DataChannel.configureBlocking(false);
+		m_DataChannel.register(m_Selector, SelectionKey.OP_READ);
+		LOGGER.info("Waiting for RTP-MIDI sessions on ports " + port + " and " + (port + 1));
+
+		Thread t = ThreadManager.newThread(ThreadRole.BACKGROUND, "RTP-MIDI Sessions", new Runnable() {
+			public void run() {
+				while (true) {
+					try {
+						handleSessions();
+					} catch (Exception ex) {
+						LOGGER.error("RTP-MIDI session handling failed", ex);
+					}
+				}
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+
+		m_SendThread = ThreadManager.newThread(ThreadRole.NETWORK, "RTP-MIDI Sender", new Runnable() {
+			public void run() {
+				while (true) {
+					try {
+						send();
+					} catch (Exception ex) {
+						LOGGER.error("RTP-MIDI send failed", ex);
+					}
+				}
+			}
+		});
+		m_SendThread.setDaemon(true);
+		m_SendThread.start();
+	}
+
+
+	// Called from the thread playing the notes.  This never blocks
+	@Override
+	public void playNote(int p_Note, int p_Velocity) {
+		m_Ring.offer(p_Note & 0x7f, Math.max(1, Math.min(127, p_Velocity)), System.nanoTime());
+		if (m_Waiting) {
+			LockSupport.unpark(m_SendThread);
+		}
+	}
+
+	public void stopNote (int p_Note) {
+	}
+
+	public int getSessionCount() {
+		return m_Sessions.length;
+	}
+
+
+	/******************************************************************************************************/
+	/* Sending                                                                                            */
+	/******************************************************************************************************/
+
+	private INoteEventConsumer m_Consumer = new INoteEventConsumer() {
+		public void noteEvent(int p_Note, int p_Velocity, long p_NanoTime, long p_Sequence) {
+			// A note struck again before its Note Off has gone gets its Note Off first, so a synth that
+			// counts Note Ons and Note Offs stays in step
+			if (m_NoteOffPending[p_Note]) {
+				m_NoteOffPending[p_Note] = false;
+				addCommand(p_Note, 0, p_NanoTime);
+			}
+			addCommand(p_Note, p_Velocity, p_NanoTime);
+			m_NoteOffPending[p_Note] = true;
+			m_NoteOffTimes[p_Note] = p_NanoTime + m_NoteOffNanos;
+		}
+	};
+
+
+	private void send() throws IOException {
+		long now = System.nanoTime();
+		long nextNoteOff = addDueNoteOffs(now);
+
+		if (m_Ring.isEmpty() && (m_CommandCount == 0)) {
+			// m_Waiting is set before checking the ring one last time, and playNote() checks it after adding
+			// to the ring, so one of them will always see the other
+			m_Waiting = true;
+			if (m_Ring.isEmpty()) {
+				if (nextNoteOff == Long.MAX_VALUE) {
+					LockSupport.park(this);
+				} else {
+					LockSupport.parkNanos(this, nextNoteOff - now);
+				}
+			}
+			m_Waiting = false;
+			return;
+		}
+
+		if ((m_BatchNanos > 0) && !m_Ring.isEmpty()) {
+			LockSupport.parkNanos(m_BatchNanos);
+		}
+		// Each note can add two commands
+		m_Ring.drain(m_Consumer, (MAX_COMMANDS - m_CommandCount) / 2);
+		sendPacket();
+
+		long dropped = m_Ring.getDropped();
+		if (dropped != m_ReportedDropped) {
+			LOGGER.warn((dropped - m_ReportedDropped) + " notes dropped because the network could not keep up (" + dropped + " in total)");
+			m_ReportedDropped = dropped;
+		}
+	}
+
+
+	// Adds the Note Offs that are due.  Returns when the next one is due, or Long.MAX_VALUE if none are
+	private long addDueNoteOffs(long p_Now) {
+		long next = Long.MAX_VALUE;
+		for (int note=0; note<m_NoteOffPending.length; note++) {
+			if (!m_NoteOffPending[note]) {
+				continue;
+			}
+			if (p_Now - m_NoteOffTimes[note] >= 0) {
+				if (m_CommandCount >= MAX_COMMANDS) {
+					return p_Now;
+				}
+				m_NoteOffPending[note] = false;
+				addCommand(note, 0, m_NoteOffTimes[note]);
+			} else if (m_NoteOffTimes[note] < next) {
+				next = m_NoteOffTimes[note];
+			}
+		}
+		return next;
+	}
+
+
+	// Adds a command to the MIDI list.  Every command uses the same status byte, so only the first has one
+	// (running status).  Every command but the first is preceded by the time since the one before
+	private void addCommand(int p_Note, int p_Velocity, long p_Time) {
+		if (m_CommandCount == 0) {
+			m_Commands.clear();
+			m_Commands.put((byte)m_Status);
+			m_FirstTime = p_Time;
+			m_LastTime = p_Time;
+		} else {
+			putDelta(Math.max(0, (p_Time - m_LastTime) / NANOS_PER_TICK));
+			m_LastTime = Math.max(m_LastTime, p_Time);
+		}
+		m_Commands.put((byte)p_Note);
+		m_Commands.put((byte)p_Velocity);
+		m_CommandCount++;
+	}
+
+
+	// Delta times are written 7 bits at a time, most significant first, with the top bit set on all but
+	// the last byte
+	private void putDelta(long p_Ticks) {
+		long ticks = Math.min(p_Ticks, 0x0fffffff);
+		boolean started = false;
+		for (int shift=21; shift>0; shift=shift-7) {
+			int bits = (int)(ticks >> shift) & 0x7f;
+			if (started || (bits != 0)) {
+				m_Commands.put((byte)(0x80 | bits));
+				started = true;
+			}
+		}
+		m_Commands.put((byte)(ticks & 0x7f));
+	}
+
+
+	private void sendPacket() throws IOException {
+		if (m_CommandCount == 0) {
+			return;
+		}
+		m_Commands.flip();
+		int length = m_Commands.remaining();
+		int timestamp = (int)((m_FirstTime - m_Start) / NANOS_PER_TICK);
+
+		for (Session session : m_Sessions) {
+			SocketAddress address = session.m_DataAddress;
+			if (address == null) {
+				continue;
+			}
+			m_Packet.clear();
+			m_Packet.put((byte)RTP_VERSION);
+			m_Packet.put((byte)RTP_PAYLOAD_TYPE);
+			m_Packet.putShort((short)session.m_Sequence++);
+			m_Packet.putInt(timestamp);
+			m_Packet.putInt(m_Ssrc);
+			if (length > 15) {
+				m_Packet.putShort((short)((LONG_HEADER << 8) | length));
+			} else {
+				m_Packet.put((byte)length);
+			}
+			m_Packet.put(m_Commands.duplicate());
+			m_Packet.flip();
+			m_DataChannel.send(m_Packet, address);
+		}
+		m_CommandCount = 0;
+	}
+
+
+	/******************************************************************************************************/
+	/* Sessions                                                                                           */
+	/******************************************************************************************************/
+
+	private void handleSessions() throws IOException {
+		m_Selector.select(5000);
+		for (Iterator<SelectionKey> it = m_Selector.selectedKeys().iterator(); it.hasNext();) {
+			SelectionKey key = it.next();
+			it.remove();
+			DatagramChannel channel = (DatagramChannel)key.channel();
+			SocketAddress from;
+			while (true) {
+				m_Received.clear();
+				from = channel.receive(m_Received);
+				if (from == null) {
+					break;
+				}
+				m_Received.flip();
+				received(channel, from);
+			}
+		}
+
+		long now = System.nanoTime();
+		for (Session session : m_Sessions) {
+			if (now - session.m_LastHeard > SESSION_TIMEOUT) {
+				LOGGER.info("Session with " + session + " timed out");
+				removeSession(session);
+			}
+		}
+	}
+
+
+	private void received(DatagramChannel p_Channel, SocketAddress p_From) throws IOException {
+		if ((m_Received.remaining() < 8) || ((m_Received.getShort(0) & 0xffff) != SIGNATURE)) {
+			// Anything else, e.g. RTP-MIDI from the other end, is ignored
+			return;
+		}
+		int command = m_Received.getShort(2) & 0xffff;
+		boolean control = (p_Channel == m_ControlChannel);
+
+		if ((command == INVITATION) && (m_Received.remaining() >= 16)) {
+			int token = m_Received.getInt(8);
+			int ssrc = m_Received.getInt(12);
+			Session session = findSession(ssrc);
+			if (control) {
+				if (session == null) {
+					session = new Session();
+					session.m_Ssrc = ssrc;
+					session.m_Token = token;
+					session.m_Name = readName(16);
+					session.m_ControlAddress = p_From;
+					addSession(session);
+					LOGGER.info("Session started by " + session);
+				}
+			} else if (session != null) {
+				session.m_DataAddress = p_From;
+			} else {
+				// The data port invitation must follow one on the control port
+				reply(p_Channel, p_From, REJECTED, token);
+				return;
+			}
+			session.m_LastHeard = System.nanoTime();
+			reply(p_Channel, p_From, ACCEPTED, token);
+
+		} else if ((command == SYNC) && (m_Received.remaining() >= 36)) {
+			Session session = findSession(m_Received.getInt(4));
+			if (session != null) {
+				session.m_LastHeard = System.nanoTime();
+			}
+			int count = m_Received.get(8);
+			if (count == 0) {
+				// Reply with the sender's time and ours; the sender works out the offset from the round trip
+				m_Reply.clear();
+				m_Reply.putShort((short)SIGNATURE);
+				m_Reply.putShort((short)SYNC);
+				m_Reply.putInt(m_Ssrc);
+				m_Reply.put((byte)1);
+				m_Reply.put(new byte [3]);
+				m_Reply.putLong(m_Received.getLong(12));
+				m_Reply.putLong((System.nanoTime() - m_Start) / NANOS_PER_TICK);
+				m_Reply.putLong(0);
+				m_Reply.flip();
+				p_Channel.send(m_Reply, p_From);
+			}
+
+		} else if ((command == GOODBYE) && (m_Received.remaining() >= 16)) {
+			Session session = findSession(m_Received.getInt(12));
+			if (session != null) {
+				LOGGER.info("Session ended by " + session);
+				removeSession(session);
+			}
+		}
+	}
+
+
+	private void reply(DatagramChannel p_Channel, SocketAddress p_To, int p_Command, int p_Token) throws IOException {
+		m_Reply.clear();
+		m_Reply.putShort((short)SIGNATURE);
+		m_Reply.putShort((short)p_Command);
+		m_Reply.putInt(PROTOCOL_VERSION);
+		m_Reply.putInt(p_Token);
+		m_Reply.putInt(m_Ssrc);
+		if (p_Command == ACCEPTED) {
+			m_Reply.put(m_Name);
+			m_Reply.put((byte)0);
+		}
+		m_Reply.flip();
+		p_Channel.send(m_Reply, p_To);
+	}
+
+
+	private String readName(int p_Offset) {
+		int end = p_Offset;
+		while ((end < m_Received.limit()) && (m_Received.get(end) != 0)) {
+			end++;
+		}
+		byte [] name = new byte [end - p_Offset];
+		for (int i=0; i<name.length; i++) {
+			name[i] = m_Received.get(p_Offset + i);
+		}
+		return new String(name, StandardCharsets.UTF_8);
+	}
+
+
+	private Session findSession(int p_Ssrc) {
+		for (Session session : m_Sessions) {
+			if (session.m_Ssrc == p_Ssrc) {
+				return session;
+			}
+		}
+		return null;
+	}
+
+	private void addSession(Session p_Session) {
+		Session [] sessions = Arrays.copyOf(m_Sessions, m_Sessions.length + 1);
+		sessions[m_Sessions.length] = p_Session;
+		m_Sessions = sessions;
+	}
+
+	private void removeSession(Session p_Session) {
+		Session [] sessions = new Session [m_Sessions.length];
+		int count = 0;
+		for (Session session : m_Sessions) {
+			if (session != p_Session) {
+				sessions[count++] = session;
+			}
+		}
+		m_Sessions = Arrays.copyOf(sessions, count);
+	}
+
+}
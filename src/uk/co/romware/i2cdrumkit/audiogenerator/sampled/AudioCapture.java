@@ -0,0 +1,154 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains a class that records the audio the mixer plays to a WAV file, without the mixer     */
+/* thread ever waiting for the disk.  The mixer thread copies each period into a ring of memory and       */
+/* carries on, and a background thread takes the audio out of the ring and writes it to the file          */
+/* (through WavFileSink) WRITE_SIZE bytes at a time, so the file is written in a few large writes that    */
+/* start on page boundaries rather than a small write every few milliseconds.                             */
+/*                                                                                                        */
+/* If the disk falls so far behind that the ring fills up, the periods that do not fit are left out of    */
+/* the file rather than holding up the mixer, and how much was left out is logged.                        */
+/*                                                                                                        */
+/* It is set up with the system properties:                                                               */
+/*   sessionAudioFile     - the WAV file, where %t is replaced as for sessionFile (see SessionJournal)    */
+/*   sessionAudioSeconds  - how many seconds of audio the ring holds (default 10)                         */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.audiogenerator.sampled;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.romware.i2cdrumkit.session.SessionJournal;
+import uk.co.romware.i2cdrumkit.threads.ThreadManager;
+import uk.co.romware.i2cdrumkit.threads.ThreadRole;
+
+class AudioCapture {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(AudioCapture.class);
+
+	private final static int DEFAULT_SECONDS = 10;
+	private final static int WRITE_SIZE = 64 * 1024;
+	private final static long WAIT_NANOS = 50000000L;
+
+	private WavFileSink m_Sink;
+	private byte [] m_Ring;
+	private int m_Mask;
+	// The total bytes put into and taken out of the ring.  Each is only changed by one thread
+	private AtomicLong m_Captured = new AtomicLong();
+	private volatile long m_Written;
+	private AtomicLong m_Dropped = new AtomicLong();
+	private volatile boolean m_Closing;
+	private Thread m_Thread;
+
+
+	// Returns a capture for the file named by sessionAudioFile, or null if it is not set or cannot be
+	// created, in which case the audio is played without being recorded
+	static AudioCapture create(AudioFormat p_Format) {
+		File file = SessionJournal.getFile("sessionAudioFile");
+		if (file == null) {
+			return null;
+		}
+		try {
+			return new AudioCapture(file, p_Format);
+		} catch (IOException ex) {
+			LOGGER.error("Failed to create " + file + ", the audio will not be recorded", ex);
+			return null;
+		}
+	}
+
+
+	private AudioCapture(File p_File, AudioFormat p_Format) throws IOException {
+		if (p_File.getAbsoluteFile().getParentFile() != null) {
+			p_File.getAbsoluteFile().getParentFile().mkdirs();
+		}
+		m_Sink = new WavFileSink(p_File, p_Format);
+		int bytes = (int)Math.min(1 << 30, (long)(p_Format.getFrameRate() * p_Format.getFrameSize() * Integer.getInteger("sessionAudioSeconds", DEFAULT_SECONDS)));
+		int size = Math.max(WRITE_SIZE * 2, Integer.highestOneBit(Math.max(1, bytes - 1)) << 1);
+		m_Ring = new byte [size];
+		m_Mask = size - 1;
+		LOGGER.info("Recording the audio to " + p_File + " through a buffer of " + (size / 1024) + "KB");
+
+		m_Thread = ThreadManager.newThread(ThreadRole.BACKGROUND, "Audio Capture", new Runnable() {
+			public void run() {
+				writeAudio();
+			}
+		});
+		m_Thread.setDaemon(true);
+		m_Thread.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				m_Closing = true;
+				LockSupport.unpark(m_Thread);
+				try {
+					m_Thread.join(5000);
+				} catch (InterruptedException ex) {
+				}
+			}
+		}, "Audio Capture Shutdown"));
+	}
+
+
+	// Called from the mixer thread.  This never blocks
+	void capture(byte [] p_Audio, int p_Length) {
+		long captured = m_Captured.get();
+		if (captured + p_Length - m_Written > m_Ring.length) {
+			m_Dropped.addAndGet(p_Length);
+			return;
+		}
+		int start = (int)captured & m_Mask;
+		int first = Math.min(p_Length, m_Ring.length - start);
+		System.arraycopy(p_Audio, 0, m_Ring, start, first);
+		System.arraycopy(p_Audio, first, m_Ring, 0, p_Length - first);
+		m_Captured.lazySet(captured + p_Length);
+	}
+
+
+	private void writeAudio() {
+		byte [] block = new byte [WRITE_SIZE];
+		long reportedDropped = 0;
+		try {
+			while (true) {
+				long waiting = m_Captured.get() - m_Written;
+				boolean closing = m_Closing;
+				if ((waiting >= WRITE_SIZE) || (closing && (waiting > 0))) {
+					int length = (int)Math.min(waiting, WRITE_SIZE);
+					int start = (int)m_Written & m_Mask;
+					int first = Math.min(length, m_Ring.length - start);
+					System.arraycopy(m_Ring, start, block, 0, first);
+					System.arraycopy(m_Ring, 0, block, first, length - first);
+					m_Written = m_Written + length;
+					m_Sink.write(block, 0, length);
+					continue;
+				}
+				if (closing) {
+					break;
+				}
+				long dropped = m_Dropped.get();
+				if (dropped != reportedDropped) {
+					LOGGER.warn("The disk could not keep up, " + (dropped - reportedDropped) + " bytes of audio were not recorded (" + dropped + " in total)");
+					reportedDropped = dropped;
+				}
+				LockSupport.parkNanos(WAIT_NANOS);
+			}
+		} catch (IOException ex) {
+			LOGGER.error("Failed to write the audio, recording stopped", ex);
+		} finally {
+			try {
+				m_Sink.close();
+			} catch (IOException ex) {
+				LOGGER.error("Failed to finish the audio file", ex);
+			}
+		}
+	}
+}
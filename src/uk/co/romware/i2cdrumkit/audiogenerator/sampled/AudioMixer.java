@@ -0,0 +1,356 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains a software mixer, which is an alternative to the pool of data lines.  Rather than   */
+/* giving each sound its own SourceDataLine (of which the Raspberry PI only supports 7), a single line is */
+/* opened and one thread adds together all of the sounds that are currently playing, a few milliseconds   */
+/* at a time, and writes the result to the line.  The number of sounds that can play at once is then      */
+/* only limited by the number of voices created here, and starting or stopping a sound never touches the  */
+/* line's controls                                                                                        */
+/*                                                                                                        */
+/* A sound that is stopped, e.g. because another hit of the same drum needs its voice, is faded out over  */
+/* mixerFadeMillis (default 5, 0 cuts it off) instead of being cut off with a click                       */
+/*                                                                                                        */
+/* If every voice is busy a new sound is dropped.  The drops are only counted, and traced by              */
+/* SampledAudio, as logging them would hold up the strike just when the kit is busiest.  The count and    */
+/* the voices in use are published through JMX as uk.co.romware.i2cdrumkit:type=Mixer                     */
+/*                                                                                                        */
+/* A mixer can also be created without a line, for rendering offline (see OfflineRenderer), where the     */
+/* caller renders as many frames at a time as it likes, so that a sound can start on any frame, and can   */
+/* skip frames, which moves the voices on exactly as rendering them would without mixing anything         */
+/*                                                                                                        */
+/* A BackingTrack can be streamed from the disk and mixed in with the voices                              */
+/*                                                                                                        */
+/* Setting sessionAudioFile records everything the mixer plays to a WAV file (see AudioCapture)           */
+/*                                                                                                        */
+/* Only 16 bit signed PCM audio is supported                                                              */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.audiogenerator.sampled;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.romware.i2cdrumkit.metrics.LatencyStats;
+import uk.co.romware.i2cdrumkit.threads.ThreadManager;
+import uk.co.romware.i2cdrumkit.threads.ThreadRole;
+
+public class AudioMixer implements IAudioOutput, AudioMixerMBean {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(AudioMixer.class);
+
+	private final static int DEFAULT_VOICES = 32;
+	private final static int DEFAULT_PERIOD_MILLISECONDS = 5;
+	private final static int DEFAULT_BUFFER_PERIODS = 4;
+	private final static int DEFAULT_FADE_MILLISECONDS = 5;
+
+	private final static int FREE = 0;
+	private final static int CLAIMED = 1;
+	private final static int PLAYING = 2;
+
+	/******************************************************************************************************/
+	/*                                                                                                    */
+	/* A voice is one sound being played by the mixer.  The voices are all created up front and are       */
+	/* claimed by whichever thread wants to play a sound.  Once a voice is playing, only the mixer thread */
+	/* touches it, until it has finished or been told to stop, when it is made free again                 */
+	/*                                                                                                    */
+	/******************************************************************************************************/
+	private class Voice implements IDataLineHandler {
+
+		private AtomicInteger m_State = new AtomicInteger(FREE);
+		private ByteBuffer m_Data;
+		private int m_Position;
+		private int m_FadeLeft;
+		private int m_Gain;
+		private int m_Note;
+		private volatile int m_Ticket;
+		private volatile int m_StopTicket;
+
+		public int play(ByteBuffer p_Data, int p_Volume, int p_Note) {
+			if (m_State.get() != CLAIMED) {
+				throw new RuntimeException("Voice has not been claimed");
+			}
+			m_Data = p_Data;
+			m_Position = 0;
+			m_FadeLeft = -1;
+			m_Gain = m_VelocityCurve.getGain(p_Volume);
+			m_Note = p_Note;
+			m_Ticket++;
+			m_State.set(PLAYING);
+			return m_Ticket;
+		}
+
+		public boolean stop(int p_Ticket) {
+			if ((p_Ticket != m_Ticket) || (m_StopTicket == p_Ticket)) {
+				return false;
+			}
+			m_StopTicket = p_Ticket;
+			return m_State.get() == PLAYING;
+		}
+
+		private boolean claim() {
+			return m_State.compareAndSet(FREE, CLAIMED);
+		}
+
+		// Called from the mixer thread.  Adds the next p_Samples samples of this voice to the mix, from
+		// p_MixPosition, and returns false once there is nothing left to play
+		private boolean mixInto(int [] p_Mix, int p_MixPosition, int p_Samples) {
+			if ((m_StopTicket == m_Ticket) && (m_FadeLeft < 0)) {
+				if ((m_FadeFrames == 0) || (m_Position == 0)) {
+					return false;
+				}
+				m_FadeLeft = m_FadeFrames;
+			}
+
+			if (m_Position == 0) {
+				// The period being mixed is written to the line as soon as the mixing is finished
+				LatencyStats.firstWrite(m_Note);
+			}
+			int samples = Math.min(p_Samples, (m_Data.limit() - m_Position) / 2);
+			if (m_FadeLeft < 0) {
+				Pcm16.mix(m_Data, m_Position, p_Mix, p_MixPosition, samples, m_Gain);
+			} else {
+				int frames = Math.min(samples / m_Channels, m_FadeLeft);
+				int endLeft = m_FadeLeft - frames;
+				Pcm16.mixRamp(m_Data, m_Position, p_Mix, p_MixPosition, frames, m_Channels, (int)(((long)m_Gain * m_FadeLeft) / m_FadeFrames), (int)(((long)m_Gain * endLeft) / m_FadeFrames));
+				m_FadeLeft = endLeft;
+				samples = frames * m_Channels;
+				if (m_FadeLeft == 0) {
+					return false;
+				}
+			}
+			m_Position = m_Position + (samples * 2);
+
+			return m_Position + 1 < m_Data.limit();
+		}
+
+		// The same as mixInto, for p_Frames frames, without mixing anything
+		private boolean skip(long p_Frames) {
+			if ((m_StopTicket == m_Ticket) && (m_FadeLeft < 0)) {
+				if ((m_FadeFrames == 0) || (m_Position == 0)) {
+					return false;
+				}
+				m_FadeLeft = m_FadeFrames;
+			}
+
+			int frames = (int)Math.min(p_Frames, (m_Data.limit() - m_Position) / 2 / m_Channels);
+			if (m_FadeLeft >= 0) {
+				frames = Math.min(frames, m_FadeLeft);
+				m_FadeLeft = m_FadeLeft - frames;
+				if (m_FadeLeft == 0) {
+					return false;
+				}
+			}
+			m_Position = m_Position + (frames * m_Channels * 2);
+
+			return m_Position + 1 < m_Data.limit();
+		}
+
+		private void release() {
+			m_Data = null;
+			m_State.set(FREE);
+		}
+	}
+
+	private Voice [] m_Voices;
+	private SourceDataLine m_Line;
+	private boolean m_BigEndian;
+	private int m_Channels;
+	private int m_FadeFrames;
+	private VelocityCurve m_VelocityCurve;
+	private int m_PeriodFrames;
+	private int [] m_Mix;
+	private byte [] m_Output;
+	private AtomicLong m_DroppedSounds = new AtomicLong();
+	private AudioCapture m_Capture;
+	private volatile Sequencer m_Sequencer;
+	private volatile BackingTrack m_BackingTrack;
+	// The number of frames mixed so far, which is only used by the mixer thread
+	private long m_Frame;
+
+
+	public AudioMixer (AudioFormat p_Format, VelocityCurve p_VelocityCurve) throws LineUnavailableException {
+		this(p_Format, p_VelocityCurve, true);
+	}
+
+
+	// Without a line, nothing is played unless render() is called, which is how the mixing is measured
+	AudioMixer (AudioFormat p_Format, VelocityCurve p_VelocityCurve, boolean p_OpenLine) throws LineUnavailableException {
+		if ((p_Format.getEncoding() != AudioFormat.Encoding.PCM_SIGNED) || (p_Format.getSampleSizeInBits() != 16)) {
+			throw new LineUnavailableException("The mixer only supports 16 bit signed PCM audio, not " + p_Format);
+		}
+		m_BigEndian = p_Format.isBigEndian();
+		m_Channels = p_Format.getChannels();
+		m_VelocityCurve = p_VelocityCurve;
+		m_FadeFrames = (int)((p_Format.getFrameRate() * Integer.getInteger("mixerFadeMillis", DEFAULT_FADE_MILLISECONDS)) / 1000);
+
+		int voices = Integer.getInteger("mixerVoices", DEFAULT_VOICES);
+		int periodMilliseconds = Integer.getInteger("mixerPeriodMillis", DEFAULT_PERIOD_MILLISECONDS);
+		int bufferPeriods = Integer.getInteger("mixerBufferPeriods", DEFAULT_BUFFER_PERIODS);
+
+		int periodFrames = (int)Math.ceil((p_Format.getFrameRate() * periodMilliseconds) / 1000);
+		m_PeriodFrames = periodFrames;
+		m_Mix = new int [periodFrames * p_Format.getChannels()];
+		m_Output = new byte [periodFrames * p_Format.getFrameSize()];
+
+		m_Voices = new Voice [voices];
+		for (int i=0; i<voices; i++) {
+			m_Voices[i] = new Voice();
+		}
+
+		if (!p_OpenLine) {
+			return;
+		}
+
+		m_Line = AudioSystem.getSourceDataLine(p_Format);
+		m_Line.open(p_Format, m_Output.length * bufferPeriods);
+		LOGGER.info("Mixer opened with " + voices + " voices, " + periodFrames + " frames per period and a line buffer of " + m_Line.getBufferSize() + " bytes");
+
+		m_Capture = AudioCapture.create(p_Format);
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("uk.co.romware.i2cdrumkit:type=Mixer"));
+		} catch (Exception ex) {
+			LOGGER.error("Failed to register the mixer", ex);
+		}
+
+		Thread t = ThreadManager.newThread(ThreadRole.AUDIO, "Audio Mixer", new Runnable() {
+			public void run() {
+				m_Line.start();
+				while (true) {
+					render();
+					if (m_Capture != null) {
+						m_Capture.capture(m_Output, m_Output.length);
+					}
+					m_Line.write(m_Output, 0, m_Output.length);
+				}
+			}
+		});
+		t.start();
+	}
+
+
+	// This never blocks.  If every voice is busy, the sound is dropped rather than holding up the caller,
+	// and only counted
+	public IDataLineHandler getHandler() {
+		for (Voice voice : m_Voices) {
+			if (voice.claim()) {
+				return voice;
+			}
+		}
+		m_DroppedSounds.incrementAndGet();
+		return null;
+	}
+
+
+	// The sequencer is called from the mixer thread to play anything due in each period
+	void setSequencer(Sequencer p_Sequencer) {
+		m_Sequencer = p_Sequencer;
+	}
+
+
+	// The backing track is mixed in with the voices
+	void setBackingTrack(BackingTrack p_BackingTrack) {
+		m_BackingTrack = p_BackingTrack;
+	}
+
+
+	public int getVoices() {
+		return m_Voices.length;
+	}
+
+
+	public int getPlayingVoices() {
+		int playing = 0;
+		for (Voice voice : m_Voices) {
+			if (voice.m_State.get() != FREE) {
+				playing++;
+			}
+		}
+		return playing;
+	}
+
+
+	public long getDroppedSounds() {
+		return m_DroppedSounds.get();
+	}
+
+
+	public int getPeriodFrames() {
+		return m_PeriodFrames;
+	}
+
+
+	// Mixes the next period of audio into the output buffer, which is returned
+	byte [] render() {
+		return render(m_PeriodFrames);
+	}
+
+
+	// Mixes the next p_Frames frames of audio, which must be no more than a period, into the start of the
+	// output buffer, which is returned.  The frames are split wherever the sequencer has something to play,
+	// so that it starts on its own frame rather than at the start of the period
+	byte [] render(int p_Frames) {
+		int samples = p_Frames * m_Channels;
+		Arrays.fill(m_Mix, 0, samples, 0);
+		Sequencer sequencer = m_Sequencer;
+		BackingTrack backingTrack = m_BackingTrack;
+		for (int done=0; done<p_Frames; ) {
+			int frames = (sequencer != null) ? sequencer.play(m_Frame, p_Frames - done) : p_Frames - done;
+			for (Voice voice : m_Voices) {
+				if (voice.m_State.get() == PLAYING) {
+					if (!voice.mixInto(m_Mix, done * m_Channels, frames * m_Channels)) {
+						voice.release();
+					}
+				}
+			}
+			if (backingTrack != null) {
+				backingTrack.mixInto(m_Mix, done * m_Channels, frames * m_Channels);
+			}
+			done = done + frames;
+			m_Frame = m_Frame + frames;
+		}
+
+		for (int i=0, pos=0; i<samples; i++, pos+=2) {
+			Pcm16.putSample(m_Output, pos, m_Mix[i], m_BigEndian);
+		}
+		return m_Output;
+	}
+
+
+	// Moves every voice on by p_Frames frames, exactly as rendering them would, without mixing anything
+	void skip(long p_Frames) {
+		m_Frame = m_Frame + p_Frames;
+		for (Voice voice : m_Voices) {
+			if (voice.m_State.get() == PLAYING) {
+				if (!voice.skip(p_Frames)) {
+					voice.release();
+				}
+			}
+		}
+	}
+
+
+	// True if no voice is playing
+	boolean isIdle() {
+		for (Voice voice : m_Voices) {
+			if (voice.m_State.get() != FREE) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,16 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains the JMX interface for the software mixer, which shows how many of its voices are in */
+/* use and how many sounds have been dropped because none were free                                       */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.audiogenerator.sampled;
+
+public interface AudioMixerMBean {
+	public int getVoices();
+	public int getPlayingVoices();
+	public long getDroppedSounds();
+	public int getPeriodFrames();
+}
@@ -0,0 +1,355 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains a class that plays a backing track, e.g. a song to play along with, from an audio   */
+/* file of any length, mixed in with the drums.  Unlike the drum samples, which are loaded whole, the     */
+/* track is streamed: a background thread reads it from the disk READ_SIZE bytes at a time into a small   */
+/* ring of memory, keeping the ring as full as it can, and the mixer thread takes each period from the    */
+/* ring.  So a five minute song takes no more memory than the ring, however long it is.                   */
+/*                                                                                                        */
+/* The mixer never waits for the disk.  If the disk is so slow that the ring runs dry, the track falls    */
+/* silent for as much as is missing (an underrun, which is counted and logged) and the drums carry on     */
+/* exactly as before.  The track keeps time with the drums through an underrun: what was missing is       */
+/* skipped when it arrives, so the track carries on from where it would have been.  The ring is filled    */
+/* before the track starts, so only a disk that stays slower than the audio for longer than the ring      */
+/* lasts can cause an underrun.                                                                           */
+/*                                                                                                        */
+/* How full the ring is, how empty it has been and the underruns are published through JMX as             */
+/* uk.co.romware.i2cdrumkit:type=BackingTrack, which can also pause the track, and logged every           */
+/* backingTrackStatsSeconds.                                                                              */
+/*                                                                                                        */
+/* The file can be in any format Java can read, as long as its sample rate is the same as the output's:   */
+/* the sample size and byte order are converted by Java and the channels are copied or mixed down as the  */
+/* track is read.  It is set up with the system properties:                                               */
+/*   backingTrack              - the file, which needs sampledOutput=mixer                                */
+/*   backingTrackVolume        - the volume, as a percentage (default 70)                                 */
+/*   backingTrackLoop          - true to start the track again when it ends (default false)               */
+/*   backingTrackBufferMillis  - how much of the track the ring holds (default 3000)                      */
+/*   backingTrackStatsSeconds  - how often the state of the ring is logged (default 60, 0 turns it off)   */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.audiogenerator.sampled;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.ObjectName;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.romware.i2cdrumkit.threads.ThreadManager;
+import uk.co.romware.i2cdrumkit.threads.ThreadRole;
+
+public class BackingTrack implements BackingTrackMBean {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(BackingTrack.class);
+
+	private final static int READ_SIZE = 32 * 1024;
+	private final static int DEFAULT_BUFFER_MILLISECONDS = 3000;
+	private final static int DEFAULT_STATS_SECONDS = 60;
+	private final static long WAIT_NANOS = 10000000L;
+
+	private File m_File;
+	private AudioFormat m_Format;
+	private AudioFormat m_ReadFormat;
+	private boolean m_Loop;
+	private int m_Gain;
+	private int m_FrameSize;
+
+	private AudioInputStream m_Stream;
+	private byte [] m_Ring;
+	private ByteBuffer m_RingBuffer;
+	private int m_Mask;
+	// The total bytes put into and taken out of the ring.  Each is only changed by one thread.  After an
+	// underrun m_Played is ahead of m_Filled until the bytes that were missing have been skipped
+	private AtomicLong m_Filled = new AtomicLong();
+	private volatile long m_Played;
+	private volatile boolean m_Started;
+	private volatile boolean m_Ended;
+	private volatile boolean m_Paused;
+
+	// Only changed by the mixer thread, except that the lowest level is reset when it is logged
+	private volatile long m_LowestBuffered = Long.MAX_VALUE;
+	private volatile long m_Underruns;
+	private volatile long m_UnderrunFrames;
+	private boolean m_Underrunning;
+
+
+	BackingTrack(File p_File, AudioFormat p_Format) throws UnsupportedAudioFileException, IOException {
+		this(p_Format, Integer.getInteger("backingTrackBufferMillis", DEFAULT_BUFFER_MILLISECONDS));
+		// The track waits for the reading thread to fill the ring
+		m_Started = false;
+		m_File = p_File;
+		m_Loop = Boolean.getBoolean("backingTrackLoop");
+		m_Stream = open();
+		LOGGER.info("Streaming backing track " + p_File + " (" + m_Stream.getFormat() + ") through a buffer of " + (m_Ring.length / 1024) + "KB, " + toMillis(m_Ring.length) + "ms");
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("uk.co.romware.i2cdrumkit:type=BackingTrack"));
+		} catch (Exception ex) {
+			LOGGER.error("Failed to register the backing track", ex);
+		}
+
+		Thread t = ThreadManager.newThread(ThreadRole.BACKGROUND, "Backing Track", new Runnable() {
+			public void run() {
+				readTrack();
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+	}
+
+
+	// Sets up the ring alone, with nothing reading a track into it, so the track plays whatever is written
+	// to it straight away.  The tests use this to fill the ring themselves
+	BackingTrack(AudioFormat p_Format, int p_BufferMillis) {
+		m_Format = p_Format;
+		m_FrameSize = p_Format.getFrameSize();
+		m_Gain = (int)(((long)VelocityCurve.UNITY * Integer.getInteger("backingTrackVolume", 70)) / 100);
+		m_Started = true;
+
+		long bytes = (long)((p_Format.getFrameRate() * m_FrameSize * p_BufferMillis) / 1000);
+		int size = Math.max(READ_SIZE * 2, Integer.highestOneBit((int)Math.min(1 << 29, Math.max(1, bytes - 1))) << 1);
+		m_Ring = new byte [size];
+		m_RingBuffer = ByteBuffer.wrap(m_Ring).order(p_Format.isBigEndian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+		m_Mask = size - 1;
+	}
+
+
+	// Opens the file, with Java converting it to 16 bit PCM in the output's byte order
+	private AudioInputStream open() throws UnsupportedAudioFileException, IOException {
+		AudioInputStream stream = AudioSystem.getAudioInputStream(m_File);
+		AudioFormat source = stream.getFormat();
+		if (source.getSampleRate() != m_Format.getSampleRate()) {
+			stream.close();
+			throw new UnsupportedAudioFileException(m_File + " is at " + source.getSampleRate() + "Hz, but the output is at " + m_Format.getSampleRate() + "Hz");
+		}
+		m_ReadFormat = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, source.getSampleRate(), 16, source.getChannels(),
+				source.getChannels() * 2, source.getSampleRate(), m_Format.isBigEndian());
+		if (!source.matches(m_ReadFormat)) {
+			if (!AudioSystem.isConversionSupported(m_ReadFormat, source)) {
+				stream.close();
+				throw new UnsupportedAudioFileException("Cannot convert " + m_File + " from " + source);
+			}
+			stream = AudioSystem.getAudioInputStream(m_ReadFormat, stream);
+		}
+		return stream;
+	}
+
+
+	// Runs on the backing track's own thread, keeping the ring as full as it can
+	private void readTrack() {
+		int sourceChannels = m_ReadFormat.getChannels();
+		int channels = m_Format.getChannels();
+		int readFrames = READ_SIZE / (Math.max(sourceChannels * 2, m_FrameSize));
+		byte [] read = new byte [readFrames * sourceChannels * 2];
+		byte [] chunk = new byte [readFrames * m_FrameSize];
+		long statsInterval = Integer.getInteger("backingTrackStatsSeconds", DEFAULT_STATS_SECONDS) * 1000000000L;
+		long nextStats = System.nanoTime() + statsInterval;
+		boolean bigEndian = m_Format.isBigEndian();
+
+		try {
+			while (true) {
+				if ((statsInterval > 0) && (System.nanoTime() - nextStats >= 0)) {
+					LOGGER.info(getStatus());
+					m_LowestBuffered = Long.MAX_VALUE;
+					nextStats = nextStats + statsInterval;
+				}
+				if (m_Ended || (m_Ring.length - getBuffered() < chunk.length)) {
+					// The first time the ring is full the track can start
+					m_Started = true;
+					LockSupport.parkNanos(WAIT_NANOS);
+					continue;
+				}
+
+				int length = readFully(read);
+				if (length <= 0) {
+					m_Stream.close();
+					if (!m_Loop) {
+						m_Ended = true;
+						m_Started = true;
+						LOGGER.info("Finished reading the backing track");
+						continue;
+					}
+					m_Stream = open();
+					continue;
+				}
+
+				int frames = length / (sourceChannels * 2);
+				byte [] frameData = read;
+				if (sourceChannels != channels) {
+					// The channels are copied up to stereo or mixed down to mono
+					for (int frame=0; frame<frames; frame++) {
+						int position = frame * sourceChannels * 2;
+						if (channels == 1) {
+							int sum = 0;
+							for (int channel=0; channel<sourceChannels; channel++) {
+								sum = sum + Pcm16.getSample(read, position + (channel * 2), bigEndian);
+							}
+							Pcm16.putSample(chunk, frame * 2, sum / sourceChannels, bigEndian);
+						} else {
+							for (int channel=0; channel<channels; channel++) {
+								int sample = Pcm16.getSample(read, position + ((channel % sourceChannels) * 2), bigEndian);
+								Pcm16.putSample(chunk, (frame * channels + channel) * 2, sample, bigEndian);
+							}
+						}
+					}
+					frameData = chunk;
+				}
+
+				write(frameData, frames * m_FrameSize);
+			}
+		} catch (IOException | UnsupportedAudioFileException ex) {
+			LOGGER.error("Failed to read the backing track, it has been stopped", ex);
+			m_Ended = true;
+			m_Started = true;
+		}
+	}
+
+
+	// Called from the backing track's thread to put the next p_Bytes bytes of the track into the ring.  Any
+	// that the mixer has already passed, during an underrun, are skipped
+	void write(byte [] p_Data, int p_Bytes) {
+		long filled = m_Filled.get();
+		int skip = (int)Math.max(0, Math.min(p_Bytes, m_Played - filled));
+		int bytes = p_Bytes - skip;
+		int start = (int)(filled + skip) & m_Mask;
+		int first = Math.min(bytes, m_Ring.length - start);
+		System.arraycopy(p_Data, skip, m_Ring, start, first);
+		System.arraycopy(p_Data, skip + first, m_Ring, 0, bytes - first);
+		m_Filled.lazySet(filled + p_Bytes);
+	}
+
+
+	// Reads until p_Data is full or the track ends, so the ring is always filled with whole frames
+	private int readFully(byte [] p_Data) throws IOException {
+		int read = 0;
+		while (read < p_Data.length) {
+			int sz = m_Stream.read(p_Data, read, p_Data.length - read);
+			if (sz == -1) {
+				break;
+			}
+			read = read + sz;
+		}
+		return read;
+	}
+
+
+	// Called from the mixer thread.  Adds the next p_Samples samples of the track to the mix, from
+	// p_MixPosition.  This never waits: whatever is not in the ring yet is left silent, but is still counted
+	// as played, so the track stays in time with the drums
+	void mixInto(int [] p_Mix, int p_MixPosition, int p_Samples) {
+		if (!m_Started || m_Paused) {
+			return;
+		}
+		long played = m_Played;
+		long buffered = getBuffered();
+		if (buffered < m_LowestBuffered) {
+			m_LowestBuffered = buffered;
+		}
+		int bytes = (int)Math.min(buffered, p_Samples * 2);
+		int advance = p_Samples * 2;
+		if (bytes < p_Samples * 2) {
+			if (m_Ended) {
+				// The end of the track, rather than an underrun
+				if (bytes == 0) {
+					return;
+				}
+				advance = bytes;
+			} else {
+				if (!m_Underrunning) {
+					m_Underruns++;
+					m_Underrunning = true;
+				}
+				m_UnderrunFrames = m_UnderrunFrames + ((p_Samples * 2) - bytes) / m_FrameSize;
+			}
+		} else {
+			m_Underrunning = false;
+		}
+		int start = (int)played & m_Mask;
+		int first = Math.min(bytes, m_Ring.length - start);
+		Pcm16.mix(m_RingBuffer, start, p_Mix, p_MixPosition, first / 2, m_Gain);
+		Pcm16.mix(m_RingBuffer, 0, p_Mix, p_MixPosition + (first / 2), (bytes - first) / 2, m_Gain);
+		m_Played = played + advance;
+	}
+
+
+	// How many bytes are in the ring and not yet played.  None while the track is catching up after an
+	// underrun
+	private long getBuffered() {
+		return Math.max(0, m_Filled.get() - m_Played);
+	}
+
+
+	private long toMillis(long p_Bytes) {
+		return (long)((p_Bytes * 1000) / (m_FrameSize * m_Format.getFrameRate()));
+	}
+
+
+	public String getFile() {
+		return m_File.getPath();
+	}
+
+
+	public long getBufferedMillis() {
+		return toMillis(getBuffered());
+	}
+
+
+	public long getBufferMillis() {
+		return toMillis(m_Ring.length);
+	}
+
+
+	public long getLowestBufferedMillis() {
+		long lowest = m_LowestBuffered;
+		return (lowest == Long.MAX_VALUE) ? getBufferedMillis() : toMillis(lowest);
+	}
+
+
+	public long getUnderruns() {
+		return m_Underruns;
+	}
+
+
+	public long getUnderrunMillis() {
+		return (long)((m_UnderrunFrames * 1000) / m_Format.getFrameRate());
+	}
+
+
+	public long getPlayedMillis() {
+		return toMillis(m_Played);
+	}
+
+
+	public boolean isEnded() {
+		return m_Ended && (getBuffered() == 0);
+	}
+
+
+	public boolean isPaused() {
+		return m_Paused;
+	}
+
+
+	public void setPaused(boolean p_Paused) {
+		m_Paused = p_Paused;
+	}
+
+
+	public String getStatus() {
+		return "Backing track at " + (getPlayedMillis() / 1000) + "s, " + getBufferedMillis() + "ms of " + getBufferMillis() + "ms buffered, lowest "
+				+ getLowestBufferedMillis() + "ms, " + getUnderruns() + " underruns (" + getUnderrunMillis() + "ms)" + (isEnded() ? ", ended" : "") + (m_Paused ? ", paused" : "");
+	}
+}
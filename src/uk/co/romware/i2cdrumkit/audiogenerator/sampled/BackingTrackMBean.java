@@ -0,0 +1,23 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains the JMX interface for the backing track, which shows how well the disk is keeping   */
+/* the track's buffer filled.  The lowest level is reset each time it is logged                           */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.audiogenerator.sampled;
+
+public interface BackingTrackMBean {
+	public String getFile();
+	public long getBufferedMillis();
+	public long getBufferMillis();
+	public long getLowestBufferedMillis();
+	public long getUnderruns();
+	public long getUnderrunMillis();
+	public long getPlayedMillis();
+	public boolean isEnded();
+	public boolean isPaused();
+	public void setPaused(boolean p_Paused);
+	public String getStatus();
+}
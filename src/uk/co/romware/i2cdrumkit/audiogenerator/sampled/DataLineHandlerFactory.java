@@ -4,36 +4,38 @@
 /* source data line, but only giving a few milliseconds worth of data at a time, so that if the audio     */
 /* needs to stop, it will happen almost immediately                                                       */
 /*                                                                                                        */
+/* Each line's buffer holds feedPeriods (default 4) periods of feedPeriodMillis (default 5) of audio.     */
+/* The audio is written a period at a time, and the write blocks until the line has room for it, so the   */
+/* line is kept full without polling it.  A stop is checked for between periods and then the line is      */
+/* flushed, so a sound stops within one period.  Stopping only sets a flag, so it never waits for the     */
+/* thread feeding the line                                                                                */
+/*                                                                                                        */
 /* Use at your own risk                                                                                   */
 /*                                                                                                        */
 /**********************************************************************************************************/
 package uk.co.romware.i2cdrumkit.audiogenerator.sampled;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.BooleanControl;
-import javax.sound.sampled.FloatControl;
 import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.SourceDataLine;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
+import uk.co.romware.i2cdrumkit.metrics.LatencyStats;
+import uk.co.romware.i2cdrumkit.metrics.TraceRing;
+import uk.co.romware.i2cdrumkit.threads.ThreadManager;
+import uk.co.romware.i2cdrumkit.threads.ThreadRole;
 
-public class DataLineHandlerFactory {
 
-	private final static Logger LOGGER = LoggerFactory.getLogger(DataLineHandlerFactory.class);
-	private final static int MILLISECONDS_TO_BUFFER = 100;
+public class DataLineHandlerFactory implements IAudioOutput {
 
-	public interface IDataLineHandler {
-
-		public void play(byte [] p_Data, int p_Volume);
-		void stop();
-		
-	}
+	private final static int DEFAULT_PERIOD_MILLIS = 5;
+	private final static int DEFAULT_PERIODS = 4;
 
 	/******************************************************************************************************/
 	/*                                                                                                    */
@@ -45,104 +47,123 @@ public class DataLineHandlerFactory {
 	private class DataLineHandler implements IDataLineHandler {
 		
 		private SourceDataLine m_Line;
-		private byte [] m_CurrentAudio;
-		private int m_CurrentPosition;
-		private Object m_Lock = new Object();
+		private BooleanControl m_Mute;
+		private Thread m_Thread;
+		private byte [] m_Scaled = new byte [m_PeriodBytes];
 		private int m_Index;
+
+		// Set by play before m_Ticket is changed, which hands them to the feeding thread
+		private ByteBuffer m_CurrentAudio;
+		private int m_CurrentGain;
+		private int m_CurrentNote;
+		private volatile int m_Ticket;
+		private volatile int m_StopTicket;
+		private volatile boolean m_Busy;
 	
 		public DataLineHandler(int p_Index) throws LineUnavailableException {
 			m_Index = p_Index;
 			
 			m_Line = AudioSystem.getSourceDataLine(m_Format);
-			m_Line.open();
+			m_Line.open(m_Format, m_PeriodBytes * m_Periods);
+			if (m_Line.isControlSupported(BooleanControl.Type.MUTE)) {
+				m_Mute = (BooleanControl)m_Line.getControl(BooleanControl.Type.MUTE);
+			}
 	
-			Thread t = new Thread(new Runnable() {
+			m_Thread = ThreadManager.newThread(ThreadRole.AUDIO, "Data Line Filler - " + p_Index, new Runnable() {
 				public void run() {
+					int fedTicket = 0;
 					while (true) {
-						synchronized (m_Lock) {
-							try {
-								LOGGER.info("Waiting for audio");
-								m_Lock.wait();
-							} catch (InterruptedException e) {
-								e.printStackTrace();
-							}
-							if (m_CurrentAudio==null) {
-								continue;
-							}
-							LOGGER.info("Got audio");
-							m_CurrentPosition = 0;
-							int written = m_Line.write(m_CurrentAudio, 0, m_BytesToBuffer * 2);
-							m_CurrentPosition = written;
-							m_Line.start();
-							while (m_CurrentPosition < m_CurrentAudio.length) {
-								
-								try {
-									m_Lock.wait(10);
-								} catch (InterruptedException e) {
-									e.printStackTrace();
-								}
-								
-								if (m_CurrentAudio==null) {
-									LOGGER.info("Stopping sending");
-									break;
-								}
-								
-								int pending = m_Line.getBufferSize() - m_Line.available();
-								if (pending<m_BytesToBuffer*2) {
-									int toWrite = (int)Math.min(m_BytesToBuffer, m_CurrentAudio.length-m_CurrentPosition);
-									try {
-										written = m_Line.write(m_CurrentAudio, m_CurrentPosition, toWrite);
-										m_CurrentPosition = m_CurrentPosition + written;
-									} catch (Exception ex) {
-									}
-								}
-							}
-							m_CurrentAudio = null;
-							LOGGER.info("Finished audio");
+						while (m_Ticket == fedTicket) {
+							LockSupport.park(DataLineHandler.this);
 						}
-						m_Line.flush();
+						fedTicket = m_Ticket;
+						feed(fedTicket);
+						m_CurrentAudio = null;
+						m_Busy = false;
 						m_AvailableHandlers.add(DataLineHandler.this);
-						LOGGER.info("Returned DataLineHandler");
 					}
 				}
-			}, "Data Line Filler - " + p_Index);
-			t.start();
+			});
+			m_Thread.start();
 		}
-		
-		public void play(byte [] p_Data, int p_Volume) {
-			synchronized (m_Lock) {
-				LOGGER.info("Handler " + m_Index + ": Play requested");
-				if (m_CurrentAudio != null) {
-					throw new RuntimeException("Already playing");
+
+
+		// Called on the feeding thread to play the current audio, until it ends or p_Ticket is stopped
+		private void feed(int p_Ticket) {
+			ByteBuffer audio = m_CurrentAudio;
+			TraceRing.record(TraceRing.LINE_START, m_CurrentNote, m_Index);
+			setMute(false);
+
+			// The first write fits in the empty buffer.  After that, each write waits for the line to
+			// play a period
+			int position = 0;
+			boolean first = true;
+			while (position < audio.limit()) {
+				if (m_StopTicket == p_Ticket) {
+					stopLine();
+					return;
+				}
+				int length = Math.min(m_PeriodBytes, audio.limit() - position);
+				Pcm16.scale(audio, position, m_Scaled, 0, length, m_CurrentGain, m_Format.isBigEndian());
+				position = position + m_Line.write(m_Scaled, 0, length);
+				if (first) {
+					LatencyStats.firstWrite(m_CurrentNote);
+					m_Line.start();
+					first = false;
 				}
-				m_CurrentAudio = p_Data;
-				BooleanControl mute = (BooleanControl)m_Line.getControl(BooleanControl.Type.MUTE);
-				mute.setValue(false);
-				
-
-				// This does not seem to work to change the volume on Raspberry PI
-			    FloatControl gainControl = (FloatControl) m_Line.getControl(FloatControl.Type.MASTER_GAIN);
-			    float volume = (float)p_Volume/127.0f;
-			    double dB = Math.log(volume) / (Math.log(10) * 20);
-			    gainControl.setValue((float)dB);
-			    
-			    
-				m_Lock.notify();
 			}
-		}
-		
-		public void stop() {
-			synchronized (m_Lock) {
-				LOGGER.info("Handler " + m_Index + ": Stop requested");
-				if (m_CurrentAudio == null) {
+
+			// Let what is left in the buffer play, still checking for a stop each period.  This gives up
+			// after the time the whole buffer takes, in case the line never reports being empty
+			for (int period=0; (period<=m_Periods) && (m_Line.available()<m_Line.getBufferSize()); period++) {
+				if (m_StopTicket == p_Ticket) {
+					stopLine();
 					return;
 				}
-				m_CurrentAudio = null;
-				BooleanControl mute = (BooleanControl)m_Line.getControl(BooleanControl.Type.MUTE);
-				mute.setValue(true);
-				m_Lock.notify();
+				LockSupport.parkNanos(m_PeriodNanos);
 			}
-			
+			TraceRing.record(TraceRing.LINE_FINISHED, m_CurrentNote, m_Index);
+		}
+
+
+		private void stopLine() {
+			setMute(true);
+			m_Line.flush();
+			TraceRing.record(TraceRing.LINE_STOPPED, m_CurrentNote, m_Index);
+		}
+
+
+		private void setMute(boolean p_Mute) {
+			if (m_Mute != null) {
+				m_Mute.setValue(p_Mute);
+			}
+		}
+
+		
+		// The velocity is applied by scaling each period of samples just before it is written, so the
+		// original audio is never changed and nothing is allocated while playing
+		public int play(ByteBuffer p_Data, int p_Volume, int p_Note) {
+			if (m_Busy) {
+				throw new RuntimeException("Already playing");
+			}
+			m_Busy = true;
+			m_CurrentAudio = p_Data;
+			m_CurrentGain = m_VelocityCurve.getGain(p_Volume);
+			m_CurrentNote = p_Note;
+			int ticket = m_Ticket + 1;
+			m_Ticket = ticket;
+			LockSupport.unpark(m_Thread);
+			return ticket;
+		}
+		
+		// The feeding thread sees this before its next period.  A stale ticket, from a hit this pooled
+		// handler has since replaced, is ignored so it cannot overwrite a stop of the current hit
+		public boolean stop(int p_Ticket) {
+			if ((p_Ticket != m_Ticket) || (m_StopTicket == p_Ticket)) {
+				return false;
+			}
+			m_StopTicket = p_Ticket;
+			return m_Busy;
 		}
 	}
 
@@ -150,12 +171,19 @@ public class DataLineHandlerFactory {
 	// only 7 handlers are created
 	private BlockingQueue<DataLineHandler> m_AvailableHandlers = new ArrayBlockingQueue<DataLineHandler>(7);
 	private AudioFormat m_Format;
-	private int m_BytesToBuffer;
+	private int m_PeriodBytes;
+	private long m_PeriodNanos;
+	private int m_Periods;
+	private VelocityCurve m_VelocityCurve;
 	
 	
-	public DataLineHandlerFactory (AudioFormat p_Format) throws LineUnavailableException {
-		float framesToBuffer = (p_Format.getFrameRate() * MILLISECONDS_TO_BUFFER) / 1000;
-		m_BytesToBuffer = (int)Math.ceil(framesToBuffer * p_Format.getFrameSize());
+	public DataLineHandlerFactory (AudioFormat p_Format, VelocityCurve p_VelocityCurve) throws LineUnavailableException {
+		m_VelocityCurve = p_VelocityCurve;
+		int periodMillis = Math.max(1, Integer.getInteger("feedPeriodMillis", DEFAULT_PERIOD_MILLIS));
+		int periodFrames = Math.max(1, (int)((p_Format.getFrameRate() * periodMillis) / 1000));
+		m_PeriodBytes = periodFrames * p_Format.getFrameSize();
+		m_PeriodNanos = periodMillis * 1000000L;
+		m_Periods = Math.max(2, Integer.getInteger("feedPeriods", DEFAULT_PERIODS));
 
 		int idx = 1;
 		m_Format = p_Format;
@@ -0,0 +1,29 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains an interface that represents something that can hand out handlers to play audio     */
+/* data.  It is implemented both by the pool of data lines and by the software mixer                      */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.audiogenerator.sampled;
+
+import java.nio.ByteBuffer;
+
+public interface IAudioOutput {
+
+	public interface IDataLineHandler {
+
+		// Returns a ticket for this particular playback, which must be passed to stop, so that a handler
+		// that has since been reused for another sound is not stopped by mistake.  The data is the whole
+		// of the buffer, from 0 to its limit, which is only read with absolute gets so it can be shared.
+		// The note is only used for the latency statistics
+		public int play(ByteBuffer p_Data, int p_Volume, int p_Note);
+		// Stops the sound as soon as possible, fading it out if the output supports it.  Returns true if
+		// the ticket's sound was still playing, and had not already been stopped
+		public boolean stop(int p_Ticket);
+		
+	}
+
+	public IDataLineHandler getHandler();
+}
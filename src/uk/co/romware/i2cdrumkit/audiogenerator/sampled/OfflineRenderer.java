@@ -0,0 +1,234 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains a class that renders a list of hits, each at a given time, through the sampled      */
+/* engine (SampledAudioGenerator and AudioMixer, without a line) to a sink instead of a sound card, as    */
+/* fast as the CPU allows.  Each hit starts on the exact frame its time falls on, so the same hits always */
+/* give the same audio, down to the last bit, which makes a render a regression test of the engine as     */
+/* well as a way to hear a session again.  The SHA-256 hash of the audio is returned so that renders can  */
+/* be compared.                                                                                           */
+/*                                                                                                        */
+/* A long session is split into blocks of blockFrames, which are rendered at the same time on several     */
+/* threads, each with a mixer and clips of its own.  A mixer cannot start part way through a session, as  */
+/* hits from before the block may still be ringing, so each block first plays every earlier hit into its  */
+/* mixer and skips the frames between them, which moves the voices on exactly as rendering would without  */
+/* mixing anything.  The voices are then in the same state at the start of the block as they would be if  */
+/* the whole session had been rendered in one go, so the number of threads and blocks never changes the   */
+/* result.  The blocks are written to the sink in order.                                                  */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.audiogenerator.sampled;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class OfflineRenderer {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(OfflineRenderer.class);
+
+	// Where the rendered audio goes.  write() is only ever called from one thread, with the blocks in order
+	public interface IAudioSink {
+		public void write(byte [] p_Audio, int p_Offset, int p_Length) throws IOException;
+		public void close() throws IOException;
+	}
+
+	// Throws the audio away, for measuring how fast the engine renders or just getting the hash
+	public final static IAudioSink NULL_SINK = new IAudioSink() {
+		public void write(byte [] p_Audio, int p_Offset, int p_Length) {
+		}
+		public void close() {
+		}
+	};
+
+	private SampleBank m_Bank;
+	private AudioFormat m_Format;
+	private VelocityCurve m_VelocityCurve;
+	private int m_VoicesPerNote;
+	private int m_PeriodFrames;
+
+	// The hits, in order of their frame
+	private long [] m_HitFrames = new long [1024];
+	private int [] m_HitNotes = new int [1024];
+	private int [] m_HitVelocities = new int [1024];
+	private int m_Hits;
+
+
+	public OfflineRenderer(SampleBank p_Bank, VelocityCurve p_VelocityCurve, int p_VoicesPerNote) throws LineUnavailableException {
+		m_Bank = p_Bank;
+		m_Format = p_Bank.getFormat();
+		m_VelocityCurve = p_VelocityCurve;
+		m_VoicesPerNote = p_VoicesPerNote;
+		m_PeriodFrames = new AudioMixer(m_Format, p_VelocityCurve, false).getPeriodFrames();
+	}
+
+
+	// Loads the samples the same way SampledAudioGenerator does, from the system properties
+	public static OfflineRenderer create() throws UnsupportedAudioFileException, IOException, LineUnavailableException {
+		return new OfflineRenderer(SampledAudioGenerator.loadBank(), new VelocityCurve(), Integer.getInteger("voicesPerNote", 2));
+	}
+
+
+	public AudioFormat getFormat() {
+		return m_Format;
+	}
+
+
+	public int getHitCount() {
+		return m_Hits;
+	}
+
+
+	// Adds a hit p_Nanos after the start of the session.  Hits may be added in any order, but are usually
+	// in order or nearly so, so each is put in its place by moving any later ones up.  Hits at the same
+	// time are played in the order they were added
+	public void addHit(long p_Nanos, int p_Note, int p_Velocity) {
+		if (m_Hits == m_HitFrames.length) {
+			m_HitFrames = Arrays.copyOf(m_HitFrames, m_Hits * 2);
+			m_HitNotes = Arrays.copyOf(m_HitNotes, m_Hits * 2);
+			m_HitVelocities = Arrays.copyOf(m_HitVelocities, m_Hits * 2);
+		}
+		long frame = (Math.max(0, p_Nanos) * (long)m_Format.getFrameRate()) / 1000000000L;
+		int hit = m_Hits;
+		while ((hit > 0) && (m_HitFrames[hit - 1] > frame)) {
+			m_HitFrames[hit] = m_HitFrames[hit - 1];
+			m_HitNotes[hit] = m_HitNotes[hit - 1];
+			m_HitVelocities[hit] = m_HitVelocities[hit - 1];
+			hit--;
+		}
+		m_HitFrames[hit] = frame;
+		m_HitNotes[hit] = p_Note;
+		m_HitVelocities[hit] = p_Velocity;
+		m_Hits++;
+	}
+
+
+	// Renders every hit, until the last one has finished, to p_Sink, which is then closed, and returns the
+	// SHA-256 hash of the audio as hex.  p_BlockFrames is rounded up to a whole number of mixer periods
+	public String render(IAudioSink p_Sink, int p_Threads, long p_BlockFrames) throws IOException, InterruptedException {
+		long blockFrames = Math.max(1, (p_BlockFrames + m_PeriodFrames - 1) / m_PeriodFrames) * m_PeriodFrames;
+		long lastFrame = (m_Hits > 0) ? m_HitFrames[m_Hits - 1] : 0;
+		final int blocks = (int)(lastFrame / blockFrames) + 1;
+		int threads = Math.max(1, p_Threads);
+		LOGGER.info("Rendering " + m_Hits + " hits in " + blocks + " blocks of " + blockFrames + " frames on " + threads + " threads");
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IOException(ex);
+		}
+		long start = System.nanoTime();
+		long bytes = 0;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			// Only a few blocks are rendered ahead of the one being written, so that a long session is
+			// never held in memory
+			Deque<Future<byte []>> pending = new ArrayDeque<Future<byte []>>();
+			int next = 0;
+			while ((next < blocks) || !pending.isEmpty()) {
+				while ((next < blocks) && (pending.size() < threads * 2)) {
+					final long from = next * blockFrames;
+					final long to = from + blockFrames;
+					final boolean last = (next == blocks - 1);
+					pending.add(executor.submit(new Callable<byte []>() {
+						public byte [] call() throws Exception {
+							return renderBlock(from, to, last);
+						}
+					}));
+					next++;
+				}
+				byte [] block;
+				try {
+					block = pending.remove().get();
+				} catch (ExecutionException ex) {
+					throw new IOException("Failed to render a block", ex.getCause());
+				}
+				digest.update(block);
+				p_Sink.write(block, 0, block.length);
+				bytes = bytes + block.length;
+			}
+		} finally {
+			executor.shutdownNow();
+			p_Sink.close();
+		}
+
+		double seconds = (double)bytes / m_Format.getFrameSize() / m_Format.getFrameRate();
+		double took = (System.nanoTime() - start) / 1000000000.0;
+		StringBuilder hash = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hash.append(String.format("%02x", b & 0xff));
+		}
+		LOGGER.info(String.format("Rendered %.1f seconds of audio in %.2f seconds, %.1f times real time, SHA-256 %s", seconds, took, seconds / took, hash));
+		return hash.toString();
+	}
+
+
+	// Renders the frames from p_From to p_To, or, for the last block, until every hit has finished
+	private byte [] renderBlock(long p_From, long p_To, boolean p_Last) throws LineUnavailableException {
+		AudioMixer mixer = new AudioMixer(m_Format, m_VelocityCurve, false);
+		SampledAudioGenerator generator = new SampledAudioGenerator(m_Bank, mixer, m_VoicesPerNote);
+		int frameSize = m_Format.getFrameSize();
+		ByteArrayOutputStream audio = new ByteArrayOutputStream((int)Math.min(Integer.MAX_VALUE, (p_To - p_From) * frameSize));
+
+		// Catch up with the start of the block
+		long frame = 0;
+		int hit = 0;
+		while ((hit < m_Hits) && (m_HitFrames[hit] < p_From)) {
+			if (m_HitFrames[hit] > frame) {
+				mixer.skip(m_HitFrames[hit] - frame);
+				frame = m_HitFrames[hit];
+			}
+			generator.playNote(m_HitNotes[hit], m_HitVelocities[hit]);
+			hit++;
+		}
+		if (p_From > frame) {
+			mixer.skip(p_From - frame);
+			frame = p_From;
+		}
+
+		// The audio is rendered a period at a time, in step with the periods of the whole session, and also
+		// broken at each hit, so that the hit starts on its own frame
+		while (p_Last ? ((hit < m_Hits) || !mixer.isIdle()) : (frame < p_To)) {
+			while ((hit < m_Hits) && (m_HitFrames[hit] <= frame)) {
+				generator.playNote(m_HitNotes[hit], m_HitVelocities[hit]);
+				hit++;
+			}
+			long end = ((frame / m_PeriodFrames) + 1) * m_PeriodFrames;
+			if (hit < m_Hits) {
+				end = Math.min(end, m_HitFrames[hit]);
+			}
+			if (!p_Last) {
+				end = Math.min(end, p_To);
+			}
+			int frames = (int)(end - frame);
+			audio.write(mixer.render(frames), 0, frames * frameSize);
+			frame = end;
+		}
+		return audio.toByteArray();
+	}
+
+
+	// A sink that writes a WAV file.  The sizes in the header are filled in when it is closed
+	public static IAudioSink createWavSink(File p_File, AudioFormat p_Format) throws IOException {
+		return new WavFileSink(p_File, p_Format);
+	}
+}
@@ -0,0 +1,83 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains helper methods for working with 16 bit signed PCM audio data held in byte arrays,   */
+/* or in ByteBuffers whose byte order has been set to match the audio                                     */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.audiogenerator.sampled;
+
+import java.nio.ByteBuffer;
+
+public class Pcm16 {
+
+	private Pcm16() {
+	}
+
+	public static int getSample(byte [] p_Data, int p_Position, boolean p_BigEndian) {
+		if (p_BigEndian) {
+			return (p_Data[p_Position] << 8) | (p_Data[p_Position+1] & 0xff);
+		}
+		return (p_Data[p_Position+1] << 8) | (p_Data[p_Position] & 0xff);
+	}
+
+	public static void putSample(byte [] p_Data, int p_Position, int p_Sample, boolean p_BigEndian) {
+		if (p_Sample > Short.MAX_VALUE) {
+			p_Sample = Short.MAX_VALUE;
+		} else if (p_Sample < Short.MIN_VALUE) {
+			p_Sample = Short.MIN_VALUE;
+		}
+		if (p_BigEndian) {
+			p_Data[p_Position] = (byte)(p_Sample >> 8);
+			p_Data[p_Position+1] = (byte)p_Sample;
+		} else {
+			p_Data[p_Position] = (byte)p_Sample;
+			p_Data[p_Position+1] = (byte)(p_Sample >> 8);
+		}
+	}
+
+	// Copies p_Length bytes of audio from p_Source to p_Dest, multiplying each sample by p_Gain, which is a
+	// fixed point number where VelocityCurve.UNITY leaves the sample unchanged
+	public static void scale(ByteBuffer p_Source, int p_SourcePosition, byte [] p_Dest, int p_DestPosition, int p_Length, int p_Gain, boolean p_BigEndian) {
+		for (int i=0; i+1<p_Length; i+=2) {
+			int sample = p_Source.getShort(p_SourcePosition + i);
+			putSample(p_Dest, p_DestPosition + i, (sample * p_Gain) >> VelocityCurve.UNITY_SHIFT, p_BigEndian);
+		}
+	}
+
+	// Adds p_Samples samples from p_Source into p_Mix, multiplying each by p_Gain
+	public static void mix(ByteBuffer p_Source, int p_SourcePosition, int [] p_Mix, int p_Samples, int p_Gain) {
+		mix(p_Source, p_SourcePosition, p_Mix, 0, p_Samples, p_Gain);
+	}
+
+	// The same, adding into p_Mix from p_MixPosition
+	public static void mix(ByteBuffer p_Source, int p_SourcePosition, int [] p_Mix, int p_MixPosition, int p_Samples, int p_Gain) {
+		for (int i=p_MixPosition, pos=p_SourcePosition; i<p_MixPosition+p_Samples; i++, pos+=2) {
+			p_Mix[i] += (p_Source.getShort(pos) * p_Gain) >> VelocityCurve.UNITY_SHIFT;
+		}
+	}
+
+	// Adds p_Frames frames from p_Source into p_Mix, with the gain moving in a straight line from
+	// p_StartGain to p_EndGain, which is used to fade a sound out rather than cutting it off with a click
+	public static void mixRamp(ByteBuffer p_Source, int p_SourcePosition, int [] p_Mix, int p_Frames, int p_Channels, int p_StartGain, int p_EndGain) {
+		mixRamp(p_Source, p_SourcePosition, p_Mix, 0, p_Frames, p_Channels, p_StartGain, p_EndGain);
+	}
+
+	// The same, adding into p_Mix from p_MixPosition
+	public static void mixRamp(ByteBuffer p_Source, int p_SourcePosition, int [] p_Mix, int p_MixPosition, int p_Frames, int p_Channels, int p_StartGain, int p_EndGain) {
+		if (p_Frames <= 0) {
+			return;
+		}
+		// The gain is stepped in 16 more bits of precision, so there is no division for each frame.  Each
+		// channel is done on its own, which keeps the inner loop simple
+		long step16 = (((long)(p_EndGain - p_StartGain)) << 16) / p_Frames;
+		int samples = p_Frames * p_Channels;
+		for (int channel=0; channel<p_Channels; channel++) {
+			long gain16 = (long)p_StartGain << 16;
+			for (int i=channel; i<samples; i+=p_Channels, gain16+=step16) {
+				p_Mix[p_MixPosition + i] += (p_Source.getShort(p_SourcePosition + (i * 2)) * (int)(gain16 >> 16)) >> VelocityCurve.UNITY_SHIFT;
+			}
+		}
+	}
+}
@@ -0,0 +1,333 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains a class that holds every sample the kit uses in one contiguous block of PCM audio.  */
+/* Each sample is handed out as a read-only ByteBuffer slice of the block, in the byte order of the audio */
+/* format, so playing a sound never copies or allocates audio data and the slices can be read by several  */
+/* voices at once.  The bank also records which samples make up the velocity layers and round-robin       */
+/* variants of each note.                                                                                 */
+/*                                                                                                        */
+/* A bank is either built at startup, by adding samples then calling build() once to create the block,    */
+/* or saved to a file (by the SampleBankBuilder tool) and loaded from it.  A bank file holds the audio    */
+/* already converted and rendered, so loading it only reads a small header and memory maps the rest: the  */
+/* audio costs no heap and is paged in by the operating system.  The file is laid out as (big-endian):    */
+/*   int      MAGIC ("I2CB")                                                                              */
+/*   int      VERSION                                                                                     */
+/*   int      offset of the audio from the start of the file (a multiple of DATA_ALIGNMENT)               */
+/*   float    sample rate                                                                                 */
+/*   int      bits per sample (always 16)                                                                 */
+/*   int      channels                                                                                    */
+/*   byte     1 if the audio is big-endian                                                                */
+/*   int      number of samples, then for each sample:                                                    */
+/*     int    offset of the sample from the start of the audio                                            */
+/*     int    length of the sample in bytes                                                               */
+/*   int      number of notes, then for each note:                                                        */
+/*     int    MIDI note number                                                                            */
+/*     int    layers                                                                                      */
+/*     int    round-robin variants                                                                        */
+/*     int [] index of each sample, softest layer first, with the variants of each layer together         */
+/*   the audio                                                                                            */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.audiogenerator.sampled;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class SampleBank {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(SampleBank.class);
+
+	public final static int MAGIC = 0x49324342;
+	public final static int VERSION = 1;
+	// The audio starts on a page boundary
+	public final static int DATA_ALIGNMENT = 4096;
+
+	// The format the bundled samples are in, which is used when there is nothing else to go on
+	public final static AudioFormat DEFAULT_FORMAT = new AudioFormat(44100, 16, 2, true, false);
+
+	private AudioFormat m_Format;
+	private List<byte []> m_Pending = new ArrayList<byte []>();
+	private Map<Integer, int [][]> m_Notes = new LinkedHashMap<Integer, int [][]>();
+	private ByteBuffer m_Block;
+	private int [] m_Offsets;
+	private ByteBuffer [] m_Samples;
+
+
+	public SampleBank(AudioFormat p_Format) {
+		m_Format = p_Format;
+	}
+
+
+	public AudioFormat getFormat() {
+		return m_Format;
+	}
+
+
+	// Reads a WAV file from the class path as raw PCM in the bank's format, converting it if need be
+	public byte [] decode(String p_FileName) throws UnsupportedAudioFileException, IOException {
+		InputStream resource = SampleBank.class.getResourceAsStream("/" + p_FileName);
+		if (resource == null) {
+			throw new IOException("Cannot find " + p_FileName);
+		}
+		AudioInputStream audioStream = AudioSystem.getAudioInputStream(new BufferedInputStream(resource));
+		try {
+			return SampleConverter.convert(audioStream, m_Format, p_FileName);
+		} finally {
+			audioStream.close();
+		}
+	}
+
+
+	// Reads an audio file (WAV, AIFF or anything else Java supports) as raw PCM in the bank's format,
+	// converting it if need be
+	public byte [] decode(File p_File) throws UnsupportedAudioFileException, IOException {
+		AudioInputStream audioStream = AudioSystem.getAudioInputStream(p_File);
+		try {
+			return SampleConverter.convert(audioStream, m_Format, p_File.getName());
+		} finally {
+			audioStream.close();
+		}
+	}
+
+
+	// Adds a sample of raw PCM audio in the bank's format and returns its index
+	public int add(byte [] p_Pcm) {
+		if (m_Block != null) {
+			throw new IllegalStateException("The sample bank has already been built");
+		}
+		m_Pending.add(p_Pcm);
+		return m_Pending.size() - 1;
+	}
+
+
+	// Adds a note, with p_Layers velocity layers and p_RoundRobin variants of each pre-rendered from
+	// p_Pcm by SampleRenderer
+	public void addNote(int p_Note, byte [] p_Pcm, int p_Layers, int p_RoundRobin) {
+		int [][] indexes = new int [p_Layers][p_RoundRobin];
+		for (int layer=0; layer<p_Layers; layer++) {
+			for (int variant=0; variant<p_RoundRobin; variant++) {
+				indexes[layer][variant] = add(SampleRenderer.render(p_Pcm, m_Format, layer, p_Layers, variant));
+			}
+		}
+		m_Notes.put(p_Note, indexes);
+	}
+
+
+	// Copies every sample added into the block.  Each sample starts on a frame boundary
+	public void build() {
+		int frameSize = m_Format.getFrameSize();
+		long total = 0;
+		for (byte [] pcm : m_Pending) {
+			total = total + (pcm.length / frameSize) * frameSize;
+		}
+		if (total > Integer.MAX_VALUE) {
+			throw new IllegalStateException("The samples are too big to hold in one block: " + total + " bytes");
+		}
+		m_Block = ByteBuffer.allocateDirect((int)total).order(getOrder());
+		m_Offsets = new int [m_Pending.size()];
+		m_Samples = new ByteBuffer [m_Pending.size()];
+		for (int i=0; i<m_Samples.length; i++) {
+			byte [] pcm = m_Pending.get(i);
+			int length = (pcm.length / frameSize) * frameSize;
+			m_Offsets[i] = m_Block.position();
+			m_Block.put(pcm, 0, length);
+			m_Samples[i] = slice(m_Offsets[i], length);
+		}
+		m_Pending = null;
+		LOGGER.info("Sample bank holds " + m_Samples.length + " samples in " + (total / 1024) + "KB");
+	}
+
+
+	// Writes the bank, which must have been built, to a file that load() can read
+	public void save(File p_File) throws IOException {
+		if (m_Samples == null) {
+			throw new IllegalStateException("The sample bank has not been built");
+		}
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(headerBytes);
+		header.writeFloat(m_Format.getSampleRate());
+		header.writeInt(m_Format.getSampleSizeInBits());
+		header.writeInt(m_Format.getChannels());
+		header.writeByte(m_Format.isBigEndian() ? 1 : 0);
+		header.writeInt(m_Samples.length);
+		for (int i=0; i<m_Samples.length; i++) {
+			header.writeInt(m_Offsets[i]);
+			header.writeInt(m_Samples[i].limit());
+		}
+		header.writeInt(m_Notes.size());
+		for (Map.Entry<Integer, int [][]> note : m_Notes.entrySet()) {
+			int [][] indexes = note.getValue();
+			header.writeInt(note.getKey());
+			header.writeInt(indexes.length);
+			header.writeInt(indexes[0].length);
+			for (int [] layer : indexes) {
+				for (int index : layer) {
+					header.writeInt(index);
+				}
+			}
+		}
+		header.flush();
+
+		// MAGIC, VERSION and the offset of the audio come first
+		int dataOffset = 12 + headerBytes.size();
+		dataOffset = ((dataOffset + DATA_ALIGNMENT - 1) / DATA_ALIGNMENT) * DATA_ALIGNMENT;
+
+		OutputStream os = new FileOutputStream(p_File);
+		try {
+			DataOutputStream out = new DataOutputStream(os);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(dataOffset);
+			headerBytes.writeTo(out);
+			out.write(new byte [dataOffset - 12 - headerBytes.size()]);
+			out.flush();
+			WritableByteChannel channel = Channels.newChannel(os);
+			ByteBuffer block = m_Block.duplicate();
+			block.clear();
+			while (block.hasRemaining()) {
+				channel.write(block);
+			}
+		} finally {
+			os.close();
+		}
+		LOGGER.info("Saved " + m_Samples.length + " samples and " + m_Notes.size() + " notes to " + p_File);
+	}
+
+
+	// Memory maps a bank file written by save().  With p_Preload, every page of the audio is read in now,
+	// so that the first hit of each drum does not wait for the disk
+	public static SampleBank load(File p_File, boolean p_Preload) throws IOException {
+		FileChannel channel = FileChannel.open(p_File.toPath(), StandardOpenOption.READ);
+		MappedByteBuffer file;
+		try {
+			// The mapping stays valid once the channel is closed
+			file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			channel.close();
+		}
+		if ((file.remaining() < 12) || (file.getInt() != MAGIC)) {
+			throw new IOException(p_File + " is not a sample bank");
+		}
+		int version = file.getInt();
+		if (version != VERSION) {
+			throw new IOException(p_File + " is sample bank version " + version + ", expected " + VERSION);
+		}
+		int dataOffset = file.getInt();
+		float sampleRate = file.getFloat();
+		int bits = file.getInt();
+		int channels = file.getInt();
+		boolean bigEndian = file.get() != 0;
+		if (bits != 16) {
+			throw new IOException(p_File + " holds " + bits + " bit audio, only 16 bit is supported");
+		}
+		SampleBank bank = new SampleBank(new AudioFormat(sampleRate, bits, channels, true, bigEndian));
+
+		if ((dataOffset < file.position()) || (dataOffset > file.capacity())) {
+			throw new IOException(p_File + " is truncated or corrupt");
+		}
+		ByteBuffer data = file.duplicate();
+		data.position(dataOffset);
+		bank.m_Block = data.slice().order(bank.getOrder());
+
+		int samples = file.getInt();
+		bank.m_Offsets = new int [samples];
+		bank.m_Samples = new ByteBuffer [samples];
+		for (int i=0; i<samples; i++) {
+			bank.m_Offsets[i] = file.getInt();
+			int length = file.getInt();
+			if ((bank.m_Offsets[i] < 0) || (length < 0) || ((long)bank.m_Offsets[i] + length > bank.m_Block.capacity())) {
+				throw new IOException(p_File + " is truncated or corrupt");
+			}
+			bank.m_Samples[i] = bank.slice(bank.m_Offsets[i], length);
+		}
+		int notes = file.getInt();
+		for (int i=0; i<notes; i++) {
+			int note = file.getInt();
+			int [][] indexes = new int [file.getInt()][file.getInt()];
+			for (int [] layer : indexes) {
+				for (int variant=0; variant<layer.length; variant++) {
+					layer[variant] = file.getInt();
+					if ((layer[variant] < 0) || (layer[variant] >= samples)) {
+						throw new IOException(p_File + " is truncated or corrupt");
+					}
+				}
+			}
+			bank.m_Notes.put(note, indexes);
+		}
+		bank.m_Pending = null;
+
+		if (p_Preload) {
+			file.load();
+		}
+		LOGGER.info("Mapped " + samples + " samples and " + notes + " notes from " + p_File + " (" + (bank.m_Block.capacity() / 1024) + "KB)");
+		return bank;
+	}
+
+
+	private ByteOrder getOrder() {
+		return m_Format.isBigEndian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+	}
+
+
+	private ByteBuffer slice(int p_Start, int p_Length) {
+		ByteBuffer view = m_Block.duplicate();
+		view.limit(p_Start + p_Length);
+		view.position(p_Start);
+		// A slice always starts out big-endian, whatever the order of the buffer it was sliced from
+		return view.slice().asReadOnlyBuffer().order(getOrder());
+	}
+
+
+	public ByteBuffer getSample(int p_Index) {
+		return m_Samples[p_Index];
+	}
+
+
+	public ByteBuffer [][] getSamples(int [][] p_Indexes) {
+		ByteBuffer [][] samples = new ByteBuffer [p_Indexes.length][];
+		for (int i=0; i<p_Indexes.length; i++) {
+			samples[i] = new ByteBuffer [p_Indexes[i].length];
+			for (int j=0; j<p_Indexes[i].length; j++) {
+				samples[i][j] = m_Samples[p_Indexes[i][j]];
+			}
+		}
+		return samples;
+	}
+
+
+	// The layers and variants of each note added, by MIDI note number
+	public Map<Integer, ByteBuffer [][]> getNotes() {
+		Map<Integer, ByteBuffer [][]> notes = new LinkedHashMap<Integer, ByteBuffer [][]>();
+		for (Map.Entry<Integer, int [][]> note : m_Notes.entrySet()) {
+			notes.put(note.getKey(), getSamples(note.getValue()));
+		}
+		return notes;
+	}
+}
@@ -0,0 +1,119 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains the code that turns an audio file of any format Java can read (WAV, AIFF, 8, 16 or  */
+/* 24 bit, any sample rate, mono or stereo) into raw 16 bit signed PCM audio in the format of the output, */
+/* so that samples in different formats can be used together.                                             */
+/*                                                                                                        */
+/* Java converts the encoding and sample size.  The channels are then mixed down (to mono) or copied (to  */
+/* stereo), and the sample rate changed with linear interpolation, which is good enough for drum samples  */
+/* but is best done once, by the SampleBankBuilder tool, rather than every time the kit starts.           */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.audiogenerator.sampled;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class SampleConverter {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(SampleConverter.class);
+
+	private SampleConverter() {
+	}
+
+
+	// Reads all of p_Stream as raw PCM audio in p_Format, which must be 16 bit signed PCM
+	public static byte [] convert(AudioInputStream p_Stream, AudioFormat p_Format, String p_Name) throws UnsupportedAudioFileException, IOException {
+		AudioFormat source = p_Stream.getFormat();
+		if (source.matches(p_Format)) {
+			return readFully(p_Stream);
+		}
+		LOGGER.info("Converting " + p_Name + " from " + source + " to " + p_Format);
+
+		// Let Java convert to 16 bit signed PCM, keeping the sample rate and channels
+		AudioFormat pcm16 = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, source.getSampleRate(), 16, source.getChannels(),
+				source.getChannels() * 2, source.getSampleRate(), p_Format.isBigEndian());
+		AudioInputStream stream = p_Stream;
+		if (!source.matches(pcm16)) {
+			if (!AudioSystem.isConversionSupported(pcm16, source)) {
+				throw new UnsupportedAudioFileException("Cannot convert " + p_Name + " from " + source);
+			}
+			stream = AudioSystem.getAudioInputStream(pcm16, p_Stream);
+		}
+		byte [] data = readFully(stream);
+
+		boolean bigEndian = p_Format.isBigEndian();
+		int sourceChannels = source.getChannels();
+		int channels = p_Format.getChannels();
+		int frames = data.length / (sourceChannels * 2);
+
+		double [] audio = new double [frames * channels];
+		for (int frame=0; frame<frames; frame++) {
+			int position = frame * sourceChannels * 2;
+			if (channels == 1) {
+				double sum = 0;
+				for (int channel=0; channel<sourceChannels; channel++) {
+					sum = sum + Pcm16.getSample(data, position + (channel * 2), bigEndian);
+				}
+				audio[frame] = sum / sourceChannels;
+			} else {
+				for (int channel=0; channel<channels; channel++) {
+					audio[frame * channels + channel] = Pcm16.getSample(data, position + ((channel % sourceChannels) * 2), bigEndian);
+				}
+			}
+		}
+
+		if (source.getSampleRate() != p_Format.getSampleRate()) {
+			audio = SampleRenderer.resample(audio, channels, source.getSampleRate() / p_Format.getSampleRate());
+		}
+
+		byte [] result = new byte [audio.length * 2];
+		for (int i=0; i<audio.length; i++) {
+			Pcm16.putSample(result, i * 2, (int)Math.round(audio[i]), bigEndian);
+		}
+		return result;
+	}
+
+
+	// Reads the rest of the stream.  When the length is known, the audio is read straight into an array of
+	// the right size, rather than being copied through a growing buffer
+	private static byte [] readFully(AudioInputStream p_Stream) throws IOException {
+		long frames = p_Stream.getFrameLength();
+		int frameSize = p_Stream.getFormat().getFrameSize();
+		if ((frames != AudioSystem.NOT_SPECIFIED) && (frameSize != AudioSystem.NOT_SPECIFIED) && (frames * frameSize <= Integer.MAX_VALUE)) {
+			byte [] data = new byte [(int)(frames * frameSize)];
+			int read = 0;
+			while (read < data.length) {
+				int sz = p_Stream.read(data, read, data.length - read);
+				if (sz == -1) {
+					break;
+				}
+				read = read + sz;
+			}
+			if (read == data.length) {
+				return data;
+			}
+			byte [] shorter = new byte [read];
+			System.arraycopy(data, 0, shorter, 0, read);
+			return shorter;
+		}
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		byte [] buf = new byte [5000];
+		int sz = p_Stream.read(buf);
+		while (sz!=-1) {
+			os.write(buf, 0, sz);
+			sz = p_Stream.read(buf);
+		}
+		return os.toByteArray();
+	}
+}
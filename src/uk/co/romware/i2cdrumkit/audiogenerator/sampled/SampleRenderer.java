@@ -0,0 +1,97 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains the code that pre-renders the velocity layers and round-robin variants of a sample  */
+/* at startup, as there is only one recording of each drum.                                               */
+/*                                                                                                        */
+/* A real drum hit softly is duller as well as quieter, so each softer layer is passed through a low-pass */
+/* filter, an octave lower for each layer down (the loudest layer is the original recording).  How loud   */
+/* the sound is still comes from the velocity, through the VelocityCurve.                                 */
+/*                                                                                                        */
+/* Hitting the same drum twice never sounds exactly the same, so each round-robin variant is the layer    */
+/* played very slightly sharp or flat (0.6% for each variant, alternating), which stops a fast roll from  */
+/* sounding like a machine gun.  The first variant is not changed                                         */
+/*                                                                                                        */
+/* Only 16 bit signed PCM audio is supported                                                              */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.audiogenerator.sampled;
+
+import javax.sound.sampled.AudioFormat;
+
+public class SampleRenderer {
+
+	// The cut-off of the filter on the layer below the loudest
+	private final static double TOP_CUTOFF = 8000;
+	private final static double DETUNE_STEP = 0.006;
+
+	private SampleRenderer() {
+	}
+
+
+	// Returns the given layer (0 being the softest) and round-robin variant of p_Pcm
+	public static byte [] render(byte [] p_Pcm, AudioFormat p_Format, int p_Layer, int p_Layers, int p_RoundRobin) {
+		int octavesDown = p_Layers - 1 - p_Layer;
+		if ((octavesDown <= 0) && (p_RoundRobin == 0)) {
+			return p_Pcm;
+		}
+
+		boolean bigEndian = p_Format.isBigEndian();
+		int channels = p_Format.getChannels();
+		int frames = p_Pcm.length / p_Format.getFrameSize();
+
+		double [] audio = new double [frames * channels];
+		for (int i=0; i<audio.length; i++) {
+			audio[i] = Pcm16.getSample(p_Pcm, i * 2, bigEndian);
+		}
+
+		if (octavesDown > 0) {
+			lowPass(audio, channels, TOP_CUTOFF / Math.pow(2, octavesDown - 1), p_Format.getFrameRate());
+		}
+		if (p_RoundRobin > 0) {
+			int steps = (p_RoundRobin + 1) / 2;
+			double ratio = 1 + ((p_RoundRobin % 2 == 1) ? steps : -steps) * DETUNE_STEP;
+			audio = resample(audio, channels, ratio);
+		}
+
+		byte [] result = new byte [audio.length * 2];
+		for (int i=0; i<audio.length; i++) {
+			Pcm16.putSample(result, i * 2, (int)Math.round(audio[i]), bigEndian);
+		}
+		return result;
+	}
+
+
+	// A one pole low-pass filter on each channel
+	private static void lowPass(double [] p_Audio, int p_Channels, double p_Cutoff, float p_FrameRate) {
+		double a = 1 - Math.exp(-2 * Math.PI * p_Cutoff / p_FrameRate);
+		for (int channel=0; channel<p_Channels; channel++) {
+			double y = 0;
+			for (int i=channel; i<p_Audio.length; i+=p_Channels) {
+				y = y + a * (p_Audio[i] - y);
+				p_Audio[i] = y;
+			}
+		}
+	}
+
+
+	// Plays the audio p_Ratio times faster, which raises the pitch, using linear interpolation
+	static double [] resample(double [] p_Audio, int p_Channels, double p_Ratio) {
+		int frames = p_Audio.length / p_Channels;
+		int newFrames = (int)((frames - 1) / p_Ratio);
+		double [] result = new double [newFrames * p_Channels];
+		for (int frame=0; frame<newFrames; frame++) {
+			double position = frame * p_Ratio;
+			int before = (int)position;
+			double fraction = position - before;
+			int after = Math.min(before + 1, frames - 1);
+			for (int channel=0; channel<p_Channels; channel++) {
+				double a = p_Audio[before * p_Channels + channel];
+				double b = p_Audio[after * p_Channels + channel];
+				result[frame * p_Channels + channel] = a + (b - a) * fraction;
+			}
+		}
+		return result;
+	}
+}
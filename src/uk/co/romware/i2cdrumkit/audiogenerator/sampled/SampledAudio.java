@@ -1,84 +1,121 @@
 /**********************************************************************************************************/
 /*                                                                                                        */
-/* This file contains a class that plays a particular note, and will only play that note one at a time,   */
-/* so when the note is requested while the previously requested note is still playing, the first note is  */
-/* stopped and the new note played.                                                                       */
+/* This file contains a class that plays a particular note.  The note has a set of samples, in velocity   */
+/* layers (0 being the softest) and round-robin variants within each layer.  Each hit picks its layer     */
+/* from its velocity with a table lookup, and the next variant in that layer in turn.                     */
+/*                                                                                                        */
+/* Up to a given number of hits of the note can play at once.  When the note is requested while that      */
+/* many are still playing, the oldest is stopped (which the mixer does with a short fade) and the new one */
+/* played.  With one voice, this is the original behaviour of playing the note one at a time.             */
+/*                                                                                                        */
+/* A note can also be choked, i.e. stopped because another note in its choke group has been hit           */
 /*                                                                                                        */
 /* Use at your own risk                                                                                   */
 /*                                                                                                        */
 /**********************************************************************************************************/
 package uk.co.romware.i2cdrumkit.audiogenerator.sampled;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-
-import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.UnsupportedAudioFileException;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.nio.ByteBuffer;
 
-import uk.co.romware.i2cdrumkit.audiogenerator.sampled.DataLineHandlerFactory.IDataLineHandler;
+import uk.co.romware.i2cdrumkit.audiogenerator.sampled.IAudioOutput.IDataLineHandler;
+import uk.co.romware.i2cdrumkit.metrics.LatencyStats;
+import uk.co.romware.i2cdrumkit.metrics.TraceRing;
 
 public class SampledAudio {
 
-	private final static Logger LOGGER = LoggerFactory.getLogger(SampledAudio.class);
-
-	private byte [] m_Data;
-	private AudioFormat m_Format;
-	private IDataLineHandler m_CurrentHandler;
+	private ByteBuffer [][] m_Samples;
+	private int [] m_LayerByVelocity = new int [128];
+	private int [] m_NextRoundRobin;
+	private IDataLineHandler [] m_Handlers;
+	private int [] m_Tickets;
+	private int m_NextVoice;
 	private Object m_Lock = new Object();
-	private DataLineHandlerFactory m_Factory;
-	
-	public SampledAudio (String p_FileName, DataLineHandlerFactory p_Factory) throws UnsupportedAudioFileException, IOException {
-		m_Factory = p_Factory;
-		
-		AudioInputStream audioStream = AudioSystem.getAudioInputStream(new BufferedInputStream(SampledAudio.class.getResourceAsStream("/" + p_FileName)));
-		m_Format = audioStream.getFormat();
-
-		ByteArrayOutputStream os = new ByteArrayOutputStream();
-		byte [] buf = new byte [5000];
-		int sz = audioStream.read(buf);
-		while (sz!=-1) {
-			os.write(buf, 0, sz);
-			sz = audioStream.read(buf);
+	private IAudioOutput m_Output;
+	private int m_Note;
+
+	public SampledAudio (int p_Note, ByteBuffer [][] p_Samples, IAudioOutput p_Output, int p_Voices) {
+		m_Note = p_Note;
+		m_Samples = p_Samples;
+		m_Output = p_Output;
+		m_NextRoundRobin = new int [p_Samples.length];
+		m_Handlers = new IDataLineHandler [Math.max(1, p_Voices)];
+		m_Tickets = new int [m_Handlers.length];
+
+		// The layers share the velocity range equally
+		for (int velocity=0; velocity<m_LayerByVelocity.length; velocity++) {
+			m_LayerByVelocity[velocity] = (velocity * p_Samples.length) / m_LayerByVelocity.length;
 		}
-		m_Data = os.toByteArray();
-		os.close();
-		audioStream.close();
-	}
-	
-	public AudioFormat getFormat() {
-		return m_Format;
 	}
-	
+
 	public void play(int p_Volume) {
 		synchronized (m_Lock) {
-			LOGGER.info("Play requested");
-			if (m_CurrentHandler!=null) {
-				LOGGER.info("Already playing.  Requesting stop");
-				m_CurrentHandler.stop();
+			int voice = m_NextVoice;
+			m_NextVoice = (m_NextVoice + 1) % m_Handlers.length;
+			if (m_Handlers[voice]!=null) {
+				// If this hit is still playing it is stopped, otherwise the ticket no longer matches and
+				// nothing happens
+				if (m_Handlers[voice].stop(m_Tickets[voice])) {
+					TraceRing.record(TraceRing.VOICE_STOLEN, m_Note, voice);
+				}
+				m_Handlers[voice] = null;
+			}
+			IDataLineHandler handler = m_Output.getHandler();
+			if (handler==null) {
+				TraceRing.record(TraceRing.NO_VOICE, m_Note, p_Volume);
+				return;
 			}
-			m_CurrentHandler = m_Factory.getHandler();
-			m_CurrentHandler.play(m_Data, p_Volume);
-			LOGGER.info("Requested play");
+			LatencyStats.acquired(m_Note);
+
+			int layer = m_LayerByVelocity[Math.max(0, Math.min(127, p_Volume))];
+			ByteBuffer [] variants = m_Samples[layer];
+			ByteBuffer sample = variants[m_NextRoundRobin[layer]];
+			m_NextRoundRobin[layer] = (m_NextRoundRobin[layer] + 1) % variants.length;
+
+			m_Handlers[voice] = handler;
+			m_Tickets[voice] = handler.play(sample, p_Volume, m_Note);
 		}
 	}
-	
-	
+
+
 	public void stop() {
 		synchronized (m_Lock) {
-			LOGGER.info("Stop requested");
-			if (m_CurrentHandler!=null) {
-				m_CurrentHandler.stop();
+			TraceRing.record(TraceRing.STOP, m_Note, 0);
+			stopVoices();
+		}
+
+	}
+
+
+	// Stops the note because p_ByNote has been hit.  This happens on every hit of p_ByNote, so it is only
+	// traced if the note was still playing
+	public void choke(int p_ByNote) {
+		synchronized (m_Lock) {
+			if (stopVoices()) {
+				TraceRing.record(TraceRing.CHOKE, m_Note, p_ByNote);
 			}
-			LOGGER.info("Stopped");
 		}
-		
 	}
-	
-	
+
+
+	// Returns a clip of another note that plays the same samples, with voices of its own
+	public SampledAudio copyForNote(int p_Note) {
+		return new SampledAudio(p_Note, m_Samples, m_Output, m_Handlers.length);
+	}
+
+
+	// Called with m_Lock held.  Returns true if any voice was still playing
+	private boolean stopVoices() {
+		boolean stopped = false;
+		for (int voice=0; voice<m_Handlers.length; voice++) {
+			if (m_Handlers[voice]!=null) {
+				if (m_Handlers[voice].stop(m_Tickets[voice])) {
+					stopped = true;
+				}
+				m_Handlers[voice] = null;
+			}
+		}
+		return stopped;
+	}
+
+
 }
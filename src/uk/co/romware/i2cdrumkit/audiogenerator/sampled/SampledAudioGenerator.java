@@ -9,20 +9,46 @@
 /* engine only has a few milliseconds of data in its buffer                                               */
 /* The audio files came from https://www.musicradar.com/, although I had to convert them to 16 bit        */
 /* because Java didn't support the original format.                                                       */
+/* Setting the system property sampledOutput=mixer uses a single line and a software mixer instead of a   */
+/* data line per sound, which removes the limit of 7 sounds at once                                       */
+/*                                                                                                        */
+/* Every sample is decoded at startup into one SampleBank, with sampleLayers velocity layers (default 4)  */
+/* and sampleRoundRobin variants of each layer (default 2) pre-rendered by SampleRenderer.  Samples that  */
+/* are not in the output format are converted.  Setting sampleBank to a bank file made by the             */
+/* SampleBankBuilder tool memory maps that instead, which does all of this ahead of time.  Setting        */
+/* soundFont to a SoundFont 2 file plays the drums of its drum kit preset soundFontPreset (default 0)     */
+/* instead of the bundled samples (see SoundFont), for the notes in soundFontNotes, e.g. 35-59 (default   */
+/* the notes the pads play).  Up to voicesPerNote hits of the same note can play at once (default 2 with  */
+/* the mixer, 1 with data lines, as there are only 7 of them)                                             */
+/*                                                                                                        */
+/* A kit file (see KitWatcher) can give notes other audio files while the kit is being played             */
+/*                                                                                                        */
+/* A hit on a note in a choke group stops the other notes in the group, which the mixer fades out over    */
+/* mixerFadeMillis and a data line stops within one period, so a ringing cymbal does not hold a voice.    */
+/* The groups are set with chokeGroups, as notes separated by commas and groups by semicolons (default    */
+/* 42,44,46, the closed, pedal and open hi-hats), or by the kit file.  The open hi-hat plays the closed   */
+/* hi-hat's sample unless it has a sample of its own                                                      */
+/*                                                                                                        */
+/* With the mixer, a Sequencer can play a metronome and drum patterns, on the mixer thread, alongside the */
+/* live hits, and a BackingTrack streamed from the disk                                                   */
 /*                                                                                                        */
 /* Use at your own risk                                                                                   */
 /*                                                                                                        */
 /**********************************************************************************************************/
 package uk.co.romware.i2cdrumkit.audiogenerator.sampled;
 
-import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.UnsupportedAudioFileException;
 
@@ -30,49 +56,313 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import uk.co.romware.i2cdrumkit.audiogenerator.IAudioGenerator;
+import uk.co.romware.i2cdrumkit.audiogenerator.sf2.SoundFont;
+import uk.co.romware.i2cdrumkit.kit.KitDefinition;
+import uk.co.romware.i2cdrumkit.kit.KitWatcher;
 
 
-public class SampledAudioGenerator implements IAudioGenerator { 	
+public class SampledAudioGenerator implements IAudioGenerator, KitWatcher.IKitListener { 	
 
 	private final static Logger LOGGER = LoggerFactory.getLogger(SampledAudioGenerator.class);
 
-	private Map<Integer, SampledAudio> m_Clips = new HashMap<Integer, SampledAudio>();
+	private final static int HIHAT_CLOSED_NOTE = 42;
+	private final static int HIHAT_OPEN_NOTE = 46;
+	private final static String DEFAULT_CHOKE_GROUPS = "42,44,46";
+	private final static String DEFAULT_SOUND_FONT_NOTES = "35,38,42,45,46,49,50";
+
+	// The clips loaded at startup
+	private SampledAudio [] m_StartClips = new SampledAudio [128];
+	// The clips being played, which is replaced, never changed, when the kit changes
+	private volatile SampledAudio [] m_Clips;
+	// The notes each note chokes, or null, which is replaced, never changed, when the kit changes
+	private volatile int [][] m_Chokes;
+	private int [][] m_StartChokes;
+	// The clips loaded from the kit file, and which version of which file each was loaded from
+	private Map<Integer, SampledAudio> m_KitClips = new HashMap<Integer, SampledAudio>();
+	private Map<Integer, String> m_KitVersions = new HashMap<Integer, String>();
+
+	private AudioFormat m_Format;
+	private IAudioOutput m_Output;
+	private Sequencer m_Sequencer;
+	private int m_VoicesPerNote;
+	// How many layers and variants a sample loaded from the kit file is rendered with, for each note and
+	// for notes the bank does not have
+	private int [] m_NoteLayers = new int [128];
+	private int [] m_NoteRoundRobin = new int [128];
+	private int m_Layers;
+	private int m_RoundRobin;
 	
 	public SampledAudioGenerator () throws UnsupportedAudioFileException, IOException, LineUnavailableException  {
 		
-		AudioInputStream ais = AudioSystem.getAudioInputStream(new BufferedInputStream(SampledAudioGenerator.class.getResourceAsStream("/CyCdh_K3Crash-02-16.wav")));
-		AudioFormat fmt = ais.getFormat();
-		ais.close();
-		DataLineHandlerFactory factory = new DataLineHandlerFactory(fmt);		
-		
-		LOGGER.info("Loading clips");
-		
-		// This maps MIDI note numbers to particular audio files
-		m_Clips.put(42,  new SampledAudio("CyCdh_K3Crash-02-16.wav", factory));
-		m_Clips.put(49,  new SampledAudio("CyCdh_K3HfHat-16.wav", factory));
-		m_Clips.put(45,  new SampledAudio("CyCdh_K3Tom-01-16.wav", factory));
-		m_Clips.put(50,  new SampledAudio("CyCdh_K3Tom-04-16.wav", factory));
-		m_Clips.put(38,  new SampledAudio("CyCdh_K3SdSt-07-16.wav", factory));
-		m_Clips.put(35,  new SampledAudio("CyCdh_K3Kick-01-16.wav", factory));
-
-		for (SampledAudio audio : m_Clips.values()) {
-			if (!audio.getFormat().matches(fmt)) {
-				throw new IOException("Mismatched audio format");
+		SampleBank bank = loadBank();
+		AudioFormat fmt = bank.getFormat();
+
+		VelocityCurve velocityCurve = new VelocityCurve();
+		IAudioOutput output;
+		int voicesPerNote;
+		if ("mixer".equals(System.getProperty("sampledOutput"))) {
+			AudioMixer mixer = new AudioMixer(fmt, velocityCurve);
+			output = mixer;
+			voicesPerNote = Integer.getInteger("voicesPerNote", 2);
+			if (Sequencer.isWanted()) {
+				m_Sequencer = new Sequencer(fmt, mixer);
+			}
+			String backingTrack = System.getProperty("backingTrack");
+			if (backingTrack != null) {
+				try {
+					mixer.setBackingTrack(new BackingTrack(new File(backingTrack), fmt));
+				} catch (UnsupportedAudioFileException | IOException ex) {
+					// The drums are played without it
+					LOGGER.error("Cannot play the backing track " + backingTrack, ex);
+				}
+			}
+		} else {
+			output = new DataLineHandlerFactory(fmt, velocityCurve);
+			voicesPerNote = Integer.getInteger("voicesPerNote", 1);
+			if (System.getProperty("sessionAudioFile") != null) {
+				LOGGER.warn("The audio can only be recorded with sampledOutput=mixer, sessionAudioFile is ignored");
+			}
+			if (Sequencer.isWanted()) {
+				LOGGER.warn("The metronome and patterns can only be played with sampledOutput=mixer, they are ignored");
+			}
+			if (System.getProperty("backingTrack") != null) {
+				LOGGER.warn("The backing track can only be played with sampledOutput=mixer, it is ignored");
 			}
 		}
-		LOGGER.info("Loaded clips");
-		
+		setUp(bank, output, voicesPerNote);
+		if (m_Sequencer != null) {
+			m_Sequencer.setClips(m_Clips);
+			((AudioMixer)output).setSequencer(m_Sequencer);
+		}
+		LOGGER.info("Loaded clips with " + voicesPerNote + " voices per note");
+	}
+
+
+	// Plays the bank through an output that the caller drives, which is how OfflineRenderer renders
+	SampledAudioGenerator (SampleBank p_Bank, IAudioOutput p_Output, int p_VoicesPerNote) {
+		setUp(p_Bank, p_Output, p_VoicesPerNote);
+	}
+
+
+	private void setUp(SampleBank p_Bank, IAudioOutput p_Output, int p_VoicesPerNote) {
+		m_Layers = Math.max(1, Integer.getInteger("sampleLayers", 4));
+		m_RoundRobin = Math.max(1, Integer.getInteger("sampleRoundRobin", 2));
+		m_Format = p_Bank.getFormat();
+		m_Output = p_Output;
+		m_VoicesPerNote = p_VoicesPerNote;
+
+		// A bank loaded from a file decides how many layers and variants there are, so a note reloaded from
+		// the kit file keeps the bank's, and any other note takes those of the bank's first note
+		boolean first = true;
+		for (Map.Entry<Integer, ByteBuffer [][]> note : p_Bank.getNotes().entrySet()) {
+			ByteBuffer [][] samples = note.getValue();
+			m_StartClips[note.getKey()] = new SampledAudio(note.getKey(), samples, p_Output, p_VoicesPerNote);
+			m_NoteLayers[note.getKey()] = samples.length;
+			m_NoteRoundRobin[note.getKey()] = samples[0].length;
+			if (first) {
+				m_Layers = samples.length;
+				m_RoundRobin = samples[0].length;
+				first = false;
+			}
+		}
+		m_Clips = shareHiHat(m_StartClips.clone(), false);
+
+		m_StartChokes = chokeTable(parseChokeGroups(System.getProperty("chokeGroups", DEFAULT_CHOKE_GROUPS)));
+		m_Chokes = m_StartChokes;
+	}
+
+
+	// Loads the samples from the bank file, the SoundFont or the bundled kit, whichever is set
+	static SampleBank loadBank() throws UnsupportedAudioFileException, IOException {
+		int layers = Math.max(1, Integer.getInteger("sampleLayers", 4));
+		int roundRobin = Math.max(1, Integer.getInteger("sampleRoundRobin", 2));
+		SampleBank bank;
+		String bankFile = System.getProperty("sampleBank");
+		if (bankFile != null) {
+			// The bank file is already in its own format, with its layers and variants rendered
+			LOGGER.info("Loading sample bank " + bankFile);
+			bank = SampleBank.load(new File(bankFile), !"false".equals(System.getProperty("sampleBankPreload")));
+		} else if (System.getProperty("soundFont") != null) {
+			bank = new SampleBank(SampleBank.DEFAULT_FORMAT);
+			for (Map.Entry<Integer, byte []> note : renderSoundFont(bank.getFormat()).entrySet()) {
+				bank.addNote(note.getKey(), note.getValue(), layers, roundRobin);
+			}
+			bank.build();
+		} else {
+			LOGGER.info("Loading clips");
+			bank = new SampleBank(SampleBank.DEFAULT_FORMAT);
+			for (Map.Entry<Integer, String> file : getKit().entrySet()) {
+				bank.addNote(file.getKey(), bank.decode(file.getValue()), layers, roundRobin);
+			}
+			bank.build();
+		}
+		return bank;
+	}
+
+
+	// This maps General MIDI drum notes to the bundled audio files
+	public static Map<Integer, String> getKit() {
+		Map<Integer, String> files = new LinkedHashMap<Integer, String>();
+		files.put(42, "CyCdh_K3HfHat-16.wav");
+		files.put(49, "CyCdh_K3Crash-02-16.wav");
+		files.put(45, "CyCdh_K3Tom-01-16.wav");
+		files.put(50, "CyCdh_K3Tom-04-16.wav");
+		files.put(38, "CyCdh_K3SdSt-07-16.wav");
+		files.put(35, "CyCdh_K3Kick-01-16.wav");
+		return files;
+	}
+
+	// Renders the drums of the SoundFont given by the system property soundFont.  Only the notes in
+	// soundFontNotes are rendered, which by default are those the pads play, as a whole General MIDI kit
+	// rendered in velocity layers and round-robin variants takes a lot of memory
+	public static Map<Integer, byte []> renderSoundFont(AudioFormat p_Format) throws IOException {
+		List<Integer> notes = new ArrayList<Integer>();
+		for (String range : System.getProperty("soundFontNotes", DEFAULT_SOUND_FONT_NOTES).split(",")) {
+			String [] ends = range.trim().split("-");
+			try {
+				int first = Integer.parseInt(ends[0].trim());
+				int last = (ends.length > 1) ? Integer.parseInt(ends[1].trim()) : first;
+				for (int note=Math.max(0, first); note<=Math.min(127, last); note++) {
+					notes.add(note);
+				}
+			} catch (NumberFormatException ex) {
+				LOGGER.warn("Ignoring bad notes in soundFontNotes: " + range);
+			}
+		}
+		SoundFont font = SoundFont.read(new File(System.getProperty("soundFont")));
+		return font.renderDrums(Integer.getInteger("soundFontPreset", 0), notes, p_Format);
+	}
+
+	// Called on the KitWatcher's thread.  Only the samples that are new, or whose files have changed, are
+	// loaded, into a SampleBank of their own, then the whole set of clips is swapped at once.  Hits of a clip
+	// that has been replaced carry on until they end
+	public synchronized void kitChanged(KitDefinition p_Kit) {
+		Map<Integer, String> versions = new HashMap<Integer, String>();
+		SampleBank bank = new SampleBank(m_Format);
+		for (Map.Entry<Integer, File> sample : p_Kit.getSamples().entrySet()) {
+			int note = sample.getKey();
+			File file = sample.getValue();
+			String version = file.getAbsolutePath() + "@" + file.lastModified() + "/" + file.length();
+			if (version.equals(m_KitVersions.get(note))) {
+				versions.put(note, version);
+				continue;
+			}
+			try {
+				LOGGER.info("Loading note " + note + " from " + file);
+				int layers = (m_NoteLayers[note] > 0) ? m_NoteLayers[note] : m_Layers;
+				int roundRobin = (m_NoteRoundRobin[note] > 0) ? m_NoteRoundRobin[note] : m_RoundRobin;
+				bank.addNote(note, bank.decode(file), layers, roundRobin);
+				versions.put(note, version);
+			} catch (UnsupportedAudioFileException | IOException ex) {
+				// Whatever the note played before is kept
+				LOGGER.error("Cannot load note " + note + " from " + file, ex);
+				if (m_KitVersions.containsKey(note)) {
+					versions.put(note, m_KitVersions.get(note));
+				}
+			}
+		}
+
+		Map<Integer, SampledAudio> kitClips = new HashMap<Integer, SampledAudio>();
+		for (Integer note : versions.keySet()) {
+			if (m_KitClips.containsKey(note)) {
+				kitClips.put(note, m_KitClips.get(note));
+			}
+		}
+		bank.build();
+		for (Map.Entry<Integer, ByteBuffer [][]> note : bank.getNotes().entrySet()) {
+			kitClips.put(note.getKey(), new SampledAudio(note.getKey(), note.getValue(), m_Output, m_VoicesPerNote));
+		}
+
+		SampledAudio [] clips = m_StartClips.clone();
+		for (Map.Entry<Integer, SampledAudio> clip : kitClips.entrySet()) {
+			clips[clip.getKey()] = clip.getValue();
+		}
+		Collection<List<Integer>> chokeGroups = p_Kit.getChokeGroups().values();
+		m_KitClips = kitClips;
+		m_KitVersions = versions;
+		m_Chokes = chokeGroups.isEmpty() ? m_StartChokes : chokeTable(chokeGroups);
+		m_Clips = shareHiHat(clips, kitClips.containsKey(HIHAT_OPEN_NOTE));
+		if (m_Sequencer != null) {
+			m_Sequencer.setClips(m_Clips);
+		}
+		LOGGER.info("Kit changed, " + bank.getNotes().size() + " notes loaded, " + kitClips.size() + " notes from the kit file");
 	}
 
+	// If the open hi-hat has no sample of its own it is given the closed hi-hat's, as a clip of its own so
+	// that each can choke the other
+	private SampledAudio [] shareHiHat(SampledAudio [] p_Clips, boolean p_OpenFromKit) {
+		if (!p_OpenFromKit && (m_StartClips[HIHAT_OPEN_NOTE] == null) && (p_Clips[HIHAT_CLOSED_NOTE] != null)) {
+			p_Clips[HIHAT_OPEN_NOTE] = p_Clips[HIHAT_CLOSED_NOTE].copyForNote(HIHAT_OPEN_NOTE);
+		}
+		return p_Clips;
+	}
+
+	
+	// Parses groups in the form 42,44,46;49,57
+	private static List<List<Integer>> parseChokeGroups(String p_Groups) {
+		List<List<Integer>> groups = new ArrayList<List<Integer>>();
+		for (String group : p_Groups.split(";")) {
+			List<Integer> notes = new ArrayList<Integer>();
+			for (String note : group.split(",")) {
+				if (note.trim().isEmpty()) {
+					continue;
+				}
+				try {
+					notes.add(Integer.valueOf(note.trim()));
+				} catch (NumberFormatException ex) {
+					LOGGER.warn("Ignoring bad note in chokeGroups: " + note);
+				}
+			}
+			groups.add(notes);
+		}
+		return groups;
+	}
+
+	
+	// Indexed by note, the other notes in the note's choke groups, or null if it has none
+	private static int [][] chokeTable(Collection<List<Integer>> p_Groups) {
+		int [][] chokes = new int [128][];
+		for (List<Integer> group : p_Groups) {
+			for (int note : group) {
+				if ((note < 0) || (note >= chokes.length)) {
+					LOGGER.warn("Ignoring bad note in choke group " + group + ": " + note);
+					continue;
+				}
+				for (int other : group) {
+					if ((other != note) && (other >= 0) && (other < chokes.length)) {
+						int [] choked = (chokes[note] == null) ? new int [0] : chokes[note];
+						chokes[note] = Arrays.copyOf(choked, choked.length + 1);
+						chokes[note][choked.length] = other;
+					}
+				}
+			}
+		}
+		return chokes;
+	}
+
+
+	// The other notes in the note's choke groups are stopped first, so their voices are free sooner
 	public void playNote (int p_Note, int p_Velocity) {
 		try {
-			m_Clips.get(p_Note).play(p_Velocity);
+			SampledAudio [] clips = m_Clips;
+			int [] chokes = m_Chokes[p_Note];
+			if (chokes != null) {
+				for (int note : chokes) {
+					if (clips[note] != null) {
+						clips[note].choke(p_Note);
+					}
+				}
+			}
+			clips[p_Note].play(p_Velocity);
 		} catch (Exception ex) {			
 		}
 	}
 	
 	
 	public void stopNote (int p_Note) {
-		m_Clips.get(p_Note).stop();
+		SampledAudio [] clips = m_Clips;
+		if ((p_Note >= 0) && (p_Note < clips.length) && (clips[p_Note] != null)) {
+			clips[p_Note].stop();
+		}
 	}
 }
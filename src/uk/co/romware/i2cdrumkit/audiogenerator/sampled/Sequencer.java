@@ -0,0 +1,372 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains a class that plays a metronome and simple drum patterns to play along with.  It is  */
+/* run by the mixer thread, not a thread of its own: before each part of a period is mixed, the mixer     */
+/* asks the sequencer to play whatever is due on the frame it is about to mix and how many frames there   */
+/* are until the next step, and mixes only that far before asking again.  So every click and pattern      */
+/* note starts on the exact frame it is due, however late the mixer thread was woken, and the timing      */
+/* only depends on the sample rate.                                                                       */
+/*                                                                                                        */
+/* The live hits are played by the dispatcher thread as before, and the sequencer plays its notes through */
+/* copies of the kit's clips that only it uses, so neither ever waits for the other: they only share the  */
+/* mixer's voices, which are claimed without locking.  The sequenced notes are traced as their note plus  */
+/* SEQUENCED_NOTE, so they can be told apart from the live hits, and are left out of the latency          */
+/* statistics.  The metronome's clicks are made here, as short tones, rather than coming from the kit.    */
+/*                                                                                                        */
+/* It is set up with the system properties:                                                               */
+/*   metronome            - true to play a click on every beat, louder on the first beat of the bar       */
+/*                          (default false)                                                               */
+/*   metronomeVelocity    - how loud the clicks are (default 100)                                         */
+/*   tempo                - beats per minute (default 120)                                                */
+/*   beatsPerBar          - (default 4)                                                                   */
+/*   pattern              - the notes to play, as one track per note separated by semicolons, each the    */
+/*                          note, a colon and one character per step: x plays the note at full velocity,  */
+/*                          1 to 9 more softly, and anything else is a rest, e.g.                         */
+/*                          36:x.......x.......;38:....x.......x...;42:x.x.x.x.x.x.x.x.                   */
+/*                          Spaces and | are ignored.  Each track repeats on its own, from the first bar  */
+/*   patternStepsPerBeat  - how many steps there are to a beat (default 4)                                */
+/* and all of them but patternStepsPerBeat can be changed while playing through JMX, as                   */
+/* uk.co.romware.i2cdrumkit:type=Sequencer.  Changes take effect at the start of the next bar, so the     */
+/* beat is never broken part way through a bar.  A value that cannot be used is logged and the default is */
+/* played instead.  The sequencer is only created when metronome or pattern is set, so that nothing is    */
+/* added to the mixer thread's work otherwise.                                                            */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.audiogenerator.sampled;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.ObjectName;
+import javax.sound.sampled.AudioFormat;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.romware.i2cdrumkit.audiogenerator.sampled.IAudioOutput.IDataLineHandler;
+
+public class Sequencer implements SequencerMBean {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(Sequencer.class);
+
+	public final static int SEQUENCED_NOTE = 128;
+	// The clicks are not notes, so they are given a number no note can have
+	private final static int CLICK_NOTE = -1;
+
+	private final static double DEFAULT_TEMPO = 120;
+	private final static int DEFAULT_BEATS_PER_BAR = 4;
+
+	private final static int CLICK_MILLISECONDS = 30;
+	private final static double CLICK_FREQUENCY = 1000;
+	private final static double ACCENT_FREQUENCY = 1500;
+
+	// What is played, which is replaced as a whole and only picked up by the mixer thread at the start of
+	// a bar
+	private static class Settings {
+		private double m_Tempo;
+		private int m_BeatsPerBar;
+		private int m_StepsPerBeat;
+		private boolean m_Metronome;
+		private int m_MetronomeVelocity;
+		private String m_Pattern;
+		// For each track, the note and the velocity of each step, 0 for a rest
+		private int [] m_TrackNotes;
+		private int [][] m_TrackSteps;
+
+		private Settings copy() {
+			Settings copy = new Settings();
+			copy.m_Tempo = m_Tempo;
+			copy.m_BeatsPerBar = m_BeatsPerBar;
+			copy.m_StepsPerBeat = m_StepsPerBeat;
+			copy.m_Metronome = m_Metronome;
+			copy.m_MetronomeVelocity = m_MetronomeVelocity;
+			copy.m_Pattern = m_Pattern;
+			copy.m_TrackNotes = m_TrackNotes;
+			copy.m_TrackSteps = m_TrackSteps;
+			return copy;
+		}
+	}
+
+	private IAudioOutput m_Output;
+	private float m_FrameRate;
+	private ByteBuffer m_Click;
+	private ByteBuffer m_AccentClick;
+	private volatile SampledAudio [] m_Clips = new SampledAudio [128];
+	private volatile Settings m_Next;
+
+	// Only used by the mixer thread
+	private Settings m_Settings;
+	private long m_Bar = -1;
+	private long m_BarFrame;
+	private int m_Step;
+	private long m_StepFrame;
+	private double m_FramesPerStep;
+
+
+	Sequencer(AudioFormat p_Format, IAudioOutput p_Output) {
+		m_Output = p_Output;
+		m_FrameRate = p_Format.getFrameRate();
+		m_Click = createClick(p_Format, CLICK_FREQUENCY);
+		m_AccentClick = createClick(p_Format, ACCENT_FREQUENCY);
+
+		// A bad setting is logged and the default used, so that the drums can still be played
+		Settings settings = new Settings();
+		settings.m_Tempo = DEFAULT_TEMPO;
+		String tempo = System.getProperty("tempo");
+		if (tempo != null) {
+			try {
+				settings.m_Tempo = Double.parseDouble(tempo);
+				checkTempo(settings.m_Tempo);
+			} catch (IllegalArgumentException ex) {
+				LOGGER.error("Invalid value for tempo: " + tempo + ", using " + DEFAULT_TEMPO);
+				settings.m_Tempo = DEFAULT_TEMPO;
+			}
+		}
+		settings.m_BeatsPerBar = Integer.getInteger("beatsPerBar", DEFAULT_BEATS_PER_BAR);
+		try {
+			checkBeatsPerBar(settings.m_BeatsPerBar);
+		} catch (IllegalArgumentException ex) {
+			LOGGER.error("Invalid value for beatsPerBar: " + ex.getMessage() + ", using " + DEFAULT_BEATS_PER_BAR);
+			settings.m_BeatsPerBar = DEFAULT_BEATS_PER_BAR;
+		}
+		settings.m_StepsPerBeat = Math.max(1, Integer.getInteger("patternStepsPerBeat", 4));
+		settings.m_Metronome = Boolean.getBoolean("metronome");
+		settings.m_MetronomeVelocity = Integer.getInteger("metronomeVelocity", 100);
+		try {
+			setPattern(settings, System.getProperty("pattern", ""));
+		} catch (IllegalArgumentException ex) {
+			LOGGER.error("Invalid value for pattern: " + ex.getMessage() + ", no pattern will be played");
+			setPattern(settings, "");
+		}
+		m_Next = settings;
+
+		LOGGER.info("Sequencer playing " + describe(settings));
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("uk.co.romware.i2cdrumkit:type=Sequencer"));
+		} catch (Exception ex) {
+			LOGGER.error("Failed to register the sequencer", ex);
+		}
+	}
+
+
+	// Whether the system properties ask for a metronome or a pattern, without which there is no need for a
+	// sequencer
+	static boolean isWanted() {
+		return Boolean.getBoolean("metronome") || !System.getProperty("pattern", "").trim().isEmpty();
+	}
+
+
+	// Called whenever the kit changes, with the clips the live hits play.  The sequencer takes copies of
+	// its own
+	void setClips(SampledAudio [] p_Clips) {
+		SampledAudio [] clips = new SampledAudio [p_Clips.length];
+		for (int note=0; note<p_Clips.length; note++) {
+			if (p_Clips[note] != null) {
+				clips[note] = p_Clips[note].copyForNote(SEQUENCED_NOTE + note);
+			}
+		}
+		m_Clips = clips;
+	}
+
+
+	// Called from the mixer thread.  Plays everything due on p_Frame and returns how many frames, from 1 to
+	// p_MaxFrames, can be mixed before anything else is due
+	int play(long p_Frame, int p_MaxFrames) {
+		if (m_Settings == null) {
+			// The first bar starts on the first frame mixed after the sequencer was set up
+			m_StepFrame = p_Frame;
+		}
+		while (m_StepFrame <= p_Frame) {
+			if (m_Step == 0) {
+				startBar();
+			}
+			playStep();
+			m_Step++;
+			if (m_Step == m_Settings.m_BeatsPerBar * m_Settings.m_StepsPerBeat) {
+				m_Step = 0;
+			}
+			// Each step is placed from the start of the bar, so the rounding never adds up
+			m_StepFrame = m_BarFrame + Math.round(((m_Step == 0) ? m_Settings.m_BeatsPerBar * m_Settings.m_StepsPerBeat : m_Step) * m_FramesPerStep);
+		}
+		return (int)Math.max(1, Math.min(p_MaxFrames, m_StepFrame - p_Frame));
+	}
+
+
+	private void startBar() {
+		m_Bar++;
+		m_BarFrame = m_StepFrame;
+		m_Settings = m_Next;
+		m_FramesPerStep = (m_FrameRate * 60.0) / (m_Settings.m_Tempo * m_Settings.m_StepsPerBeat);
+	}
+
+
+	private void playStep() {
+		Settings settings = m_Settings;
+		if (settings.m_Metronome && ((m_Step % settings.m_StepsPerBeat) == 0)) {
+			IDataLineHandler handler = m_Output.getHandler();
+			if (handler != null) {
+				boolean accent = (m_Step == 0);
+				handler.play(accent ? m_AccentClick : m_Click, accent ? 127 : settings.m_MetronomeVelocity, CLICK_NOTE);
+			}
+		}
+		long step = (m_Bar * settings.m_BeatsPerBar * settings.m_StepsPerBeat) + m_Step;
+		SampledAudio [] clips = m_Clips;
+		for (int track=0; track<settings.m_TrackNotes.length; track++) {
+			int [] steps = settings.m_TrackSteps[track];
+			int velocity = steps[(int)(step % steps.length)];
+			SampledAudio clip = clips[settings.m_TrackNotes[track]];
+			if ((velocity > 0) && (clip != null)) {
+				clip.play(velocity);
+			}
+		}
+	}
+
+
+	// A short tone that dies away quickly
+	private static ByteBuffer createClick(AudioFormat p_Format, double p_Frequency) {
+		int frames = (int)((p_Format.getFrameRate() * CLICK_MILLISECONDS) / 1000);
+		int channels = p_Format.getChannels();
+		byte [] data = new byte [frames * channels * 2];
+		for (int frame=0, pos=0; frame<frames; frame++) {
+			double level = Math.exp((-6.0 * frame) / frames) * Math.sin((2 * Math.PI * p_Frequency * frame) / p_Format.getFrameRate());
+			for (int channel=0; channel<channels; channel++, pos+=2) {
+				Pcm16.putSample(data, pos, (int)(level * Short.MAX_VALUE * 0.7), p_Format.isBigEndian());
+			}
+		}
+		return ByteBuffer.wrap(data).asReadOnlyBuffer().order(p_Format.isBigEndian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+	}
+
+
+	private static void setPattern(Settings p_Settings, String p_Pattern) {
+		List<int []> tracks = new ArrayList<int []>();
+		List<Integer> notes = new ArrayList<Integer>();
+		for (String track : p_Pattern.split(";")) {
+			if (track.trim().isEmpty()) {
+				continue;
+			}
+			String [] parts = track.split(":", 2);
+			int note;
+			try {
+				note = Integer.parseInt(parts[0].trim());
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("Bad note in pattern track " + track);
+			}
+			if ((note < 0) || (note > 127) || (parts.length < 2)) {
+				throw new IllegalArgumentException("Bad pattern track " + track);
+			}
+			String stepText = parts[1].replace(" ", "").replace("|", "");
+			if (stepText.isEmpty()) {
+				throw new IllegalArgumentException("Pattern track " + track + " has no steps");
+			}
+			int [] steps = new int [stepText.length()];
+			for (int i=0; i<steps.length; i++) {
+				char c = stepText.charAt(i);
+				if ((c == 'x') || (c == 'X')) {
+					steps[i] = 127;
+				} else if ((c >= '1') && (c <= '9')) {
+					steps[i] = ((c - '0') * 127) / 9;
+				}
+			}
+			notes.add(note);
+			tracks.add(steps);
+		}
+		p_Settings.m_Pattern = p_Pattern;
+		p_Settings.m_TrackNotes = new int [notes.size()];
+		p_Settings.m_TrackSteps = tracks.toArray(new int [tracks.size()][]);
+		for (int track=0; track<notes.size(); track++) {
+			p_Settings.m_TrackNotes[track] = notes.get(track);
+		}
+	}
+
+
+	private static void check(Settings p_Settings) {
+		checkTempo(p_Settings.m_Tempo);
+		checkBeatsPerBar(p_Settings.m_BeatsPerBar);
+	}
+
+
+	private static void checkTempo(double p_Tempo) {
+		if ((p_Tempo < 20) || (p_Tempo > 400)) {
+			throw new IllegalArgumentException("The tempo must be from 20 to 400, not " + p_Tempo);
+		}
+	}
+
+
+	private static void checkBeatsPerBar(int p_BeatsPerBar) {
+		if ((p_BeatsPerBar < 1) || (p_BeatsPerBar > 32)) {
+			throw new IllegalArgumentException("There must be from 1 to 32 beats to a bar, not " + p_BeatsPerBar);
+		}
+	}
+
+
+	private static String describe(Settings p_Settings) {
+		return p_Settings.m_Tempo + " bpm, " + p_Settings.m_BeatsPerBar + " beats to the bar" + (p_Settings.m_Metronome ? ", metronome" : "")
+				+ (p_Settings.m_Pattern.isEmpty() ? "" : ", pattern " + p_Settings.m_Pattern);
+	}
+
+
+	// Every change is made to a copy of the settings due to be picked up next, which then replaces them
+	private synchronized void change(Settings p_Settings) {
+		check(p_Settings);
+		m_Next = p_Settings;
+		LOGGER.info("From the next bar, the sequencer will play " + describe(p_Settings));
+	}
+
+
+	public double getTempo() {
+		return m_Next.m_Tempo;
+	}
+
+
+	public synchronized void setTempo(double p_Tempo) {
+		Settings settings = m_Next.copy();
+		settings.m_Tempo = p_Tempo;
+		change(settings);
+	}
+
+
+	public int getBeatsPerBar() {
+		return m_Next.m_BeatsPerBar;
+	}
+
+
+	public synchronized void setBeatsPerBar(int p_BeatsPerBar) {
+		Settings settings = m_Next.copy();
+		settings.m_BeatsPerBar = p_BeatsPerBar;
+		change(settings);
+	}
+
+
+	public boolean isMetronome() {
+		return m_Next.m_Metronome;
+	}
+
+
+	public synchronized void setMetronome(boolean p_Metronome) {
+		Settings settings = m_Next.copy();
+		settings.m_Metronome = p_Metronome;
+		change(settings);
+	}
+
+
+	public String getPattern() {
+		return m_Next.m_Pattern;
+	}
+
+
+	public synchronized void setPattern(String p_Pattern) {
+		Settings settings = m_Next.copy();
+		setPattern(settings, (p_Pattern == null) ? "" : p_Pattern);
+		change(settings);
+	}
+
+
+	public long getBar() {
+		return m_Bar;
+	}
+}
@@ -0,0 +1,21 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains the JMX interface for the sequencer, so the metronome and patterns can be changed   */
+/* while playing.  Every change takes effect at the start of the next bar                                 */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.audiogenerator.sampled;
+
+public interface SequencerMBean {
+	public double getTempo();
+	public void setTempo(double p_Tempo);
+	public int getBeatsPerBar();
+	public void setBeatsPerBar(int p_BeatsPerBar);
+	public boolean isMetronome();
+	public void setMetronome(boolean p_Metronome);
+	public String getPattern();
+	public void setPattern(String p_Pattern);
+	public long getBar();
+}
@@ -0,0 +1,69 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains a class that converts a MIDI velocity into a gain that is applied to the audio      */
+/* samples themselves.  On the Raspberry PI, the MASTER_GAIN control of a SourceDataLine is ignored, so   */
+/* the only way to play a drum more quietly is to scale the samples before they are sent to the line.     */
+/*                                                                                                        */
+/* The gains are worked out once, when the curve is created, as fixed point numbers where UNITY is full   */
+/* volume, so playing a note only needs a table lookup and an integer multiply per sample.                */
+/*                                                                                                        */
+/* The shape of the curve is set with the system properties:                                              */
+/*   velocityCurve  - the power the velocity (as a fraction of 127) is raised to.  1 is linear, larger    */
+/*                    values make soft hits quieter (default 2)                                           */
+/*   velocityFloor  - the gain of the softest possible hit, as a fraction of full volume (default 0.1)    */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.audiogenerator.sampled;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class VelocityCurve {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(VelocityCurve.class);
+
+	public final static int UNITY_SHIFT = 15;
+	public final static int UNITY = 1 << UNITY_SHIFT;
+
+	private final static double DEFAULT_CURVE = 2.0;
+	private final static double DEFAULT_FLOOR = 0.1;
+
+	private int [] m_Gains = new int [128];
+
+	public VelocityCurve() {
+		this(getDoubleProperty("velocityCurve", DEFAULT_CURVE), getDoubleProperty("velocityFloor", DEFAULT_FLOOR));
+	}
+
+	public VelocityCurve(double p_Curve, double p_Floor) {
+		for (int velocity=0; velocity<m_Gains.length; velocity++) {
+			double gain = p_Floor + ((1.0 - p_Floor) * Math.pow(velocity / 127.0, p_Curve));
+			m_Gains[velocity] = (int)Math.round(gain * UNITY);
+		}
+		LOGGER.info("Velocity curve " + p_Curve + " with floor " + p_Floor);
+	}
+
+	public int getGain(int p_Velocity) {
+		if (p_Velocity < 0) {
+			return m_Gains[0];
+		}
+		if (p_Velocity > 127) {
+			return m_Gains[127];
+		}
+		return m_Gains[p_Velocity];
+	}
+
+	private static double getDoubleProperty(String p_Name, double p_Default) {
+		String value = System.getProperty(p_Name);
+		if (value == null) {
+			return p_Default;
+		}
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException ex) {
+			LOGGER.error("Invalid value for " + p_Name + ": " + value);
+			return p_Default;
+		}
+	}
+}
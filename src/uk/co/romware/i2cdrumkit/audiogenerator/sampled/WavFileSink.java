@@ -0,0 +1,87 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains a class that writes 16 bit PCM audio to a WAV file through a FileChannel, for       */
+/* OfflineRenderer and AudioCapture.  The sizes in the header are only known at the end, so they are      */
+/* filled in when the file is closed.                                                                     */
+/*                                                                                                        */
+/* The header is padded with a JUNK chunk, which every WAV reader skips, so that the audio starts         */
+/* DATA_ALIGNMENT bytes into the file.  Writes of a multiple of DATA_ALIGNMENT bytes then always fall on  */
+/* whole pages of the file, so the operating system never has to read a page back in to change part of    */
+/* it.  A WAV file is always little-endian, so big-endian audio is swapped as it is written.              */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.audiogenerator.sampled;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import javax.sound.sampled.AudioFormat;
+
+class WavFileSink implements OfflineRenderer.IAudioSink {
+
+	final static int DATA_ALIGNMENT = 4096;
+
+	// RIFF header, fmt chunk, JUNK chunk header and data chunk header
+	private final static int CHUNKS_SIZE = 12 + 24 + 8 + 8;
+
+	private FileChannel m_Channel;
+	private AudioFormat m_Format;
+	private long m_DataBytes;
+
+
+	WavFileSink(File p_File, AudioFormat p_Format) throws IOException {
+		m_Channel = FileChannel.open(p_File.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		m_Format = p_Format;
+		writeHeader();
+	}
+
+
+	private void writeHeader() throws IOException {
+		int channels = m_Format.getChannels();
+		int rate = (int)m_Format.getFrameRate();
+		ByteBuffer header = ByteBuffer.allocate(DATA_ALIGNMENT).order(ByteOrder.LITTLE_ENDIAN);
+		header.put("RIFF".getBytes(StandardCharsets.US_ASCII)).putInt((int)Math.min(0xffffffffL, m_DataBytes + DATA_ALIGNMENT - 8)).put("WAVE".getBytes(StandardCharsets.US_ASCII));
+		header.put("fmt ".getBytes(StandardCharsets.US_ASCII)).putInt(16).putShort((short)1).putShort((short)channels).putInt(rate)
+			.putInt(rate * m_Format.getFrameSize()).putShort((short)m_Format.getFrameSize()).putShort((short)16);
+		header.put("JUNK".getBytes(StandardCharsets.US_ASCII)).putInt(DATA_ALIGNMENT - CHUNKS_SIZE);
+		header.position(DATA_ALIGNMENT - 8);
+		header.put("data".getBytes(StandardCharsets.US_ASCII)).putInt((int)Math.min(0xffffffffL, m_DataBytes));
+		header.flip();
+		while (header.hasRemaining()) {
+			m_Channel.write(header, header.position());
+		}
+	}
+
+
+	// Big-endian audio is swapped in place
+	public void write(byte [] p_Audio, int p_Offset, int p_Length) throws IOException {
+		if (m_Format.isBigEndian()) {
+			for (int i=p_Offset; i+1<p_Offset+p_Length; i+=2) {
+				byte high = p_Audio[i];
+				p_Audio[i] = p_Audio[i + 1];
+				p_Audio[i + 1] = high;
+			}
+		}
+		ByteBuffer audio = ByteBuffer.wrap(p_Audio, p_Offset, p_Length);
+		while (audio.hasRemaining()) {
+			m_Channel.write(audio, DATA_ALIGNMENT + m_DataBytes + (audio.position() - p_Offset));
+		}
+		m_DataBytes = m_DataBytes + p_Length;
+	}
+
+
+	public void close() throws IOException {
+		try {
+			writeHeader();
+		} finally {
+			m_Channel.close();
+		}
+	}
+}
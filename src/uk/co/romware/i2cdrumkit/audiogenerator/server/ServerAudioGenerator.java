@@ -6,100 +6,278 @@
 /* implementation to send the commands to a synthesizer running on the PC.  Unfortunately, the delay      */
 /* was unacceptable                                                                                       */
 /*                                                                                                        */
+/* Part of the delay was that every note was written to every client in turn, with a blocking write and   */
+/* a flush, so one slow client held up every hit.  Now playNote() only puts the note into a small ring    */
+/* for each client and wakes a single selector thread, which does all the socket work without blocking.   */
+/* Each note is sent as a 16 byte big-endian frame:                                                       */
+/*   int   sequence   - counts up by one for every note offered to this client, so gaps show lost notes   */
+/*   long  timestamp  - when the note was played, in microseconds since 1970                              */
+/*   byte  note                                                                                           */
+/*   byte  velocity                                                                                       */
+/*   short unused     - always 0                                                                          */
+/* See tools.ServerClient for a client that reads them.                                                   */
+/*                                                                                                        */
+/* The server is set up with the system properties:                                                       */
+/*   serverPort        - the port to listen on                                                            */
+/*   serverQueueSize   - the number of notes that can be waiting for each client (default 64)             */
+/*   serverSlowClient  - what to do when a client falls that far behind: "skip" throws away its oldest    */
+/*                       waiting notes (the default), "drop" disconnects it                               */
+/*                                                                                                        */
 /* Use at your own risk                                                                                   */
 /*                                                                                                        */
 /**********************************************************************************************************/
 package uk.co.romware.i2cdrumkit.audiogenerator.server;
 
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.HashSet;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import uk.co.romware.i2cdrumkit.audiogenerator.IAudioGenerator;
-import uk.co.romware.i2cdrumkit.audiogenerator.midi.MidiAudioGenerator;
+import uk.co.romware.i2cdrumkit.midigenerator.NoteEventRing;
+import uk.co.romware.i2cdrumkit.midigenerator.NoteEventRing.INoteEventConsumer;
+import uk.co.romware.i2cdrumkit.midigenerator.NoteEventRing.OverflowPolicy;
+import uk.co.romware.i2cdrumkit.threads.ThreadManager;
+import uk.co.romware.i2cdrumkit.threads.ThreadRole;
 
 public class ServerAudioGenerator implements IAudioGenerator {
 
-	private class Client {
-		private Socket m_Socket;
-		private ObjectOutputStream m_Stream;
-		
-		public Client(Socket p_Socket) throws IOException {
-			m_Socket = p_Socket;
-			m_Stream = new ObjectOutputStream(p_Socket.getOutputStream());
-			m_Stream.flush();
+	public final static int FRAME_SIZE = 16;
+
+	private final static int DEFAULT_QUEUE_SIZE = 64;
+	// The most frames put into a client's buffer at a time
+	private final static int FRAMES_PER_WRITE = 16;
+
+	private class Client implements INoteEventConsumer {
+		private SocketChannel m_Channel;
+		private SelectionKey m_Key;
+		private NoteEventRing m_Ring;
+		private ByteBuffer m_Buffer = ByteBuffer.allocateDirect(FRAME_SIZE * FRAMES_PER_WRITE);
+		private long m_ReportedDropped;
+		private long m_ReportedTime;
+		private String m_Name;
+
+		public Client(SocketChannel p_Channel) throws IOException {
+			m_Channel = p_Channel;
+			m_Name = String.valueOf(p_Channel.getRemoteAddress());
+			m_Channel.configureBlocking(false);
+			m_Channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			m_Ring = new NoteEventRing(m_QueueSize, OverflowPolicy.DROP_OLDEST);
+			m_Buffer.flip();
+			m_Key = m_Channel.register(m_Selector, SelectionKey.OP_READ, this);
 		}
-		
-		public boolean write(int p_Note, int p_Velocity) {
+
+		// Called from the selector thread.  Writes as much as the socket will take without blocking and
+		// returns false if the client has gone
+		public boolean write() {
 			try {
-				m_Stream.writeInt(p_Note);
-				m_Stream.writeInt(p_Velocity);
-				m_Stream.flush();
+				while (true) {
+					if (!m_Buffer.hasRemaining()) {
+						m_Buffer.clear();
+						m_Ring.drain(this, FRAMES_PER_WRITE);
+						m_Buffer.flip();
+						if (!m_Buffer.hasRemaining()) {
+							m_Key.interestOps(SelectionKey.OP_READ);
+							return true;
+						}
+					}
+					m_Channel.write(m_Buffer);
+					if (m_Buffer.hasRemaining()) {
+						// The socket is full, so carry on when the selector says it can take more
+						m_Key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						return true;
+					}
+				}
+			} catch (IOException ex) {
+				LOGGER.info("Lost connection to " + this + ": " + ex.getMessage());
+				return false;
+			}
+		}
+
+		public void noteEvent(int p_Note, int p_Velocity, long p_NanoTime, long p_Sequence) {
+			m_Buffer.putInt((int)p_Sequence);
+			m_Buffer.putLong((m_EpochNanos + p_NanoTime) / 1000);
+			m_Buffer.put((byte)p_Note);
+			m_Buffer.put((byte)p_Velocity);
+			m_Buffer.putShort((short)0);
+		}
+
+		// Called from the selector thread.  Returns false if the client has fallen too far behind and the
+		// policy is to drop it
+		public boolean checkDropped() {
+			long dropped = m_Ring.getDropped();
+			if (dropped == m_ReportedDropped) {
 				return true;
-			} catch (Exception ex) {
+			}
+			if (m_DropSlowClients) {
+				LOGGER.warn("Disconnecting " + this + " because it could not keep up");
 				return false;
 			}
+			// This is only reported once a second, so a client that stays behind does not flood the log
+			long now = System.nanoTime();
+			if (now - m_ReportedTime >= 1000000000L) {
+				LOGGER.warn((dropped - m_ReportedDropped) + " notes skipped for " + this + " because it could not keep up (" + dropped + " in total)");
+				m_ReportedDropped = dropped;
+				m_ReportedTime = now;
+			}
+			return true;
+		}
+
+		public void close() {
+			m_Key.cancel();
+			try {
+				m_Channel.close();
+			} catch (IOException ex) {
+			}
 		}
-		
-		public boolean isClosed() {
-			return m_Socket.isClosed();
+
+		public String toString() {
+			return m_Name;
 		}
 	}
-	private final static Logger LOGGER = LoggerFactory.getLogger(MidiAudioGenerator.class);
-	
-	private ServerSocket m_ServerSocket;
-	private Set<Client> m_ClientSockets = new HashSet<Client>();
-	
+	private final static Logger LOGGER = LoggerFactory.getLogger(ServerAudioGenerator.class);
+
+	private Selector m_Selector;
+	private ServerSocketChannel m_ServerChannel;
+	private int m_QueueSize;
+	private boolean m_DropSlowClients;
+	// Added to System.nanoTime() to give nanoseconds since 1970
+	private long m_EpochNanos;
+	// The array is replaced, rather than changed, when a client comes or goes, so playNote() can read it
+	// without locking.  Only the selector thread replaces it
+	private volatile Client [] m_Clients = new Client [0];
+	private AtomicBoolean m_WakeupPending = new AtomicBoolean();
+	private ByteBuffer m_ReadBuffer = ByteBuffer.allocateDirect(256);
+
 	public ServerAudioGenerator() throws IOException {
-		m_ServerSocket = new ServerSocket(Integer.getInteger("serverPort"));
-		LOGGER.info("Listening on port " + Integer.getInteger("serverPort"));
-		Thread t = new Thread(new Runnable() {
+		int port = Integer.getInteger("serverPort");
+		m_QueueSize = Integer.getInteger("serverQueueSize", DEFAULT_QUEUE_SIZE);
+		m_DropSlowClients = "drop".equals(System.getProperty("serverSlowClient"));
+		m_EpochNanos = System.currentTimeMillis() * 1000000L - System.nanoTime();
+
+		m_Selector = Selector.open();
+		m_ServerChannel = ServerSocketChannel.open();
+		m_ServerChannel.bind(new InetSocketAddress(port));
+		m_ServerChannel.configureBlocking(false);
+		m_ServerChannel.register(m_Selector, SelectionKey.OP_ACCEPT);
+		LOGGER.info("Listening on port " + port);
+
+		Thread t = ThreadManager.newThread(ThreadRole.NETWORK, "Server Socket Selector", new Runnable() {
 			public void run() {
 				while (true) {
 					try {
-						LOGGER.info("Waiting for connection");
-						Socket socket = m_ServerSocket.accept();
-						LOGGER.info("Got connection");
-						
-						synchronized (m_ClientSockets) {
-							m_ClientSockets.add(new Client(socket));
-							LOGGER.info("Added connection");
-						}
+						select();
 					} catch (Exception ex) {
+						LOGGER.error("Server failed", ex);
 					}
 				}
 			}
 		});
-		t.setName("Server Socket Listener");
 		t.start();
 	}
 
+	// Called from the thread playing the notes.  This never blocks, whatever the clients are doing
 	@Override
 	public void playNote(int p_Note, int p_Velocity) {
-		synchronized(m_ClientSockets) {
-			for (Iterator<Client> it = m_ClientSockets.iterator(); it.hasNext();) {
-			    Client client = it.next();
-			    if (client.isClosed()) {
-			    	it.remove();
-			    	continue;
-			    }
-			
-			    if (!client.write(p_Note, p_Velocity)) {
-			    	it.remove();
-			    }
+		Client [] clients = m_Clients;
+		if (clients.length == 0) {
+			return;
+		}
+		long now = System.nanoTime();
+		for (Client client : clients) {
+			client.m_Ring.offer(p_Note, p_Velocity, now);
+		}
+		if (m_WakeupPending.compareAndSet(false, true)) {
+			m_Selector.wakeup();
+		}
+	}
+
+
+	public void stopNote (int p_Note) {
+	}
+
+
+	private void select() throws IOException {
+		m_Selector.select();
+		m_WakeupPending.set(false);
+
+		for (Iterator<SelectionKey> it = m_Selector.selectedKeys().iterator(); it.hasNext();) {
+			SelectionKey key = it.next();
+			it.remove();
+			if (!key.isValid()) {
+				continue;
+			}
+			if (key.isAcceptable()) {
+				accept();
+				continue;
+			}
+			Client client = (Client)key.attachment();
+			if (key.isReadable() && !read(client)) {
+				removeClient(client);
+			}
+		}
+
+		// Anything played since the last time round is written now.  A client that is already waiting for
+		// its socket to take more just has its notes left in its ring
+		for (Client client : m_Clients) {
+			if (!client.checkDropped() || !client.write()) {
+				removeClient(client);
 			}
 		}
 	}
-	
-	
-	public void stopNote (int p_Note) {		
+
+
+	private void accept() {
+		try {
+			SocketChannel channel = m_ServerChannel.accept();
+			if (channel == null) {
+				return;
+			}
+			Client client = new Client(channel);
+			Client [] clients = Arrays.copyOf(m_Clients, m_Clients.length + 1);
+			clients[m_Clients.length] = client;
+			m_Clients = clients;
+			LOGGER.info("Added connection from " + client);
+		} catch (IOException ex) {
+			LOGGER.error("Failed to accept connection", ex);
+		}
+	}
+
+
+	// The clients do not send anything, but reading shows when they have gone
+	private boolean read(Client p_Client) {
+		try {
+			m_ReadBuffer.clear();
+			return p_Client.m_Channel.read(m_ReadBuffer) >= 0;
+		} catch (IOException ex) {
+			return false;
+		}
+	}
+
+
+	private void removeClient(Client p_Client) {
+		p_Client.close();
+		Client [] clients = new Client [m_Clients.length];
+		int count = 0;
+		for (Client client : m_Clients) {
+			if (client != p_Client) {
+				clients[count++] = client;
+			}
+		}
+		if (count < m_Clients.length) {
+			m_Clients = Arrays.copyOf(clients, count);
+			LOGGER.info("Removed connection from " + p_Client);
+		}
 	}
 
 }
@@ -0,0 +1,495 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains a class that reads the drum kits from a SoundFont 2 (.sf2) file and renders each    */
+/* drum note as raw 16 bit PCM audio, so that SampledAudioGenerator can play General MIDI drums from any  */
+/* SoundFont without the Java synthesizer.                                                                */
+/*                                                                                                        */
+/* Only the parts of the file that are needed are read: the preset, instrument and sample headers (the    */
+/* "pdta" chunk, which is small), then, for each note asked for, just the samples that the drum kit plays */
+/* for that note.  A 32MB General MIDI SoundFont is almost all melodic samples, which are never read.     */
+/*                                                                                                        */
+/* Drum kits are the presets in bank 128.  For each note, every zone of the kit that covers the note at   */
+/* full velocity is rendered once and mixed, with the zone's tuning, pitch following the key, attenuation */
+/* pan and volume envelope (attack, hold and decay to the sustain level, so a hi-hat recorded long but    */
+/* cut short by its envelope is stored short).  The sample is played once from start to end.  Loops,      */
+/* filters, modulators and LFOs are ignored, as a drum hit is a single sound that dies away by itself.    */
+/* The softer velocities are made by SampleRenderer, as for any other sample.                             */
+/*                                                                                                        */
+/* The file format is described in the SoundFont 2.04 specification.  Everything in it is little-endian   */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.audiogenerator.sf2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.romware.i2cdrumkit.audiogenerator.sampled.Pcm16;
+
+public class SoundFont {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(SoundFont.class);
+
+	// The bank that holds the drum kits
+	public final static int DRUM_BANK = 128;
+
+	// The generators that are used.  Every other generator is ignored
+	private final static int START_OFFSET = 0;
+	private final static int END_OFFSET = 1;
+	private final static int START_COARSE_OFFSET = 4;
+	private final static int END_COARSE_OFFSET = 12;
+	private final static int PAN = 17;
+	private final static int ATTACK = 34;
+	private final static int HOLD = 35;
+	private final static int DECAY = 36;
+	private final static int SUSTAIN = 37;
+	private final static int INSTRUMENT = 41;
+	private final static int KEY_RANGE = 43;
+	private final static int VELOCITY_RANGE = 44;
+	private final static int ATTENUATION = 48;
+	private final static int COARSE_TUNE = 51;
+	private final static int FINE_TUNE = 52;
+	private final static int SAMPLE_ID = 53;
+	private final static int SCALE_TUNING = 56;
+	private final static int ROOT_KEY = 58;
+	private final static int GENERATORS = 61;
+
+	// The envelope times are in timecents, where -12000 is about 1ms.  A preset's generators are added to
+	// those of its instruments, so they default to 0
+	private final static int [] DEFAULTS = new int [GENERATORS];
+	private final static int [] PRESET_DEFAULTS = new int [GENERATORS];
+	static {
+		PRESET_DEFAULTS[KEY_RANGE] = 127 << 8;
+		PRESET_DEFAULTS[VELOCITY_RANGE] = 127 << 8;
+		DEFAULTS[ATTACK] = -12000;
+		DEFAULTS[HOLD] = -12000;
+		DEFAULTS[DECAY] = -12000;
+		DEFAULTS[KEY_RANGE] = 127 << 8;
+		DEFAULTS[VELOCITY_RANGE] = 127 << 8;
+		DEFAULTS[SCALE_TUNING] = 100;
+		DEFAULTS[ROOT_KEY] = -1;
+	}
+
+	// The envelope is at full attenuation, i.e. silent, at 100dB
+	private final static int SILENT_CENTIBELS = 1000;
+
+	private File m_File;
+	private long m_SampleDataPosition;
+	private long m_SampleDataLength;
+
+	// From the preset headers.  Each array has a terminating entry, so the zones of preset i are
+	// m_PresetBags[i] to m_PresetBags[i+1]-1
+	private String [] m_PresetNames;
+	private int [] m_Presets;
+	private int [] m_Banks;
+	private int [] m_PresetBags;
+	private int [] m_PresetBagGenerators;
+	private int [] m_PresetGeneratorTypes;
+	private short [] m_PresetGeneratorAmounts;
+
+	private int [] m_InstrumentBags;
+	private int [] m_InstrumentBagGenerators;
+	private int [] m_InstrumentGeneratorTypes;
+	private short [] m_InstrumentGeneratorAmounts;
+
+	// From the sample headers.  The start and end are in samples from the start of the sample data
+	private long [] m_SampleStarts;
+	private long [] m_SampleEnds;
+	private int [] m_SampleRates;
+	private int [] m_SamplePitches;
+	private int [] m_SampleCorrections;
+
+
+	private SoundFont(File p_File) {
+		m_File = p_File;
+	}
+
+
+	// Reads the headers of a SoundFont file.  The samples are not read until they are rendered
+	public static SoundFont read(File p_File) throws IOException {
+		SoundFont font = new SoundFont(p_File);
+		FileChannel channel = FileChannel.open(p_File.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer riff = readFully(channel, 0, 12);
+			if ((riff.getInt(0) != fourCC("RIFF")) || (riff.getInt(8) != fourCC("sfbk"))) {
+				throw new IOException(p_File + " is not a SoundFont 2 file");
+			}
+			ByteBuffer pdta = null;
+			long position = 12;
+			long end = Math.min(channel.size(), 8 + (riff.getInt(4) & 0xffffffffL));
+			while (position + 12 <= end) {
+				ByteBuffer header = readFully(channel, position, 12);
+				long length = header.getInt(4) & 0xffffffffL;
+				if ((header.getInt(0) == fourCC("LIST")) && (header.getInt(8) == fourCC("sdta"))) {
+					font.findSampleData(channel, position + 12, position + 8 + length);
+				} else if ((header.getInt(0) == fourCC("LIST")) && (header.getInt(8) == fourCC("pdta"))) {
+					pdta = readFully(channel, position + 12, (int)(length - 4));
+				}
+				position = position + 8 + length + (length & 1);
+			}
+			if ((pdta == null) || (font.m_SampleDataLength == 0)) {
+				throw new IOException(p_File + " has no samples or no presets");
+			}
+			font.readPresetData(pdta);
+		} finally {
+			channel.close();
+		}
+		LOGGER.info("Read " + (font.m_Presets.length - 1) + " presets and " + (font.m_SampleStarts.length - 1) + " sample headers from " + p_File);
+		return font;
+	}
+
+
+	private void findSampleData(FileChannel p_Channel, long p_Position, long p_End) throws IOException {
+		while (p_Position + 8 <= p_End) {
+			ByteBuffer header = readFully(p_Channel, p_Position, 8);
+			long length = header.getInt(4) & 0xffffffffL;
+			if (header.getInt(0) == fourCC("smpl")) {
+				m_SampleDataPosition = p_Position + 8;
+				m_SampleDataLength = length / 2;
+			}
+			p_Position = p_Position + 8 + length + (length & 1);
+		}
+	}
+
+
+	private void readPresetData(ByteBuffer p_Pdta) throws IOException {
+		Map<String, ByteBuffer> chunks = new HashMap<String, ByteBuffer>();
+		while (p_Pdta.remaining() >= 8) {
+			byte [] id = new byte [4];
+			p_Pdta.get(id);
+			int length = p_Pdta.getInt();
+			if ((length < 0) || (length > p_Pdta.remaining())) {
+				throw new IOException(m_File + " is truncated or corrupt");
+			}
+			ByteBuffer chunk = p_Pdta.slice().order(ByteOrder.LITTLE_ENDIAN);
+			chunk.limit(length);
+			chunks.put(new String(id, "US-ASCII"), chunk);
+			p_Pdta.position(p_Pdta.position() + length + (length & 1));
+		}
+
+		ByteBuffer phdr = getChunk(chunks, "phdr", 38);
+		int presets = phdr.limit() / 38;
+		m_PresetNames = new String [presets];
+		m_Presets = new int [presets];
+		m_Banks = new int [presets];
+		m_PresetBags = new int [presets];
+		for (int i=0; i<presets; i++) {
+			m_PresetNames[i] = readName(phdr, i * 38);
+			m_Presets[i] = phdr.getShort((i * 38) + 20) & 0xffff;
+			m_Banks[i] = phdr.getShort((i * 38) + 22) & 0xffff;
+			m_PresetBags[i] = phdr.getShort((i * 38) + 24) & 0xffff;
+		}
+		m_PresetBagGenerators = readBags(getChunk(chunks, "pbag", 4));
+		ByteBuffer pgen = getChunk(chunks, "pgen", 4);
+		m_PresetGeneratorTypes = new int [pgen.limit() / 4];
+		m_PresetGeneratorAmounts = new short [pgen.limit() / 4];
+		readGenerators(pgen, m_PresetGeneratorTypes, m_PresetGeneratorAmounts);
+
+		ByteBuffer inst = getChunk(chunks, "inst", 22);
+		m_InstrumentBags = new int [inst.limit() / 22];
+		for (int i=0; i<m_InstrumentBags.length; i++) {
+			m_InstrumentBags[i] = inst.getShort((i * 22) + 20) & 0xffff;
+		}
+		m_InstrumentBagGenerators = readBags(getChunk(chunks, "ibag", 4));
+		ByteBuffer igen = getChunk(chunks, "igen", 4);
+		m_InstrumentGeneratorTypes = new int [igen.limit() / 4];
+		m_InstrumentGeneratorAmounts = new short [igen.limit() / 4];
+		readGenerators(igen, m_InstrumentGeneratorTypes, m_InstrumentGeneratorAmounts);
+
+		ByteBuffer shdr = getChunk(chunks, "shdr", 46);
+		int samples = shdr.limit() / 46;
+		m_SampleStarts = new long [samples];
+		m_SampleEnds = new long [samples];
+		m_SampleRates = new int [samples];
+		m_SamplePitches = new int [samples];
+		m_SampleCorrections = new int [samples];
+		for (int i=0; i<samples; i++) {
+			m_SampleStarts[i] = shdr.getInt((i * 46) + 20) & 0xffffffffL;
+			m_SampleEnds[i] = shdr.getInt((i * 46) + 24) & 0xffffffffL;
+			m_SampleRates[i] = shdr.getInt((i * 46) + 36);
+			m_SamplePitches[i] = shdr.get((i * 46) + 40) & 0xff;
+			m_SampleCorrections[i] = shdr.get((i * 46) + 41);
+		}
+	}
+
+
+	private ByteBuffer getChunk(Map<String, ByteBuffer> p_Chunks, String p_Id, int p_RecordSize) throws IOException {
+		ByteBuffer chunk = p_Chunks.get(p_Id);
+		// Every list ends with a terminating record, so there must be at least one
+		if ((chunk == null) || (chunk.limit() < p_RecordSize) || (chunk.limit() % p_RecordSize != 0)) {
+			throw new IOException(m_File + " has a missing or bad " + p_Id + " chunk");
+		}
+		return chunk;
+	}
+
+
+	private static int [] readBags(ByteBuffer p_Bags) {
+		int [] generators = new int [p_Bags.limit() / 4];
+		for (int i=0; i<generators.length; i++) {
+			generators[i] = p_Bags.getShort(i * 4) & 0xffff;
+		}
+		return generators;
+	}
+
+
+	private static void readGenerators(ByteBuffer p_Generators, int [] p_Types, short [] p_Amounts) {
+		for (int i=0; i<p_Types.length; i++) {
+			p_Types[i] = p_Generators.getShort(i * 4) & 0xffff;
+			p_Amounts[i] = p_Generators.getShort((i * 4) + 2);
+		}
+	}
+
+
+	private static String readName(ByteBuffer p_Buffer, int p_Position) {
+		StringBuilder name = new StringBuilder();
+		for (int i=0; i<20; i++) {
+			char c = (char)(p_Buffer.get(p_Position + i) & 0xff);
+			if (c == 0) {
+				break;
+			}
+			name.append(c);
+		}
+		return name.toString().trim();
+	}
+
+
+	// Returns the index of the drum kit preset with the given number, or the first drum kit if there is no
+	// such preset
+	private int findDrumKit(int p_Preset) throws IOException {
+		int first = -1;
+		for (int i=0; i<m_Presets.length-1; i++) {
+			if (m_Banks[i] == DRUM_BANK) {
+				if (m_Presets[i] == p_Preset) {
+					return i;
+				}
+				if (first < 0) {
+					first = i;
+				}
+			}
+		}
+		if (first < 0) {
+			throw new IOException(m_File + " has no drum kits");
+		}
+		LOGGER.warn(m_File + " has no drum kit " + p_Preset + ", using " + m_PresetNames[first]);
+		return first;
+	}
+
+
+	// Renders each of the notes that the drum kit preset p_Preset plays as raw PCM in p_Format, which must
+	// be 16 bit signed.  Notes the kit does not play are left out
+	public Map<Integer, byte []> renderDrums(int p_Preset, Collection<Integer> p_Notes, AudioFormat p_Format) throws IOException {
+		int preset = findDrumKit(p_Preset);
+		LOGGER.info("Rendering drum kit " + m_PresetNames[preset] + " from " + m_File);
+
+		Map<Integer, byte []> notes = new LinkedHashMap<Integer, byte []>();
+		// Several notes often play the same sample, which is only read once
+		Map<Integer, short []> samples = new HashMap<Integer, short []>();
+		FileChannel channel = FileChannel.open(m_File.toPath(), StandardOpenOption.READ);
+		try {
+			for (int note : p_Notes) {
+				byte [] pcm = renderNote(channel, samples, preset, note, p_Format);
+				if (pcm != null) {
+					notes.put(note, pcm);
+				}
+			}
+		} finally {
+			channel.close();
+		}
+		LOGGER.info("Rendered notes " + notes.keySet() + " from " + samples.size() + " samples");
+		return notes;
+	}
+
+
+	private byte [] renderNote(FileChannel p_Channel, Map<Integer, short []> p_Samples, int p_Preset, int p_Note, AudioFormat p_Format) throws IOException {
+		double [] mix = new double [0];
+		int [] presetGlobal = PRESET_DEFAULTS.clone();
+		for (int presetZone=m_PresetBags[p_Preset]; presetZone<m_PresetBags[p_Preset+1]; presetZone++) {
+			int [] presetGenerators = zoneGenerators(m_PresetBagGenerators, m_PresetGeneratorTypes, m_PresetGeneratorAmounts, presetZone, presetGlobal);
+			if (presetGenerators[INSTRUMENT] < 0) {
+				// A zone with no instrument is the global zone, which gives the defaults for the others
+				presetGlobal = presetGenerators;
+				continue;
+			}
+			int instrument = presetGenerators[INSTRUMENT];
+			if (!covers(presetGenerators, p_Note) || (instrument >= m_InstrumentBags.length - 1)) {
+				continue;
+			}
+
+			int [] instrumentGlobal = DEFAULTS.clone();
+			for (int zone=m_InstrumentBags[instrument]; zone<m_InstrumentBags[instrument+1]; zone++) {
+				int [] generators = zoneGenerators(m_InstrumentBagGenerators, m_InstrumentGeneratorTypes, m_InstrumentGeneratorAmounts, zone, instrumentGlobal);
+				if (generators[SAMPLE_ID] < 0) {
+					instrumentGlobal = generators;
+					continue;
+				}
+				if (!covers(generators, p_Note) || (generators[SAMPLE_ID] >= m_SampleStarts.length - 1)) {
+					continue;
+				}
+				// The preset adds to the instrument's values
+				for (int generator : new int [] { PAN, ATTACK, HOLD, DECAY, SUSTAIN, ATTENUATION, COARSE_TUNE, FINE_TUNE, SCALE_TUNING }) {
+					generators[generator] = generators[generator] + presetGenerators[generator];
+				}
+				mix = renderZone(p_Channel, p_Samples, generators, p_Note, p_Format, mix);
+			}
+		}
+		if (mix.length == 0) {
+			return null;
+		}
+
+		byte [] pcm = new byte [mix.length * 2];
+		for (int i=0; i<mix.length; i++) {
+			Pcm16.putSample(pcm, i * 2, (int)Math.round(mix[i]), p_Format.isBigEndian());
+		}
+		LOGGER.debug("Note {} is {} frames", p_Note, mix.length / p_Format.getChannels());
+		return pcm;
+	}
+
+
+	// Returns the generators of a zone, starting from p_Defaults.  The instrument and sample are -1 if the
+	// zone does not give them
+	private static int [] zoneGenerators(int [] p_BagGenerators, int [] p_Types, short [] p_Amounts, int p_Zone, int [] p_Defaults) {
+		int [] generators = p_Defaults.clone();
+		generators[INSTRUMENT] = -1;
+		generators[SAMPLE_ID] = -1;
+		int end = Math.min(p_BagGenerators[p_Zone + 1], p_Types.length);
+		for (int i=p_BagGenerators[p_Zone]; i<end; i++) {
+			if (p_Types[i] < GENERATORS) {
+				boolean unsigned = (p_Types[i] == INSTRUMENT) || (p_Types[i] == SAMPLE_ID) || (p_Types[i] == KEY_RANGE) || (p_Types[i] == VELOCITY_RANGE);
+				generators[p_Types[i]] = unsigned ? (p_Amounts[i] & 0xffff) : p_Amounts[i];
+			}
+		}
+		return generators;
+	}
+
+
+	// True if the zone plays the note at full velocity
+	private static boolean covers(int [] p_Generators, int p_Note) {
+		int keys = p_Generators[KEY_RANGE];
+		int velocities = p_Generators[VELOCITY_RANGE];
+		return (p_Note >= (keys & 0xff)) && (p_Note <= (keys >> 8)) && ((velocities >> 8) == 127);
+	}
+
+
+	// Adds the zone's sample, at the note's pitch and with its envelope, to p_Mix, which is grown if the
+	// zone is longer.  Returns the mix
+	private double [] renderZone(FileChannel p_Channel, Map<Integer, short []> p_Samples, int [] p_Generators, int p_Note, AudioFormat p_Format, double [] p_Mix) throws IOException {
+		int sampleId = p_Generators[SAMPLE_ID];
+		short [] sample = p_Samples.get(sampleId);
+		if (sample == null) {
+			sample = readSample(p_Channel, sampleId);
+			p_Samples.put(sampleId, sample);
+		}
+		int start = Math.max(0, p_Generators[START_OFFSET] + (p_Generators[START_COARSE_OFFSET] * 32768));
+		int end = Math.min(sample.length, sample.length + p_Generators[END_OFFSET] + (p_Generators[END_COARSE_OFFSET] * 32768));
+		if (end - start < 2) {
+			return p_Mix;
+		}
+
+		int root = (p_Generators[ROOT_KEY] >= 0) ? p_Generators[ROOT_KEY] : m_SamplePitches[sampleId];
+		if (root > 127) {
+			root = 60;
+		}
+		double cents = ((p_Note - root) * p_Generators[SCALE_TUNING]) + (p_Generators[COARSE_TUNE] * 100) + p_Generators[FINE_TUNE] + m_SampleCorrections[sampleId];
+		double step = Math.pow(2, cents / 1200.0) * m_SampleRates[sampleId] / p_Format.getSampleRate();
+		int frames = (int)((end - start - 1) / step) + 1;
+
+		// The envelope, in frames and centibels
+		double rate = p_Format.getSampleRate();
+		int attack = (int)(seconds(p_Generators[ATTACK]) * rate);
+		int hold = attack + (int)(seconds(p_Generators[HOLD]) * rate);
+		double decayPerFrame = SILENT_CENTIBELS / Math.max(1, seconds(p_Generators[DECAY]) * rate);
+		int sustain = Math.max(0, p_Generators[SUSTAIN]);
+		if (sustain >= SILENT_CENTIBELS) {
+			frames = Math.min(frames, hold + (int)(SILENT_CENTIBELS / decayPerFrame));
+		}
+
+		double gain = Math.pow(10, -Math.max(0, p_Generators[ATTENUATION]) / 200.0);
+		int channels = p_Format.getChannels();
+		double [] pans = new double [channels];
+		if (channels == 1) {
+			pans[0] = gain;
+		} else {
+			double angle = ((Math.max(-500, Math.min(500, p_Generators[PAN])) + 500) / 1000.0) * (Math.PI / 2);
+			pans[0] = gain * Math.cos(angle);
+			pans[1] = gain * Math.sin(angle);
+		}
+
+		double [] mix = p_Mix;
+		if (frames * channels > mix.length) {
+			mix = Arrays.copyOf(p_Mix, frames * channels);
+		}
+		for (int frame=0; frame<frames; frame++) {
+			double position = start + (frame * step);
+			int index = (int)position;
+			double fraction = position - index;
+			double value = sample[index];
+			if (index + 1 < end) {
+				value = value + ((sample[index + 1] - value) * fraction);
+			}
+
+			double envelope;
+			if (frame < attack) {
+				envelope = (double)frame / attack;
+			} else if (frame < hold) {
+				envelope = 1;
+			} else {
+				envelope = Math.pow(10, -Math.min(sustain, (frame - hold) * decayPerFrame) / 200.0);
+			}
+			for (int channel=0; channel<channels; channel++) {
+				mix[(frame * channels) + channel] += value * envelope * pans[channel];
+			}
+		}
+		return mix;
+	}
+
+
+	private static double seconds(int p_Timecents) {
+		return Math.pow(2, p_Timecents / 1200.0);
+	}
+
+
+	private short [] readSample(FileChannel p_Channel, int p_SampleId) throws IOException {
+		long start = m_SampleStarts[p_SampleId];
+		long end = Math.min(m_SampleEnds[p_SampleId], m_SampleDataLength);
+		if ((end <= start) || (end - start > Integer.MAX_VALUE / 2)) {
+			return new short [0];
+		}
+		ByteBuffer data = readFully(p_Channel, m_SampleDataPosition + (start * 2), (int)(end - start) * 2);
+		short [] sample = new short [(int)(end - start)];
+		data.asShortBuffer().get(sample);
+		return sample;
+	}
+
+
+	private static ByteBuffer readFully(FileChannel p_Channel, long p_Position, int p_Length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(p_Length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (p_Channel.read(buffer, p_Position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of SoundFont file");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+
+	// A RIFF chunk id as it is read from a little-endian buffer
+	private static int fourCC(String p_Id) {
+		return (p_Id.charAt(0)) | (p_Id.charAt(1) << 8) | (p_Id.charAt(2) << 16) | (p_Id.charAt(3) << 24);
+	}
+}
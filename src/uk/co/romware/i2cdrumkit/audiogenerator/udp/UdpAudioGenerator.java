@@ -0,0 +1,100 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains a class that sends each "note on" command to another machine as a single UDP        */
+/* datagram.  Over Wi-Fi, TCP can hold a note up for a long time while it retransmits an earlier one, but */
+/* for a drum hit a late note is worse than a lost one, so UDP is used and nothing is ever resent.        */
+/* Instead, each datagram can be sent more than once straight away, so that one lost copy does not lose   */
+/* the note; the receiver throws away the copies it has already seen, using the sequence number.          */
+/*                                                                                                        */
+/* Each datagram is 16 bytes, big-endian:                                                                 */
+/*   short magic      - 0x4457 ("DW")                                                                     */
+/*   byte  note                                                                                           */
+/*   byte  velocity                                                                                       */
+/*   int   sequence   - counts up by one for every note, and is the same in every copy                    */
+/*   long  sendNanos  - System.nanoTime() on this machine when the note was sent.  It cannot be compared  */
+/*                      with the receiver's clock, but changes in the difference between the two show     */
+/*                      jitter.                                                                           */
+/* See tools.UdpReceiver for a receiver.                                                                  */
+/*                                                                                                        */
+/* It is set up with the system properties:                                                               */
+/*   udpHost    - the machine to send the notes to (default localhost)                                    */
+/*   udpPort    - the port to send the notes to (default 9125)                                            */
+/*   udpCopies  - how many times each datagram is sent (default 1)                                        */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.audiogenerator.udp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.romware.i2cdrumkit.audiogenerator.IAudioGenerator;
+
+public class UdpAudioGenerator implements IAudioGenerator {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(UdpAudioGenerator.class);
+
+	public final static int PACKET_SIZE = 16;
+	public final static short MAGIC = 0x4457;
+	public final static int DEFAULT_PORT = 9125;
+
+	private DatagramChannel m_Channel;
+	private ByteBuffer m_Packet = ByteBuffer.allocateDirect(PACKET_SIZE);
+	private int m_Copies;
+	private int m_Sequence;
+	private long m_Failed;
+	private long m_ReportedFailed;
+
+	public UdpAudioGenerator() throws IOException {
+		this(System.getProperty("udpHost", "localhost"), Integer.getInteger("udpPort", DEFAULT_PORT), Integer.getInteger("udpCopies", 1));
+	}
+
+	public UdpAudioGenerator(String p_Host, int p_Port, int p_Copies) throws IOException {
+		m_Copies = Math.max(1, p_Copies);
+		m_Channel = DatagramChannel.open();
+		m_Channel.connect(new InetSocketAddress(p_Host, p_Port));
+		// A full socket buffer means the network cannot keep up, in which case the note is lost rather than
+		// holding up the notes behind it
+		m_Channel.configureBlocking(false);
+		LOGGER.info("Sending notes to " + p_Host + ":" + p_Port + ((m_Copies > 1) ? (", " + m_Copies + " copies of each") : ""));
+	}
+
+	// Called from one thread at a time
+	@Override
+	public void playNote(int p_Note, int p_Velocity) {
+		m_Packet.clear();
+		m_Packet.putShort(MAGIC);
+		m_Packet.put((byte)p_Note);
+		m_Packet.put((byte)p_Velocity);
+		m_Packet.putInt(m_Sequence++);
+		m_Packet.putLong(System.nanoTime());
+		m_Packet.flip();
+
+		for (int copy=0; copy<m_Copies; copy++) {
+			m_Packet.rewind();
+			try {
+				if (m_Channel.write(m_Packet) == 0) {
+					m_Failed++;
+				}
+			} catch (IOException ex) {
+				// e.g. nothing is listening on a local port, which is reported on the next send
+				m_Failed++;
+			}
+		}
+
+		if ((m_Failed != m_ReportedFailed) && LOGGER.isWarnEnabled()) {
+			LOGGER.warn((m_Failed - m_ReportedFailed) + " datagrams could not be sent (" + m_Failed + " in total)");
+			m_ReportedFailed = m_Failed;
+		}
+	}
+
+	public void stopNote (int p_Note) {
+	}
+
+}
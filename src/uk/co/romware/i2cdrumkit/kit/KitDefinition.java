@@ -0,0 +1,133 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains a class that holds a kit definition read from a kit file, which says which MIDI     */
+/* note each pad plays and which audio file each note plays.  The file is a Java properties file:         */
+/*   pad.<PAD>=<note>      - the note a pad plays, e.g. pad.RED=38.  Pads not given keep their usual note */
+/*   pad.<PAD>.open=<note> - the note a pad plays while the hi-hat pedal is up, e.g. pad.ORANGE.open=46   */
+/*   note.<note>=<file>    - the WAV or AIFF file a note plays, relative to the kit file, e.g.            */
+/*                           note.38=samples/snare.wav.  Notes not given keep the bundled sample (or the  */
+/*                           one from the sample bank file)                                               */
+/*   choke.<name>=<notes>  - a choke group, e.g. choke.hihat=42,44,46.  A hit on any note in the group    */
+/*                           stops the others.  If any are given they replace the chokeGroups setting     */
+/* A definition never changes once read.  A new one is read when the file changes (see KitWatcher)        */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.kit;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import uk.co.romware.i2cdrumkit.midigenerator.i2c.DrumData;
+
+public class KitDefinition {
+
+	private final static String PAD_PREFIX = "pad.";
+	private final static String OPEN_SUFFIX = ".open";
+	private final static String NOTE_PREFIX = "note.";
+	private final static String CHOKE_PREFIX = "choke.";
+
+	private Map<DrumData.ControlType, Integer> m_Pads = new EnumMap<DrumData.ControlType, Integer>(DrumData.ControlType.class);
+	private Map<DrumData.ControlType, Integer> m_OpenPads = new EnumMap<DrumData.ControlType, Integer>(DrumData.ControlType.class);
+	private Map<String, List<Integer>> m_ChokeGroups = new TreeMap<String, List<Integer>>();
+	private Map<Integer, File> m_Samples = new TreeMap<Integer, File>();
+
+
+	private KitDefinition() {
+	}
+
+
+	// Reads a kit file, throwing an IOException if it cannot be read or makes no sense
+	public static KitDefinition read(File p_File) throws IOException {
+		Properties properties = new Properties();
+		InputStream is = new FileInputStream(p_File);
+		try {
+			properties.load(is);
+		} finally {
+			is.close();
+		}
+
+		KitDefinition kit = new KitDefinition();
+		File directory = p_File.getAbsoluteFile().getParentFile();
+		for (String key : properties.stringPropertyNames()) {
+			String value = properties.getProperty(key).trim();
+			if (key.startsWith(PAD_PREFIX)) {
+				boolean open = key.endsWith(OPEN_SUFFIX);
+				DrumData.ControlType pad;
+				try {
+					pad = DrumData.ControlType.valueOf(key.substring(PAD_PREFIX.length(), key.length() - (open ? OPEN_SUFFIX.length() : 0)));
+				} catch (IllegalArgumentException ex) {
+					throw new IOException("Unknown pad in " + p_File + ": " + key);
+				}
+				(open ? kit.m_OpenPads : kit.m_Pads).put(pad, parseNote(p_File, key, value));
+			} else if (key.startsWith(NOTE_PREFIX)) {
+				int note = parseNote(p_File, key, key.substring(NOTE_PREFIX.length()));
+				File sample = new File(value);
+				if (!sample.isAbsolute()) {
+					sample = new File(directory, value);
+				}
+				kit.m_Samples.put(note, sample);
+			} else if (key.startsWith(CHOKE_PREFIX)) {
+				List<Integer> notes = new ArrayList<Integer>();
+				for (String note : value.split(",")) {
+					notes.add(parseNote(p_File, key, note));
+				}
+				kit.m_ChokeGroups.put(key.substring(CHOKE_PREFIX.length()), Collections.unmodifiableList(notes));
+			} else {
+				throw new IOException("Unknown setting in " + p_File + ": " + key);
+			}
+		}
+		return kit;
+	}
+
+
+	private static int parseNote(File p_File, String p_Key, String p_Note) throws IOException {
+		try {
+			int note = Integer.parseInt(p_Note.trim());
+			if ((note >= 0) && (note < 128)) {
+				return note;
+			}
+		} catch (NumberFormatException ex) {
+		}
+		throw new IOException("Bad MIDI note in " + p_File + ": " + p_Key);
+	}
+
+
+	// The note each pad given in the file plays
+	public Map<DrumData.ControlType, Integer> getPads() {
+		return Collections.unmodifiableMap(m_Pads);
+	}
+
+
+	// The note each pad given in the file plays while the hi-hat pedal is up
+	public Map<DrumData.ControlType, Integer> getOpenPads() {
+		return Collections.unmodifiableMap(m_OpenPads);
+	}
+
+
+	// The choke groups given in the file, by name
+	public Map<String, List<Integer>> getChokeGroups() {
+		return Collections.unmodifiableMap(m_ChokeGroups);
+	}
+
+
+	// The audio file each note given in the file plays
+	public Map<Integer, File> getSamples() {
+		return Collections.unmodifiableMap(m_Samples);
+	}
+
+
+	public String toString() {
+		return "pads " + m_Pads + ", open pads " + m_OpenPads + ", samples " + m_Samples + ", choke groups " + m_ChokeGroups;
+	}
+}
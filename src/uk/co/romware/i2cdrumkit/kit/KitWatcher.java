@@ -0,0 +1,161 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains a class that reads a kit file (see KitDefinition) and reads it again whenever it,   */
+/* or one of the audio files it names, changes, so the kit can be changed while it is being played.       */
+/*                                                                                                        */
+/* The directories holding the files are watched with a WatchService by a background thread.  Editors     */
+/* often write a file in several goes, so the thread waits until nothing has changed for kitSettleMillis  */
+/* (default 200) before reading the kit.  The new kit is passed to each listener on that thread, so       */
+/* loading samples never holds up the drums.  A kit file that cannot be read is logged and ignored, and   */
+/* the kit already playing is kept.                                                                       */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.kit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.romware.i2cdrumkit.threads.ThreadManager;
+import uk.co.romware.i2cdrumkit.threads.ThreadRole;
+
+public class KitWatcher {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(KitWatcher.class);
+
+	public interface IKitListener {
+		// Called with the first kit when the watcher starts, then with each new kit
+		public void kitChanged(KitDefinition p_Kit);
+	}
+
+	private File m_File;
+	private long m_SettleMillis = Integer.getInteger("kitSettleMillis", 200);
+	private WatchService m_WatchService;
+	// The directories being watched, and the files in them that matter
+	private Map<WatchKey, Path> m_Directories = new HashMap<WatchKey, Path>();
+	private Set<Path> m_Files = new HashSet<Path>();
+	// The array is replaced, rather than changed, when a listener is added, so it can be read without locking
+	private volatile IKitListener [] m_Listeners = new IKitListener [0];
+
+
+	public KitWatcher(File p_File) {
+		m_File = p_File.getAbsoluteFile();
+	}
+
+
+	public synchronized void addListener(IKitListener p_Listener) {
+		IKitListener [] listeners = Arrays.copyOf(m_Listeners, m_Listeners.length + 1);
+		listeners[m_Listeners.length] = p_Listener;
+		m_Listeners = listeners;
+	}
+
+
+	// Reads the kit and passes it to the listeners before returning, then starts watching for changes.  A kit
+	// file that cannot be read at startup is an error
+	public void start() throws IOException {
+		KitDefinition kit = KitDefinition.read(m_File);
+		LOGGER.info("Read kit " + m_File + ": " + kit);
+		m_WatchService = FileSystems.getDefault().newWatchService();
+		watch(kit);
+		informListeners(kit);
+
+		Thread t = ThreadManager.newThread(ThreadRole.BACKGROUND, "Kit Watcher", new Runnable() {
+			public void run() {
+				while (true) {
+					try {
+						waitForChange();
+					} catch (InterruptedException ex) {
+						return;
+					}
+					try {
+						KitDefinition kit = KitDefinition.read(m_File);
+						LOGGER.info("Kit " + m_File + " changed: " + kit);
+						watch(kit);
+						informListeners(kit);
+					} catch (IOException ex) {
+						LOGGER.error("Cannot read kit " + m_File + ", keeping the current kit", ex);
+					}
+				}
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+	}
+
+
+	// Watches the kit file and the audio files it names
+	private void watch(KitDefinition p_Kit) throws IOException {
+		Set<Path> files = new HashSet<Path>();
+		files.add(m_File.toPath().normalize());
+		for (File sample : p_Kit.getSamples().values()) {
+			files.add(sample.getAbsoluteFile().toPath().normalize());
+		}
+		for (Path file : files) {
+			Path directory = file.getParent();
+			if (!m_Directories.containsValue(directory) && directory.toFile().isDirectory()) {
+				WatchKey key = directory.register(m_WatchService, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+				m_Directories.put(key, directory);
+			}
+		}
+		m_Files = files;
+	}
+
+
+	// Waits until a file that matters has changed, and then until nothing has changed for m_SettleMillis
+	private void waitForChange() throws InterruptedException {
+		boolean changed = false;
+		while (!changed) {
+			changed = takeEvents(m_WatchService.take());
+		}
+		WatchKey key;
+		while ((key = m_WatchService.poll(m_SettleMillis, TimeUnit.MILLISECONDS)) != null) {
+			takeEvents(key);
+		}
+	}
+
+
+	// Returns true if any of the events on p_Key are for a file that matters
+	private boolean takeEvents(WatchKey p_Key) {
+		boolean changed = false;
+		Path directory = m_Directories.get(p_Key);
+		for (WatchEvent<?> event : p_Key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				changed = true;
+			} else if ((directory != null) && m_Files.contains(directory.resolve((Path)event.context()))) {
+				changed = true;
+			}
+		}
+		if (!p_Key.reset()) {
+			m_Directories.remove(p_Key);
+		}
+		return changed;
+	}
+
+
+	private void informListeners(KitDefinition p_Kit) {
+		for (IKitListener listener : m_Listeners) {
+			try {
+				listener.kitChanged(p_Kit);
+			} catch (RuntimeException ex) {
+				LOGGER.error("Failed to change the kit of " + listener, ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains a histogram of latencies in nanoseconds, which can be recorded into from any thread */
+/* without locking or creating objects.                                                                   */
+/*                                                                                                        */
+/* Like an HDR histogram, the buckets get wider as the values get larger, so that every value is recorded */
+/* to within about 6%, from nanoseconds up to minutes, in under 1000 buckets.  Values below 32 have a     */
+/* bucket each.  Above that, each power of 2 is split into 16 buckets.                                    */
+/*                                                                                                        */
+/* The histogram covers a rolling window.  The counts are kept in two halves, each covering the given     */
+/* window length; when the current half ends, the older half is cleared and becomes the current one.  The */
+/* percentiles are worked out from both halves, so they always cover between one and two window lengths.  */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram {
+
+	private final static int LINEAR_BUCKETS = 32;
+	private final static int SUB_BUCKET_BITS = 4;
+	private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private final static int BUCKETS = LINEAR_BUCKETS + (64 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+	private AtomicLongArray [] m_Counts = { new AtomicLongArray(BUCKETS), new AtomicLongArray(BUCKETS) };
+	private AtomicLong [] m_Totals = { new AtomicLong(), new AtomicLong() };
+	private AtomicLong [] m_Max = { new AtomicLong(), new AtomicLong() };
+	private volatile int m_Current;
+	private AtomicLong m_WindowEnd;
+	private long m_WindowNanos;
+
+
+	public LatencyHistogram(long p_WindowNanos) {
+		m_WindowNanos = p_WindowNanos;
+		m_WindowEnd = new AtomicLong(System.nanoTime() + p_WindowNanos);
+	}
+
+
+	public void record(long p_Nanos) {
+		if (p_Nanos < 0) {
+			p_Nanos = 0;
+		}
+		roll(System.nanoTime());
+		int current = m_Current;
+		m_Counts[current].incrementAndGet(bucket(p_Nanos));
+		m_Totals[current].incrementAndGet();
+		AtomicLong max = m_Max[current];
+		long old = max.get();
+		while ((p_Nanos > old) && !max.compareAndSet(old, p_Nanos)) {
+			old = max.get();
+		}
+	}
+
+
+	public long getCount() {
+		roll(System.nanoTime());
+		return m_Totals[0].get() + m_Totals[1].get();
+	}
+
+
+	public long getMax() {
+		roll(System.nanoTime());
+		return Math.max(m_Max[0].get(), m_Max[1].get());
+	}
+
+
+	// Returns the latency, in nanoseconds, that p_Percentile percent of the recorded latencies are at or
+	// below, to the precision of the buckets
+	public long getPercentile(double p_Percentile) {
+		roll(System.nanoTime());
+		long total = m_Totals[0].get() + m_Totals[1].get();
+		if (total == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long)Math.ceil((p_Percentile / 100.0) * total));
+		long seen = 0;
+		for (int i=0; i<BUCKETS; i++) {
+			seen = seen + m_Counts[0].get(i) + m_Counts[1].get(i);
+			if (seen >= target) {
+				return Math.min(highestValue(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+
+	public long getWindowNanos() {
+		return m_WindowNanos;
+	}
+
+
+	// Starts a new half if the current one has ended.  Only the thread that moves the window end on does
+	// the clearing.  A value recorded by another thread at the same moment may land in the half being
+	// cleared, which just loses that one value
+	private void roll(long p_Now) {
+		long end = m_WindowEnd.get();
+		if (p_Now - end < 0) {
+			return;
+		}
+		// If nothing has happened for more than a whole window, both halves are out of date
+		boolean clearBoth = p_Now - end >= m_WindowNanos;
+		if (!m_WindowEnd.compareAndSet(end, p_Now + m_WindowNanos)) {
+			return;
+		}
+		int next = 1 - m_Current;
+		clear(next);
+		if (clearBoth) {
+			clear(m_Current);
+		}
+		m_Current = next;
+	}
+
+
+	private void clear(int p_Half) {
+		AtomicLongArray counts = m_Counts[p_Half];
+		for (int i=0; i<BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		m_Totals[p_Half].set(0);
+		m_Max[p_Half].set(0);
+	}
+
+
+	static int bucket(long p_Value) {
+		if (p_Value < LINEAR_BUCKETS) {
+			return (int)p_Value;
+		}
+		int shift = (63 - Long.numberOfLeadingZeros(p_Value)) - SUB_BUCKET_BITS;
+		int sub = (int)(p_Value >> shift) - SUB_BUCKETS;
+		return LINEAR_BUCKETS + ((shift - 1) * SUB_BUCKETS) + sub;
+	}
+
+
+	static long highestValue(int p_Bucket) {
+		if (p_Bucket < LINEAR_BUCKETS) {
+			return p_Bucket;
+		}
+		int shift = ((p_Bucket - LINEAR_BUCKETS) / SUB_BUCKETS) + 1;
+		long sub = ((p_Bucket - LINEAR_BUCKETS) % SUB_BUCKETS) + SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+}
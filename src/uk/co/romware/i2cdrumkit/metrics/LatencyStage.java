@@ -0,0 +1,42 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains the latency histogram for one stage, either for all notes or for a single note,     */
+/* which is published through JMX                                                                         */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.metrics;
+
+public class LatencyStage implements LatencyStageMBean {
+
+	private LatencyHistogram m_Histogram;
+
+	public LatencyStage(long p_WindowNanos) {
+		m_Histogram = new LatencyHistogram(p_WindowNanos);
+	}
+
+	public void record(long p_Nanos) {
+		m_Histogram.record(p_Nanos);
+	}
+
+	public long getCount() {
+		return m_Histogram.getCount();
+	}
+
+	public double getP50Micros() {
+		return m_Histogram.getPercentile(50) / 1000.0;
+	}
+
+	public double getP99Micros() {
+		return m_Histogram.getPercentile(99) / 1000.0;
+	}
+
+	public double getMaxMicros() {
+		return m_Histogram.getMax() / 1000.0;
+	}
+
+	public long getWindowSeconds() {
+		return m_Histogram.getWindowNanos() / 1000000000L;
+	}
+}
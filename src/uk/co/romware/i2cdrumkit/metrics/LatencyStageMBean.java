@@ -0,0 +1,17 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains the JMX interface for the latency of one stage of getting from a drum strike to the */
+/* sound.  The figures cover the rolling window of the underlying LatencyHistogram                        */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.metrics;
+
+public interface LatencyStageMBean {
+	public long getCount();
+	public double getP50Micros();
+	public double getP99Micros();
+	public double getMaxMicros();
+	public long getWindowSeconds();
+}
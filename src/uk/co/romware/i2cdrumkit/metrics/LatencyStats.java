@@ -0,0 +1,137 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains a class that measures how long it takes to get from a drum strike being decoded to  */
+/* the first of its audio being written to the SourceDataLine.  Each strike is timed at four points:      */
+/*   decode    - when the I2C thread decodes the strike                                                   */
+/*   dispatch  - when the dispatcher thread passes the note to the listener that plays it.  Other         */
+/*               listeners, e.g. the session journal, have dispatchers of their own, which are not timed  */
+/*   acquire   - when the sampled audio engine has got a handler (data line or mixer voice) for the note  */
+/*   write     - when the first chunk of the note's audio is written to the line                          */
+/*                                                                                                        */
+/* The time between each point, and in total, is recorded in a LatencyHistogram for all notes and one     */
+/* for each note, and published through JMX as uk.co.romware.i2cdrumkit:type=Latency,stage=...,note=...   */
+/* with the 50th and 99th percentile and the maximum over a rolling window.                               */
+/*                                                                                                        */
+/* The timings are only taken if the system property latencyStats=true is set.  The window length is set  */
+/* with latencyWindowSeconds (default 10)                                                                 */
+/*                                                                                                        */
+/* The times are kept per note, so if the same note is struck again before the first strike reaches the   */
+/* line, the later stages of the first strike are timed against the second                                */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class LatencyStats {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(LatencyStats.class);
+
+	public final static boolean ENABLED = Boolean.getBoolean("latencyStats");
+
+	private final static int NOTES = 128;
+	private final static String [] STAGE_NAMES = { "dispatch", "acquire", "write", "total" };
+	private final static int DISPATCH = 0;
+	private final static int ACQUIRE = 1;
+	private final static int WRITE = 2;
+	private final static int TOTAL = 3;
+
+	private final static long WINDOW_NANOS = Integer.getInteger("latencyWindowSeconds", 10) * 1000000000L;
+
+	private final static LatencyStage [] ALL_NOTES = new LatencyStage [STAGE_NAMES.length];
+	private final static AtomicReferenceArray<LatencyStage []> BY_NOTE = new AtomicReferenceArray<LatencyStage []>(NOTES);
+
+	private final static AtomicLongArray DECODE_TIMES = new AtomicLongArray(NOTES);
+	private final static AtomicLongArray DISPATCH_TIMES = new AtomicLongArray(NOTES);
+	private final static AtomicLongArray ACQUIRE_TIMES = new AtomicLongArray(NOTES);
+
+	static {
+		if (ENABLED) {
+			for (int stage=0; stage<STAGE_NAMES.length; stage++) {
+				ALL_NOTES[stage] = register(STAGE_NAMES[stage], "all");
+			}
+			LOGGER.info("Latency statistics enabled");
+		}
+	}
+
+	private LatencyStats() {
+	}
+
+
+	// Called from the dispatcher thread, with the time the strike was decoded
+	public static void dispatched(int p_Note, long p_DecodeTime) {
+		if (!ENABLED || (p_Note < 0) || (p_Note >= NOTES)) {
+			return;
+		}
+		long now = System.nanoTime();
+		DECODE_TIMES.set(p_Note, p_DecodeTime);
+		DISPATCH_TIMES.set(p_Note, now);
+		record(p_Note, DISPATCH, now - p_DecodeTime);
+	}
+
+
+	public static void acquired(int p_Note) {
+		if (!ENABLED || (p_Note < 0) || (p_Note >= NOTES)) {
+			return;
+		}
+		long now = System.nanoTime();
+		ACQUIRE_TIMES.set(p_Note, now);
+		record(p_Note, ACQUIRE, now - DISPATCH_TIMES.get(p_Note));
+	}
+
+
+	public static void firstWrite(int p_Note) {
+		if (!ENABLED || (p_Note < 0) || (p_Note >= NOTES)) {
+			return;
+		}
+		long now = System.nanoTime();
+		record(p_Note, WRITE, now - ACQUIRE_TIMES.get(p_Note));
+		record(p_Note, TOTAL, now - DECODE_TIMES.get(p_Note));
+	}
+
+
+	private static void record(int p_Note, int p_Stage, long p_Nanos) {
+		if ((p_Note < 0) || (p_Note >= NOTES)) {
+			return;
+		}
+		ALL_NOTES[p_Stage].record(p_Nanos);
+		LatencyStage [] stages = BY_NOTE.get(p_Note);
+		if (stages == null) {
+			stages = registerNote(p_Note);
+		}
+		stages[p_Stage].record(p_Nanos);
+	}
+
+
+	// This only happens the first time each note is played
+	private static synchronized LatencyStage [] registerNote(int p_Note) {
+		if (BY_NOTE.get(p_Note) == null) {
+			LatencyStage [] stages = new LatencyStage [STAGE_NAMES.length];
+			for (int stage=0; stage<STAGE_NAMES.length; stage++) {
+				stages[stage] = register(STAGE_NAMES[stage], Integer.toString(p_Note));
+			}
+			BY_NOTE.set(p_Note, stages);
+		}
+		return BY_NOTE.get(p_Note);
+	}
+
+
+	private static LatencyStage register(String p_Stage, String p_Note) {
+		LatencyStage stage = new LatencyStage(WINDOW_NANOS);
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(stage, new ObjectName("uk.co.romware.i2cdrumkit:type=Latency,stage=" + p_Stage + ",note=" + p_Note));
+		} catch (Exception ex) {
+			LOGGER.error("Failed to register latency statistics for stage " + p_Stage + ", note " + p_Note, ex);
+		}
+		return stage;
+	}
+}
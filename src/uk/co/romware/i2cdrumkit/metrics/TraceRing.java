@@ -0,0 +1,151 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains a class that records what happens to each hit, on the threads the hits pass         */
+/* through, without logging it.  Each event is three numbers (what happened, the note or pad, and a       */
+/* value) and the time, written into a fixed ring of longs, so recording an event does not build a        */
+/* string, do any I/O, take a lock or allocate anything.  Once the ring is full the oldest events are     */
+/* overwritten.                                                                                           */
+/*                                                                                                        */
+/* The ring is published through JMX as uk.co.romware.i2cdrumkit:type=Trace, whose dump operation returns */
+/* the events in order as text (dumpToLog logs them instead), oldest first, with the time of each in      */
+/* microseconds before the newest.                                                                        */
+/*                                                                                                        */
+/* The ring holds traceRingSize events (default 4096, rounded up to a power of 2, 0 turns it off)         */
+/*                                                                                                        */
+/* Any thread can record events.  Each slot has a stamp that is cleared while the slot is being written   */
+/* and set to the event's sequence number afterwards, so a dump skips a slot that changed while it was    */
+/* being read                                                                                             */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class TraceRing implements TraceRingMBean {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(TraceRing.class);
+
+	// The events.  The value of each is described after it
+	// A new hit on a pad.  The note is the pad, the value the softness
+	public final static int STRIKE = 0;
+	// A repeated report of a hit, which is ignored.  The note is the pad, the value the softness
+	public final static int DUPLICATE = 1;
+	// A note to be played.  The value is the velocity
+	public final static int PLAY = 2;
+	// A voice of the note was still playing and has been stopped to play a new hit
+	public final static int VOICE_STOLEN = 3;
+	// There was no data line or mixer voice to play the note, so it was dropped
+	public final static int NO_VOICE = 4;
+	// A note has been stopped
+	public final static int STOP = 5;
+	// A data line has started playing a note.  The value is the number of the line
+	public final static int LINE_START = 6;
+	// A data line has stopped playing a note before its end.  The value is the number of the line
+	public final static int LINE_STOPPED = 7;
+	// A data line has played a note to its end.  The value is the number of the line
+	public final static int LINE_FINISHED = 8;
+	// A note has been stopped by a hit on another note in its choke group.  The value is the note hit
+	public final static int CHOKE = 9;
+
+	private final static String [] EVENT_NAMES = { "STRIKE", "DUPLICATE", "PLAY", "VOICE_STOLEN", "NO_VOICE", "STOP", "LINE_START", "LINE_STOPPED", "LINE_FINISHED", "CHOKE" };
+
+	private final static int DEFAULT_SIZE = 4096;
+
+	private final static int SIZE;
+	private final static int MASK;
+	private final static AtomicLong NEXT = new AtomicLong();
+	private final static AtomicLongArray STAMPS;
+	private final static AtomicLongArray TIMES;
+	// The event in the top 16 bits, the note in the next 16 and the value in the bottom 32
+	private final static AtomicLongArray EVENTS;
+
+	static {
+		int size = Integer.getInteger("traceRingSize", DEFAULT_SIZE);
+		SIZE = (size > 0) ? Math.max(1, Integer.highestOneBit(size - 1) << 1) : 0;
+		MASK = SIZE - 1;
+		STAMPS = new AtomicLongArray(Math.max(1, SIZE));
+		TIMES = new AtomicLongArray(Math.max(1, SIZE));
+		EVENTS = new AtomicLongArray(Math.max(1, SIZE));
+		if (SIZE > 0) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(new TraceRing(), new ObjectName("uk.co.romware.i2cdrumkit:type=Trace"));
+			} catch (Exception ex) {
+				LOGGER.error("Failed to register the trace ring", ex);
+			}
+		}
+	}
+
+
+	private TraceRing() {
+	}
+
+
+	public static void record(int p_Event, int p_Note, int p_Value) {
+		if (SIZE == 0) {
+			return;
+		}
+		long sequence = NEXT.getAndIncrement();
+		int slot = (int)sequence & MASK;
+		STAMPS.set(slot, 0);
+		TIMES.set(slot, System.nanoTime());
+		EVENTS.set(slot, ((long)p_Event << 48) | ((long)(p_Note & 0xffff) << 32) | (p_Value & 0xffffffffL));
+		STAMPS.set(slot, sequence + 1);
+	}
+
+
+	public int getCapacity() {
+		return SIZE;
+	}
+
+
+	public long getEventCount() {
+		return NEXT.get();
+	}
+
+
+	public String dump() {
+		StringBuilder dump = new StringBuilder();
+		long end = NEXT.get();
+		long start = Math.max(0, end - SIZE);
+		long newest = 0;
+		for (long sequence=end-1; (sequence>=start) && (newest==0); sequence--) {
+			int slot = (int)sequence & MASK;
+			long time = TIMES.get(slot);
+			if (STAMPS.get(slot) == sequence + 1) {
+				newest = time;
+			}
+		}
+		for (long sequence=start; sequence<end; sequence++) {
+			int slot = (int)sequence & MASK;
+			long stamp = STAMPS.get(slot);
+			long time = TIMES.get(slot);
+			long event = EVENTS.get(slot);
+			if ((stamp != sequence + 1) || (STAMPS.get(slot) != stamp)) {
+				// Not written yet, or overwritten while it was being read
+				continue;
+			}
+			int type = (int)(event >>> 48);
+			dump.append(sequence).append(' ')
+				.append((time - newest) / 1000).append("us ")
+				.append((type < EVENT_NAMES.length) ? EVENT_NAMES[type] : Integer.toString(type))
+				.append(" note=").append((event >>> 32) & 0xffff)
+				.append(" value=").append((int)event)
+				.append('\n');
+		}
+		return dump.toString();
+	}
+
+
+	public void dumpToLog() {
+		LOGGER.info("Trace of the last " + Math.min(SIZE, NEXT.get()) + " events:\n" + dump());
+	}
+}
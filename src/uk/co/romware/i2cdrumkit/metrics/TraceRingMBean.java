@@ -0,0 +1,16 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains the JMX interface for the trace ring, which holds the most recent per-hit events so */
+/* they can be looked at after something has gone wrong                                                   */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.metrics;
+
+public interface TraceRingMBean {
+	public int getCapacity();
+	public long getEventCount();
+	public String dump();
+	public void dumpToLog();
+}
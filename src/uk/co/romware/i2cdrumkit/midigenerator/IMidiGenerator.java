@@ -14,5 +14,8 @@ public interface IMidiGenerator {
 	}
 
 	public void addListener(IMidiGeneratorListener p_Listener);
+	// The same, for the listener that plays the notes.  Only this listener's notes are timed by
+	// LatencyStats, so there should only be one
+	public void addAudioListener(IMidiGeneratorListener p_Listener);
 	public boolean start();
 }
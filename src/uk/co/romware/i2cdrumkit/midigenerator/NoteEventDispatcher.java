@@ -0,0 +1,121 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains a class that passes "note on" events to a listener on the listener's own thread.    */
+/* The thread that generates the notes puts them into a NoteEventRing and carries on, so a listener that  */
+/* is slow (e.g. waiting for a data line, or writing to a socket) can no longer hold up the generator.    */
+/*                                                                                                        */
+/* The size of the ring and what happens when it fills up are set with the system properties:             */
+/*   noteRingSize      - the number of events that can be waiting for each listener (default 256)         */
+/*   noteRingOverflow  - DROP_OLDEST or DROP_NEWEST (default DROP_OLDEST)                                 */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.midigenerator;
+
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.romware.i2cdrumkit.metrics.LatencyStats;
+import uk.co.romware.i2cdrumkit.metrics.TraceRing;
+import uk.co.romware.i2cdrumkit.midigenerator.IMidiGenerator.IMidiGeneratorListener;
+import uk.co.romware.i2cdrumkit.midigenerator.NoteEventRing.INoteEventConsumer;
+import uk.co.romware.i2cdrumkit.midigenerator.NoteEventRing.OverflowPolicy;
+import uk.co.romware.i2cdrumkit.threads.ThreadManager;
+import uk.co.romware.i2cdrumkit.threads.ThreadRole;
+
+public class NoteEventDispatcher implements INoteEventConsumer {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(NoteEventDispatcher.class);
+
+	private final static int DEFAULT_RING_SIZE = 256;
+	private final static int DRAIN_BATCH = 16;
+
+	private IMidiGeneratorListener m_Listener;
+	private boolean m_Timed;
+	private NoteEventRing m_Ring;
+	private Thread m_Thread;
+	private volatile boolean m_Waiting;
+	private long m_ReportedDropped;
+
+
+	// Only the dispatcher of the listener that plays the notes is timed, as each listener has a dispatcher
+	// of its own and LatencyStats keeps one set of times for each note
+	public NoteEventDispatcher(IMidiGeneratorListener p_Listener, String p_Name, boolean p_Timed) {
+		m_Listener = p_Listener;
+		m_Timed = p_Timed;
+		m_Ring = new NoteEventRing(Integer.getInteger("noteRingSize", DEFAULT_RING_SIZE), getOverflowPolicy());
+
+		m_Thread = ThreadManager.newThread(ThreadRole.DISPATCH, p_Name, new Runnable() {
+			public void run() {
+				while (true) {
+					if (m_Ring.drain(NoteEventDispatcher.this, DRAIN_BATCH) > 0) {
+						continue;
+					}
+					reportDropped();
+
+					// m_Waiting is set before checking the ring one last time, and the producer checks it
+					// after adding to the ring, so one of them will always see the other
+					m_Waiting = true;
+					if (m_Ring.isEmpty()) {
+						LockSupport.park(NoteEventDispatcher.this);
+					}
+					m_Waiting = false;
+				}
+			}
+		});
+		// The dispatcher only exists to serve the thread generating the notes, so it should not keep the
+		// application running on its own
+		m_Thread.setDaemon(true);
+		m_Thread.start();
+	}
+
+
+	// Called from the thread generating the notes.  This never blocks
+	public void publish(int p_Note, int p_Velocity, long p_NanoTime) {
+		m_Ring.offer(p_Note, p_Velocity, p_NanoTime);
+		if (m_Waiting) {
+			LockSupport.unpark(m_Thread);
+		}
+	}
+
+
+	public void noteEvent(int p_Note, int p_Velocity, long p_NanoTime, long p_Sequence) {
+		if (m_Timed) {
+			LatencyStats.dispatched(p_Note, p_NanoTime);
+		}
+		TraceRing.record(TraceRing.PLAY, p_Note, p_Velocity);
+		try {
+			m_Listener.noteOn(p_Note, p_Velocity);
+		} catch (Exception ex) {
+			LOGGER.error("Listener failed", ex);
+		}
+	}
+
+
+	public NoteEventRing getRing() {
+		return m_Ring;
+	}
+
+
+	private void reportDropped() {
+		long dropped = m_Ring.getDropped();
+		if (dropped != m_ReportedDropped) {
+			LOGGER.warn(m_Thread.getName() + ": " + (dropped - m_ReportedDropped) + " notes dropped because the listener could not keep up (" + dropped + " in total)");
+			m_ReportedDropped = dropped;
+		}
+	}
+
+
+	private static OverflowPolicy getOverflowPolicy() {
+		String value = System.getProperty("noteRingOverflow", OverflowPolicy.DROP_OLDEST.name());
+		try {
+			return OverflowPolicy.valueOf(value);
+		} catch (IllegalArgumentException ex) {
+			LOGGER.error("Invalid value for noteRingOverflow: " + value);
+			return OverflowPolicy.DROP_OLDEST;
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains a fixed size ring of "note on" events, used to pass notes from the thread that      */
+/* generates them to a thread that consumes them, without either thread ever having to wait for the       */
+/* other.  All the space is allocated up front and the events are held in arrays of primitives, so        */
+/* passing a note does not create any objects.                                                            */
+/*                                                                                                        */
+/* There must only be one thread offering events and one thread draining them.  When the ring is full,    */
+/* the overflow policy decides whether the oldest waiting event or the new event is thrown away, and the  */
+/* number of events thrown away is counted.                                                               */
+/*                                                                                                        */
+/* Every event offered is given a sequence number, including those that are dropped, so a consumer can    */
+/* tell when it has missed something.                                                                     */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.midigenerator;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class NoteEventRing {
+
+	public static enum OverflowPolicy {
+		DROP_OLDEST,
+		DROP_NEWEST
+	}
+
+	public interface INoteEventConsumer {
+		public void noteEvent(int p_Note, int p_Velocity, long p_NanoTime, long p_Sequence);
+	}
+
+	private int m_Mask;
+	private int [] m_Notes;
+	private int [] m_Velocities;
+	private long [] m_NanoTimes;
+	private long [] m_Sequences;
+	private OverflowPolicy m_OverflowPolicy;
+
+	// m_Head is only moved by the producer.  m_Tail is moved by the consumer, but also by the producer
+	// when it drops the oldest event, which is why the consumer has to claim each event with a CAS
+	private AtomicLong m_Head = new AtomicLong();
+	private AtomicLong m_Tail = new AtomicLong();
+
+	// These are only written by the producer
+	private long m_NextSequence;
+	private volatile long m_DroppedOldest;
+	private volatile long m_DroppedNewest;
+
+
+	// The capacity is rounded up to a power of 2
+	public NoteEventRing(int p_Capacity, OverflowPolicy p_OverflowPolicy) {
+		int capacity = Integer.highestOneBit(Math.max(2, p_Capacity) - 1) << 1;
+		m_Mask = capacity - 1;
+		m_Notes = new int [capacity];
+		m_Velocities = new int [capacity];
+		m_NanoTimes = new long [capacity];
+		m_Sequences = new long [capacity];
+		m_OverflowPolicy = p_OverflowPolicy;
+	}
+
+
+	// Called from the producer thread only.  Returns false if the new event had to be dropped
+	public boolean offer(int p_Note, int p_Velocity, long p_NanoTime) {
+		long sequence = m_NextSequence++;
+		long head = m_Head.get();
+		long tail = m_Tail.get();
+
+		if (head - tail > m_Mask) {
+			if (m_OverflowPolicy == OverflowPolicy.DROP_NEWEST) {
+				m_DroppedNewest = m_DroppedNewest + 1;
+				return false;
+			}
+			// The oldest event is removed before its slot is written, so the consumer can never
+			// successfully claim an event that is half overwritten
+			if (m_Tail.compareAndSet(tail, tail + 1)) {
+				m_DroppedOldest = m_DroppedOldest + 1;
+			}
+		}
+
+		int idx = (int)head & m_Mask;
+		m_Notes[idx] = p_Note;
+		m_Velocities[idx] = p_Velocity;
+		m_NanoTimes[idx] = p_NanoTime;
+		m_Sequences[idx] = sequence;
+		m_Head.set(head + 1);
+		return true;
+	}
+
+
+	// Called from the consumer thread only.  Passes up to p_Max events to the consumer and returns the
+	// number passed
+	public int drain(INoteEventConsumer p_Consumer, int p_Max) {
+		int count = 0;
+		while (count < p_Max) {
+			long tail = m_Tail.get();
+			if (tail >= m_Head.get()) {
+				break;
+			}
+			int idx = (int)tail & m_Mask;
+			int note = m_Notes[idx];
+			int velocity = m_Velocities[idx];
+			long nanoTime = m_NanoTimes[idx];
+			long sequence = m_Sequences[idx];
+			if (!m_Tail.compareAndSet(tail, tail + 1)) {
+				// The producer dropped this event while it was being read
+				continue;
+			}
+			p_Consumer.noteEvent(note, velocity, nanoTime, sequence);
+			count++;
+		}
+		return count;
+	}
+
+
+	public boolean isEmpty() {
+		return m_Tail.get() >= m_Head.get();
+	}
+
+	public int size() {
+		return (int)Math.max(0, m_Head.get() - m_Tail.get());
+	}
+
+	public int getCapacity() {
+		return m_Mask + 1;
+	}
+
+	public long getDroppedOldest() {
+		return m_DroppedOldest;
+	}
+
+	public long getDroppedNewest() {
+		return m_DroppedNewest;
+	}
+
+	public long getDropped() {
+		return m_DroppedOldest + m_DroppedNewest;
+	}
+}
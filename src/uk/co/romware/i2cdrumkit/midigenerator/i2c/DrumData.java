@@ -5,6 +5,13 @@
 /* The information about the format of the I2C data came from                                             */ 
 /* https://wiibrew.org/wiki/Wiimote/Extension_Controllers/Guitar_Hero_World_Tour_(Wii)_Drums              */
 /*                                                                                                        */
+/* The data is polled thousands of times a second, so decode() does the work with two lookup tables and   */
+/* returns the pad and softness packed into an int, without creating any objects.  getDrumOperation() is  */
+/* kept for anything that wants objects, but it hands out shared, pre-built DrumStrikes                   */
+/*                                                                                                        */
+/* Bit 7 of byte 2 is clear while the hi-hat pedal is pressed, i.e. the hi-hat is closed.  decode() keeps */
+/* it in the strike as well, so the hi-hat pad can play an open or closed hi-hat                          */
+/*                                                                                                        */
 /* Use at your own risk                                                                                   */
 /*                                                                                                        */
 /**********************************************************************************************************/
@@ -84,9 +91,105 @@ public class DrumData {
 		PEDAL
 	}
 	
+	// Returned by decode when the data does not contain a drum strike
+	public final static int NO_STRIKE = -1;
+	// Set in a strike if the hi-hat pedal was pressed when it was reported
+	private final static int HIHAT_CLOSED = 1 << 16;
+
+	private final static ControlType [] CONTROL_TYPES = ControlType.values();
+	private final static int SOFTNESS_LEVELS = 8;
+
+	// Indexed by byte 2.  Holds the pad ordinal, already shifted into place, and the hi-hat pedal flag, or
+	// NO_STRIKE
+	private final static int [] PAD_TABLE = new int [256];
+	// Indexed by byte 3.  Holds the softness, from 0 (hardest) to 7
+	private final static int [] SOFTNESS_TABLE = new int [256];
+	private final static DrumStrike [][] STRIKES = new DrumStrike [CONTROL_TYPES.length][SOFTNESS_LEVELS];
+	// The value of the "which" bits in byte 2 for each pad, indexed by pad ordinal
+	private final static int [] WHICH_BY_PAD = new int [CONTROL_TYPES.length];
+
+	static {
+		for (int data=0; data<256; data++) {
+			ControlType pad = null;
+			boolean gotVelocity = (data & 64) == 0;
+			if (gotVelocity) {
+				int which = (data & 62) >> 1;
+				switch (which) {
+					case 27: pad = ControlType.PEDAL; break;
+					case 25: pad = ControlType.RED; break;
+					case 17: pad = ControlType.ORANGE; break;
+					case 15: pad = ControlType.BLUE; break;
+					case 14: pad = ControlType.YELLOW; break;
+					case 18: pad = ControlType.GREEN; break;
+				}
+			}
+			if (pad != null) {
+				WHICH_BY_PAD[pad.ordinal()] = (data & 62) >> 1;
+			}
+			PAD_TABLE[data] = (pad == null) ? NO_STRIKE : ((pad.ordinal() << 8) | (((data & 128) == 0) ? HIHAT_CLOSED : 0));
+			SOFTNESS_TABLE[data] = (data & 224) >> 5;
+		}
+
+		for (ControlType pad : CONTROL_TYPES) {
+			for (int softness=0; softness<SOFTNESS_LEVELS; softness++) {
+				STRIKES[pad.ordinal()][softness] = new DrumStrike(pad, softness);
+			}
+		}
+	}
+
 	private DrumData() {
 	}
 
+	// Returns the pad and softness of the strike in bytes 2 and 3 of the data, packed into an int, or
+	// NO_STRIKE.  Use getPad(), getSoftness() and isHiHatClosed() to unpack it
+	static public int decode(byte p_Data2, byte p_Data3) {
+		int pad = PAD_TABLE[p_Data2 & 0xff];
+		if (pad == NO_STRIKE) {
+			return NO_STRIKE;
+		}
+		return pad | SOFTNESS_TABLE[p_Data3 & 0xff];
+	}
+
+	static public int getPad(int p_Strike) {
+		return (p_Strike >> 8) & 0xff;
+	}
+
+	static public ControlType getControlType(int p_Strike) {
+		return CONTROL_TYPES[getPad(p_Strike)];
+	}
+
+	static public boolean isHiHatClosed(int p_Strike) {
+		return (p_Strike & HIHAT_CLOSED) != 0;
+	}
+
+	static public int getSoftness(int p_Strike) {
+		return p_Strike & 0xff;
+	}
+
+	static public int getPadCount() {
+		return CONTROL_TYPES.length;
+	}
+
+	// Fills p_Report with a report that contains no strike.  This and encode() are the reverse of decode(),
+	// for pretending to be the drums
+	static public void encodeIdle(byte [] p_Report) {
+		for (int i=0; i<p_Report.length; i++) {
+			p_Report[i] = (byte)0xff;
+		}
+	}
+
+	// Fills p_Report with a report that contains a strike of p_Pad with the given softness
+	static public void encode(ControlType p_Pad, int p_Softness, byte [] p_Report) {
+		encode(p_Pad, p_Softness, false, p_Report);
+	}
+
+	// The same, with the hi-hat pedal pressed or not
+	static public void encode(ControlType p_Pad, int p_Softness, boolean p_HiHatClosed, byte [] p_Report) {
+		encodeIdle(p_Report);
+		p_Report[2] = (byte)((p_HiHatClosed ? 0x01 : 0x81) | (WHICH_BY_PAD[p_Pad.ordinal()] << 1));
+		p_Report[3] = (byte)(0x1f | ((p_Softness & 7) << 5));
+	}
+
 	static public DrumOperation getDrumOperation(byte p_Data0, byte p_Data1, byte p_Data2, byte p_Data3, byte p_Data4, byte p_Data5) {
 /*
         if ((p_Data4 & 16) == 0) {
@@ -97,26 +200,16 @@ public class DrumData {
         	return PLUS_BUTTON;
         }
 */
-        boolean gotVelocity = (p_Data2 & 64) == 0;
-        if (gotVelocity) {
-        	int softness = (p_Data3 & 224) >> 5;
-            int which = (p_Data2 & 62) >> 1;
-            
-            switch (which) {
-            	case 27: return new DrumStrike(ControlType.PEDAL, softness);
-            	case 25: return new DrumStrike(ControlType.RED, softness);
-            	case 17: return new DrumStrike(ControlType.ORANGE, softness);
-            	case 15: return new DrumStrike(ControlType.BLUE, softness);
-            	case 14: return new DrumStrike(ControlType.YELLOW, softness);
-            	case 18: return new DrumStrike(ControlType.GREEN, softness);
-            }
+        int strike = decode(p_Data2, p_Data3);
+        if (strike != NO_STRIKE) {
+        	return STRIKES[getPad(strike)][getSoftness(strike)];
         }
         
         return null;
 
 		//m_SX =  p_Data0 & 63;
         //m_SY = p_Data1] & 63;
-        //m_HighHatPedal = (p_Data2 & 128) == 0;
+        //m_HighHatPedal = (p_Data2 & 128) == 0;    - now decoded, see isHiHatClosed()
         //m_Orange = (p_Data5 & 128) == 0;
         //m_Red = (p_Data5 & 64) == 0;
         //m_Yellow = (p_Data5 & 32) == 0;
@@ -0,0 +1,24 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains an interface that represents the connection to the drums.  The real connection is   */
+/* WiringPiI2CBus, which only works on a Raspberry PI.  SimulatedI2CBus pretends to be the drums, so that */
+/* the rest of the application can be run and measured on any machine.                                    */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.midigenerator.i2c;
+
+public interface I2CBus {
+
+	public final static int REPORT_SIZE = 6;
+
+	// Sends the drums the sequence that sets them up to report without encryption
+	public boolean initialise();
+
+	// Asks the drums for their next report and reads the REPORT_SIZE bytes of it into p_Report
+	public boolean readReport(byte [] p_Report);
+
+	// A short description of how the reports are being read, for logging
+	public String getDescription();
+}
@@ -3,159 +3,270 @@
 /* This file contains a class that reads data from the Raspberry PI I2C and converts it into MIDI "note   */
 /* on" messages                                                                                           */
 /*                                                                                                        */
+/* The drums are read through an I2CBus, chosen with the system property i2cBus: "wiringpi" (the default) */
+/* for the real drums or "simulated" for SimulatedI2CBus.  Setting i2cRecordFile as well writes every     */
+/* report to that file, so it can be replayed later.  How fast the drums are polled is decided by a       */
+/* PollScheduler, and which strikes are new hits by a StrikeDebouncer                                     */
+/*                                                                                                        */
+/* The note each pad plays can be changed by a kit file (see KitWatcher) while the drums are being        */
+/* played.  The new mapping is swapped in whole, so each strike sees either the old or the new mapping    */
+/*                                                                                                        */
+/* A pad can play a different note while the hi-hat pedal is up.  The orange pad is the hi-hat, so it     */
+/* plays 42 (closed hi-hat) while the pedal is pressed and hiHatOpenNote (default 46, open hi-hat, -1     */
+/* turns it off) while it is up.  A kit file can change this for any pad with pad.<PAD>.open=<note>       */
+/*                                                                                                        */
 /* Use at your own risk                                                                                   */
 /*                                                                                                        */
 /**********************************************************************************************************/
 package uk.co.romware.i2cdrumkit.midigenerator.i2c;
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Vector;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.pi4j.wiringpi.I2C;
-
+import uk.co.romware.i2cdrumkit.kit.KitDefinition;
+import uk.co.romware.i2cdrumkit.kit.KitWatcher;
+import uk.co.romware.i2cdrumkit.metrics.TraceRing;
 import uk.co.romware.i2cdrumkit.midigenerator.IMidiGenerator;
-import uk.co.romware.i2cdrumkit.midigenerator.i2c.DrumData.DrumOperation;
-import uk.co.romware.i2cdrumkit.midigenerator.i2c.DrumData.DrumStrike;
+import uk.co.romware.i2cdrumkit.midigenerator.NoteEventDispatcher;
+import uk.co.romware.i2cdrumkit.threads.ThreadManager;
+import uk.co.romware.i2cdrumkit.threads.ThreadRole;
 
-public class I2CHandler implements IMidiGenerator {
+public class I2CHandler implements IMidiGenerator, KitWatcher.IKitListener {
 	
+	// Told of the hits read by readOffline()
+	public interface IHitListener {
+		public void hit(long p_Nanos, int p_Note, int p_Velocity);
+	}
+
 	private final static Logger LOGGER = LoggerFactory.getLogger(I2CHandler.class);
 	private final static Map<DrumData.ControlType, Integer> CONTROL_MAP = new HashMap<DrumData.ControlType, Integer>();
 
-	// This is a map from WII Drum pads to MIDI note numbers
+	// This is a map from WII Drum pads to General MIDI drum notes: the orange pad is the closed hi-hat and
+	// the yellow pad the crash cymbal
 	static {
 		CONTROL_MAP.put(DrumData.ControlType.RED, 38);
-		CONTROL_MAP.put(DrumData.ControlType.ORANGE, 49);
-		CONTROL_MAP.put(DrumData.ControlType.YELLOW, 42);
+		CONTROL_MAP.put(DrumData.ControlType.ORANGE, 42);
+		CONTROL_MAP.put(DrumData.ControlType.YELLOW, 49);
 		CONTROL_MAP.put(DrumData.ControlType.BLUE, 50);
 		CONTROL_MAP.put(DrumData.ControlType.GREEN, 45);
 		CONTROL_MAP.put(DrumData.ControlType.PEDAL, 35);
 	}
 
+	// The same mapping, indexed by pad ordinal, so that a strike can be converted to a note without
+	// boxing.  OPEN_NOTE_BY_PAD is the note each pad plays while the hi-hat pedal is up.  These are the
+	// mappings each handler starts with.  The velocity is indexed by softness
+	private final static int [] NOTE_BY_PAD = new int [DrumData.getPadCount()];
+	private final static int [] OPEN_NOTE_BY_PAD = new int [DrumData.getPadCount()];
+	private final static int [] VELOCITY_BY_SOFTNESS = new int [8];
+	static {
+		for (DrumData.ControlType pad : DrumData.ControlType.values()) {
+			NOTE_BY_PAD[pad.ordinal()] = CONTROL_MAP.get(pad);
+			OPEN_NOTE_BY_PAD[pad.ordinal()] = CONTROL_MAP.get(pad);
+		}
+		int hiHatOpenNote = Integer.getInteger("hiHatOpenNote", 46);
+		if ((hiHatOpenNote >= 0) && (hiHatOpenNote < 128)) {
+			OPEN_NOTE_BY_PAD[DrumData.ControlType.ORANGE.ordinal()] = hiHatOpenNote;
+		}
+		for (int softness=0; softness<VELOCITY_BY_SOFTNESS.length; softness++) {
+			VELOCITY_BY_SOFTNESS[softness] = Math.max(0, (int)((6-softness) * (127.0/6.0)));
+		}
+	}
+
 
-	private static final I2CHandler INSTANCE = new I2CHandler();
-	public static final I2CHandler getInstance() {
+	private static I2CHandler INSTANCE;
+	public static final synchronized I2CHandler getInstance() throws IOException {
+		if (INSTANCE == null) {
+			INSTANCE = new I2CHandler(createBus());
+		}
 		return INSTANCE;
 	}
 	
+	private static I2CBus createBus() throws IOException {
+		I2CBus bus;
+		if ("simulated".equals(System.getProperty("i2cBus"))) {
+			bus = new SimulatedI2CBus();
+		} else {
+			bus = new WiringPiI2CBus();
+		}
+		String recordFile = System.getProperty("i2cRecordFile");
+		if (recordFile != null) {
+			bus = new RecordingI2CBus(bus, recordFile);
+		}
+		return bus;
+	}
+	
+	public static int getNote(DrumData.ControlType p_Pad) {
+		return NOTE_BY_PAD[p_Pad.ordinal()];
+	}
+	
+	public static int getOpenNote(DrumData.ControlType p_Pad) {
+		return OPEN_NOTE_BY_PAD[p_Pad.ordinal()];
+	}
+	
 	
 	
-	private int m_Fd;
-	private Vector<IMidiGenerator.IMidiGeneratorListener> m_Listeners = new Vector<IMidiGenerator.IMidiGeneratorListener>();
+	private I2CBus m_Bus;
+	// The note for each pad with the pedal pressed, at pad*2, and up, at pad*2+1.  Both are in one array so
+	// that it can be replaced, never changed, when the kit changes
+	private volatile int [] m_NoteByPad = notesByPad(NOTE_BY_PAD, OPEN_NOTE_BY_PAD);
+	private byte [] m_Report = new byte [I2CBus.REPORT_SIZE];
+	// Each listener gets its own dispatcher, so the notes are passed on without waiting for the listeners.
+	// The array is replaced, rather than changed, when a listener is added, so it can be read without locking
+	private volatile NoteEventDispatcher [] m_Dispatchers = new NoteEventDispatcher [0];
 	
-	public I2CHandler() {
-		LOGGER.info("Setting up I2C");
-		m_Fd = I2C.wiringPiI2CSetup(0x52);
-		LOGGER.info("Set up I2C");
+	public I2CHandler(I2CBus p_Bus) {
+		m_Bus = p_Bus;
 	}
 	
 	
 	public void addListener(IMidiGenerator.IMidiGeneratorListener p_Listener) {
-		m_Listeners.add(p_Listener);
+		addListener(p_Listener, false);
 	}
 	
-	private void informListeners(DrumOperation p_Operation) {
-		if (p_Operation instanceof DrumStrike) {
-			DrumStrike strike = (DrumStrike)p_Operation;
-
-			int note = CONTROL_MAP.get(strike.getDrumPad());
-			int velocity = (int)((6-strike.getSoftness()) * (127.0/6.0));
-					
-					
-			for (IMidiGenerator.IMidiGeneratorListener listener : m_Listeners) {
-				listener.noteOn(note, velocity);
-			}
+	public void addAudioListener(IMidiGenerator.IMidiGeneratorListener p_Listener) {
+		addListener(p_Listener, true);
+	}
+	
+	private synchronized void addListener(IMidiGenerator.IMidiGeneratorListener p_Listener, boolean p_Timed) {
+		NoteEventDispatcher [] dispatchers = Arrays.copyOf(m_Dispatchers, m_Dispatchers.length + 1);
+		dispatchers[m_Dispatchers.length] = new NoteEventDispatcher(p_Listener, "Note Dispatcher - " + dispatchers.length, p_Timed);
+		m_Dispatchers = dispatchers;
+	}
+	
+	private static int [] notesByPad(int [] p_Closed, int [] p_Open) {
+		int [] notes = new int [p_Closed.length * 2];
+		for (int pad=0; pad<p_Closed.length; pad++) {
+			notes[pad * 2] = p_Closed[pad];
+			notes[(pad * 2) + 1] = p_Open[pad];
 		}
+		return notes;
 	}
 	
-	private boolean restart() {
-		
-		int ret = I2C.wiringPiI2CWriteReg8( m_Fd, 0xf0, 0x55);
-		if (ret!=0) {
-			LOGGER.error("Failed to write");
-			return false;
+	// A pad the kit gives a note, but not an open note, plays its note whatever the pedal is doing, unless
+	// it is the hi-hat and the note is the one it usually plays
+	public void kitChanged(KitDefinition p_Kit) {
+		int [] noteByPad = NOTE_BY_PAD.clone();
+		int [] openNoteByPad = OPEN_NOTE_BY_PAD.clone();
+		for (Map.Entry<DrumData.ControlType, Integer> pad : p_Kit.getPads().entrySet()) {
+			int ordinal = pad.getKey().ordinal();
+			if (pad.getValue() != NOTE_BY_PAD[ordinal]) {
+				openNoteByPad[ordinal] = pad.getValue();
+			}
+			noteByPad[ordinal] = pad.getValue();
 		}
-		try {
-			Thread.sleep(1);
-		} catch (Exception ex) {
+		for (Map.Entry<DrumData.ControlType, Integer> pad : p_Kit.getOpenPads().entrySet()) {
+			openNoteByPad[pad.getKey().ordinal()] = pad.getValue();
 		}
-		ret = I2C.wiringPiI2CWriteReg8( m_Fd, 0xfb, 0x00);
-		if (ret!=0) {
-			LOGGER.error("Failed to write");
-			return false;
+		m_NoteByPad = notesByPad(noteByPad, openNoteByPad);
+		LOGGER.info("Pads now play notes " + Arrays.toString(noteByPad) + ", or " + Arrays.toString(openNoteByPad) + " with the hi-hat open");
+	}
+	
+	// p_DecodeTime is the System.nanoTime() at which the strike was decoded, which travels with the note
+	void informListeners(int p_Strike, long p_DecodeTime) {
+		int note = getNote(p_Strike);
+		int velocity = VELOCITY_BY_SOFTNESS[DrumData.getSoftness(p_Strike)];
+				
+		for (NoteEventDispatcher dispatcher : m_Dispatchers) {
+			dispatcher.publish(note, velocity, p_DecodeTime);
 		}
-		try {
-			Thread.sleep(1);
-		} catch (Exception ex) {
+	}
+	
+	private int getNote(int p_Strike) {
+		return m_NoteByPad[(DrumData.getPad(p_Strike) * 2) + (DrumData.isHiHatClosed(p_Strike) ? 0 : 1)];
+	}
+	
+	// Reads p_Polls reports from the bus, as fast as it gives them, on the calling thread, and passes each
+	// hit to p_Listener with the time, from the first report, at which it would have been decoded had the
+	// drums been polled p_PollRate times a second.  The hits are the same ones start() would pass on, which
+	// is how a recorded or made up session is rendered offline
+	public void readOffline(long p_Polls, int p_PollRate, IHitListener p_Listener) {
+		StrikeDebouncer debouncer = new StrikeDebouncer();
+		m_Bus.initialise();
+		for (long poll=0; poll<p_Polls; poll++) {
+			long now = (poll * 1000000000L) / p_PollRate;
+			if (!m_Bus.readReport(m_Report)) {
+				LOGGER.error("Failed to read after " + poll + " reports");
+				return;
+			}
+			int hit;
+			int strike = DrumData.decode(m_Report[2], m_Report[3]);
+			if ((strike != DrumData.NO_STRIKE) && (debouncer.strike(strike, now) == StrikeDebouncer.HIT)) {
+				p_Listener.hit(now, getNote(strike), VELOCITY_BY_SOFTNESS[DrumData.getSoftness(strike)]);
+			}
+			while (debouncer.isHolding() && ((hit = debouncer.release(now)) != DrumData.NO_STRIKE)) {
+				p_Listener.hit(debouncer.getReleasedEdgeTime(), getNote(hit), VELOCITY_BY_SOFTNESS[DrumData.getSoftness(hit)]);
+			}
 		}
-		
-		return true;
 	}
 	
+	// Every hit goes into the trace ring, and is only logged when debugging, as logging takes far longer
+	private void logStrike(int p_Strike) {
+		TraceRing.record(TraceRing.STRIKE, DrumData.getPad(p_Strike), DrumData.getSoftness(p_Strike));
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug("{} - {}", DrumData.getControlType(p_Strike), DrumData.getSoftness(p_Strike));
+		}
+	}
 	
 	public boolean start() {
 		LOGGER.info("Starting I2C");
 
-		if (!restart()) {
+		if (!m_Bus.initialise()) {
 			return false;
 		}
 		
-		Thread t = new Thread(new Runnable() {
+		Thread t = ThreadManager.newThread(ThreadRole.POLL, "I2C Monitor", new Runnable() {
 			public void run() {
-				DrumOperation lastOperation = null;
-				long notBefore = Long.MIN_VALUE;
+				StrikeDebouncer debouncer = new StrikeDebouncer();
+				PollScheduler scheduler = new PollScheduler();
+				scheduler.start(m_Bus.getDescription());
 				
 				while (true) {
-					if (I2C.wiringPiI2CWrite(m_Fd, 0x00)!=0) {
-						LOGGER.error("Failed to write - attempting to restart");
-						while (!restart()) {
-							try {
-								Thread.sleep(1000);
-							} catch (Exception ex) {
-							}
+					if (!m_Bus.readReport(m_Report)) {
+						LOGGER.error("Failed to read - attempting to restart");
+						while (!m_Bus.initialise()) {
+							scheduler.waitBeforeReconnect();
 						}
+						scheduler.reconnected();
 						continue;
 					}
 
-					DrumOperation op = DrumData.getDrumOperation(
-							(byte)I2C.wiringPiI2CRead(m_Fd),
-							(byte)I2C.wiringPiI2CRead(m_Fd),
-							(byte)I2C.wiringPiI2CRead(m_Fd),
-							(byte)I2C.wiringPiI2CRead(m_Fd),
-							(byte)I2C.wiringPiI2CRead(m_Fd),
-							(byte)I2C.wiringPiI2CRead(m_Fd));
-					if (op!=null) {
+					int strike = DrumData.decode(m_Report[2], m_Report[3]);
+					if (strike!=DrumData.NO_STRIKE) {
+						long decodeTime = System.nanoTime();
 						/**********************************************************************************/
 						/*                                                                                */
-						/* For some reason, I was getting the same note sent multiple times, so I wrote   */
-						/* this to ignore duplicate notes within 10 milliseconds of each other            */
+						/* The drums report each hit several times, so only the first report of a hit on */
+						/* each pad is passed on - see StrikeDebouncer.  A strike held while waiting for  */
+						/* a louder one is passed on below, once its window ends                          */
 						/*                                                                                */
 						/**********************************************************************************/
-						long curTime = System.currentTimeMillis();
-						if (notBefore<curTime) {
-							LOGGER.info(op.toString());
-							lastOperation = op;
-							notBefore = curTime + 10;
-							informListeners(op);
-						} else {
-							if (!op.equals(lastOperation)) {
-								LOGGER.info(op.toString());
-								lastOperation = op;
-								notBefore = curTime + 10;
-								informListeners(op);
-							} else {
-								LOGGER.info("Skipping duplicate");
-							}
+						int result = debouncer.strike(strike, decodeTime);
+						if (result==StrikeDebouncer.HIT) {
+							logStrike(strike);
+							informListeners(strike, decodeTime);
+						} else if (result==StrikeDebouncer.DUPLICATE) {
+							TraceRing.record(TraceRing.DUPLICATE, DrumData.getPad(strike), DrumData.getSoftness(strike));
 						}
 					}
+					if (debouncer.isHolding()) {
+						long now = System.nanoTime();
+						int hit;
+						while ((hit = debouncer.release(now))!=DrumData.NO_STRIKE) {
+							logStrike(hit);
+							informListeners(hit, debouncer.getReleasedEdgeTime());
+						}
+					}
+					
+					// This comes after the strike has been passed on, as it may wait before the next poll
+					scheduler.afterPoll(strike!=DrumData.NO_STRIKE);
 				}
 			}
 		});
-		t.setName("I2C Monitor");
 		t.start();
 		return true;
 	}
@@ -0,0 +1,169 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains a class that decides how fast the I2C Monitor thread polls the drums.  Polling flat */
+/* out uses a whole core of the Raspberry PI, which competes with the audio threads, so there are three   */
+/* modes, chosen with the system property pollMode:                                                       */
+/*   spin      - poll as fast as possible all the time (the default)                                      */
+/*   adaptive  - poll as fast as possible while the drums are being played, but once there has been no    */
+/*               strike for pollQuietMillis (default 500), slow down to pollIdleRate polls per second     */
+/*               (default 1000).  The first strike after a quiet spell can be up to 1/pollIdleRate        */
+/*               seconds late                                                                             */
+/*   fixed     - poll pollRate times per second (default 2000)                                            */
+/*                                                                                                        */
+/* When the drums stop responding, the time between attempts to set them up again starts at               */
+/* reconnectMinMillis (default 1) and doubles on each failure, up to reconnectMaxMillis (default 1000).   */
+/*                                                                                                        */
+/* Every pollStatsSeconds (default 10, 0 turns it off) the number of polls per second and the share of a  */
+/* core the polling thread used are logged                                                                */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.midigenerator.i2c;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class PollScheduler {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(PollScheduler.class);
+
+	private final static int SPIN = 0;
+	private final static int ADAPTIVE = 1;
+	private final static int FIXED = 2;
+
+	private final static int DEFAULT_POLL_STATS_SECONDS = 10;
+
+	private int m_Mode;
+	private long m_QuietNanos;
+	private long m_IdlePeriod;
+	private long m_FixedPeriod;
+	private long m_ReconnectMin;
+	private long m_ReconnectMax;
+
+	private long m_LastStrikeTime;
+	private long m_NextPollTime;
+	private long m_ReconnectDelay;
+
+	private ThreadMXBean m_ThreadBean;
+	private long m_StatsInterval;
+	private long m_StatsStart;
+	private long m_StatsCpuStart;
+	private long m_Polls;
+	private long m_IdlePolls;
+	private String m_Description;
+
+
+	public PollScheduler() {
+		String mode = System.getProperty("pollMode", "spin");
+		if ("adaptive".equals(mode)) {
+			m_Mode = ADAPTIVE;
+		} else if ("fixed".equals(mode)) {
+			m_Mode = FIXED;
+		} else {
+			m_Mode = SPIN;
+		}
+		m_QuietNanos = Integer.getInteger("pollQuietMillis", 500) * 1000000L;
+		m_IdlePeriod = 1000000000L / Math.max(1, Integer.getInteger("pollIdleRate", 1000));
+		m_FixedPeriod = 1000000000L / Math.max(1, Integer.getInteger("pollRate", 2000));
+		m_ReconnectMin = Math.max(1, Integer.getInteger("reconnectMinMillis", 1)) * 1000000L;
+		m_ReconnectMax = Math.max(1, Integer.getInteger("reconnectMaxMillis", 1000)) * 1000000L;
+		m_ReconnectDelay = m_ReconnectMin;
+		m_StatsInterval = Integer.getInteger("pollStatsSeconds", DEFAULT_POLL_STATS_SECONDS) * 1000000000L;
+		m_Description = mode;
+
+		m_ThreadBean = ManagementFactory.getThreadMXBean();
+		if (!m_ThreadBean.isCurrentThreadCpuTimeSupported()) {
+			m_ThreadBean = null;
+		} else if (!m_ThreadBean.isThreadCpuTimeEnabled()) {
+			m_ThreadBean.setThreadCpuTimeEnabled(true);
+		}
+	}
+
+
+	// Called from the polling thread before the first poll
+	public void start(String p_BusDescription) {
+		m_Description = m_Description + ", " + p_BusDescription;
+		LOGGER.info("Polling mode " + m_Description);
+		long now = System.nanoTime();
+		m_LastStrikeTime = now;
+		m_NextPollTime = now;
+		m_StatsStart = now;
+		m_StatsCpuStart = getCpuTime();
+	}
+
+
+	// Called from the polling thread after each poll, with whether the poll found a strike.  Waits until it
+	// is time for the next poll
+	public void afterPoll(boolean p_Strike) {
+		long now = System.nanoTime();
+		if (p_Strike) {
+			m_LastStrikeTime = now;
+		}
+		m_Polls++;
+
+		if (m_StatsInterval > 0) {
+			long elapsed = now - m_StatsStart;
+			if (elapsed >= m_StatsInterval) {
+				reportStats(now, elapsed);
+			}
+		}
+
+		switch (m_Mode) {
+			case ADAPTIVE:
+				if (now - m_LastStrikeTime > m_QuietNanos) {
+					m_IdlePolls++;
+					LockSupport.parkNanos(m_IdlePeriod);
+				}
+				break;
+			case FIXED:
+				m_NextPollTime = m_NextPollTime + m_FixedPeriod;
+				long wait = m_NextPollTime - now;
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+				} else if (-wait > m_FixedPeriod * 10) {
+					// Too far behind to catch up, so start again from now
+					m_NextPollTime = now;
+				}
+				break;
+		}
+	}
+
+
+	// Called from the polling thread when the drums have stopped responding.  Waits before the next attempt
+	// to set them up, for longer after each failure
+	public void waitBeforeReconnect() {
+		LockSupport.parkNanos(m_ReconnectDelay);
+		m_ReconnectDelay = Math.min(m_ReconnectMax, m_ReconnectDelay * 2);
+	}
+
+
+	// Called from the polling thread once the drums are responding again
+	public void reconnected() {
+		m_ReconnectDelay = m_ReconnectMin;
+		m_NextPollTime = System.nanoTime();
+	}
+
+
+	private void reportStats(long p_Now, long p_Elapsed) {
+		long cpuTime = getCpuTime();
+		String cpu = "";
+		if (cpuTime >= 0) {
+			cpu = ", " + (((cpuTime - m_StatsCpuStart) * 100) / p_Elapsed) + "% of a core";
+		}
+		LOGGER.info(((m_Polls * 1000000000L) / p_Elapsed) + " polls per second" + cpu + ", " + ((m_IdlePolls * 100) / Math.max(1, m_Polls)) + "% idle polls (" + m_Description + ")");
+		m_StatsStart = p_Now;
+		m_StatsCpuStart = cpuTime;
+		m_Polls = 0;
+		m_IdlePolls = 0;
+	}
+
+
+	private long getCpuTime() {
+		return (m_ThreadBean != null) ? m_ThreadBean.getCurrentThreadCpuTime() : -1;
+	}
+}
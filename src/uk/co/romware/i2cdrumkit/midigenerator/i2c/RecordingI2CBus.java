@@ -0,0 +1,67 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains a class that passes reports from another I2CBus straight through, but also writes   */
+/* every report to a file, which can then be replayed by SimulatedI2CBus.  The file is written through a  */
+/* large buffer, but it is still written on the polling thread, so this is for capturing test data rather */
+/* than for everyday use.                                                                                 */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.midigenerator.i2c;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class RecordingI2CBus implements I2CBus {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(RecordingI2CBus.class);
+	private final static int BUFFER_SIZE = 64 * 1024;
+
+	private I2CBus m_Bus;
+	private OutputStream m_Stream;
+	private boolean m_Failed;
+
+	public RecordingI2CBus(I2CBus p_Bus, String p_FileName) throws IOException {
+		m_Bus = p_Bus;
+		m_Stream = new BufferedOutputStream(new FileOutputStream(p_FileName), BUFFER_SIZE);
+		LOGGER.info("Recording reports to " + p_FileName);
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				try {
+					m_Stream.close();
+				} catch (Exception ex) {
+				}
+			}
+		}, "Recording I2C Bus Shutdown"));
+	}
+
+	public boolean initialise() {
+		return m_Bus.initialise();
+	}
+
+	public boolean readReport(byte [] p_Report) {
+		if (!m_Bus.readReport(p_Report)) {
+			return false;
+		}
+		if (!m_Failed) {
+			try {
+				m_Stream.write(p_Report, 0, REPORT_SIZE);
+			} catch (IOException ex) {
+				LOGGER.error("Failed to record report, recording stopped", ex);
+				m_Failed = true;
+			}
+		}
+		return true;
+	}
+
+	public String getDescription() {
+		return m_Bus.getDescription() + ", recording";
+	}
+}
@@ -0,0 +1,176 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains a class that pretends to be the drums, so that everything after the I2C bus can be  */
+/* run, tested and measured on any machine, not just a Raspberry PI.                                      */
+/*                                                                                                        */
+/* It either replays a file of recorded 6 byte reports (see RecordingI2CBus), one report per poll, over   */
+/* and over, or it makes up strikes on random pads at a steady rate.  It is set up with the system        */
+/* properties:                                                                                            */
+/*   simReplayFile  - the file of reports to replay.  If not set, strikes are made up                     */
+/*   simPollRate    - how many reports the drums produce per second (default 2000)                        */
+/*   simSpeed       - how much faster than real time to run.  0 runs as fast as possible (default 1)      */
+/*   simHitRate     - how many strikes per second to make up (default 8)                                  */
+/*   simHitReports  - how many reports in a row each made up strike appears in, as the real drums tend to */
+/*                    repeat a strike (default 3)                                                         */
+/*   simSeed        - the seed for choosing the pads and softness, so runs can be repeated (default 1)    */
+/*                                                                                                        */
+/* The time at which the latest strike of each pad was produced is kept, so that the time it takes for    */
+/* a strike to get through the rest of the application can be measured.  The hi-hat pedal is pressed for  */
+/* about half of the made up strikes                                                                      */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.midigenerator.i2c;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class SimulatedI2CBus implements I2CBus {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(SimulatedI2CBus.class);
+
+	private final static int DEFAULT_POLL_RATE = 2000;
+	private final static int DEFAULT_HIT_RATE = 8;
+	private final static int DEFAULT_HIT_REPORTS = 3;
+
+	private byte [] m_Replay;
+	private int m_ReplayPosition;
+
+	private Random m_Random;
+	private long m_ReportsBetweenHits;
+	private int m_HitReports;
+	private long m_ReportsUntilHit;
+	private int m_HitReportsLeft;
+	private byte [] m_HitReport = new byte [REPORT_SIZE];
+
+	private int m_PollRate;
+	private long m_ReportPeriod;
+	private long m_NextReportTime;
+	private int m_LastStrike = DrumData.NO_STRIKE;
+
+	private AtomicLongArray m_LastHitTimes = new AtomicLongArray(DrumData.getPadCount());
+	private AtomicLong m_Hits = new AtomicLong();
+	private AtomicLong m_Reports = new AtomicLong();
+
+
+	public SimulatedI2CBus() throws IOException {
+		this(Double.parseDouble(System.getProperty("simSpeed", "1")));
+	}
+
+
+	// The speed given here is used instead of simSpeed
+	public SimulatedI2CBus(double p_Speed) throws IOException {
+		int pollRate = Integer.getInteger("simPollRate", DEFAULT_POLL_RATE);
+		m_PollRate = pollRate;
+		m_ReportPeriod = (p_Speed > 0) ? (long)(1000000000L / (pollRate * p_Speed)) : 0;
+
+		String replayFile = System.getProperty("simReplayFile");
+		if (replayFile != null) {
+			m_Replay = Files.readAllBytes(Paths.get(replayFile));
+			if (m_Replay.length < REPORT_SIZE) {
+				throw new IOException("No reports in " + replayFile);
+			}
+			LOGGER.info("Replaying " + (m_Replay.length / REPORT_SIZE) + " reports from " + replayFile + " at " + pollRate + " reports per second, speed " + p_Speed);
+		} else {
+			int hitRate = Integer.getInteger("simHitRate", DEFAULT_HIT_RATE);
+			m_HitReports = Integer.getInteger("simHitReports", DEFAULT_HIT_REPORTS);
+			m_ReportsBetweenHits = Math.max(m_HitReports + 1, pollRate / Math.max(1, hitRate));
+			m_Random = new Random(Long.getLong("simSeed", 1));
+			LOGGER.info("Making up " + hitRate + " strikes per second at " + pollRate + " reports per second, speed " + p_Speed);
+		}
+	}
+
+	public boolean initialise() {
+		m_NextReportTime = System.nanoTime();
+		return true;
+	}
+
+	public boolean readReport(byte [] p_Report) {
+		waitForReport();
+
+		if (m_Replay != null) {
+			if (m_ReplayPosition + REPORT_SIZE > m_Replay.length) {
+				m_ReplayPosition = 0;
+			}
+			System.arraycopy(m_Replay, m_ReplayPosition, p_Report, 0, REPORT_SIZE);
+			m_ReplayPosition = m_ReplayPosition + REPORT_SIZE;
+		} else {
+			makeUpReport(p_Report);
+		}
+		m_Reports.incrementAndGet();
+
+		// A strike counts as new when the previous report did not contain the same strike
+		int strike = DrumData.decode(p_Report[2], p_Report[3]);
+		if ((strike != DrumData.NO_STRIKE) && (strike != m_LastStrike)) {
+			m_LastHitTimes.set(DrumData.getPad(strike), System.nanoTime());
+			m_Hits.incrementAndGet();
+		}
+		m_LastStrike = strike;
+		return true;
+	}
+
+	public String getDescription() {
+		return (m_Replay != null) ? "simulated replay" : "simulated strikes";
+	}
+
+	// How many reports the drums produce per second
+	public int getPollRate() {
+		return m_PollRate;
+	}
+
+	// The time, from System.nanoTime(), of the latest strike of the pad with the given ordinal
+	public long getLastHitTime(int p_Pad) {
+		return m_LastHitTimes.get(p_Pad);
+	}
+
+	public long getHits() {
+		return m_Hits.get();
+	}
+
+	public long getReports() {
+		return m_Reports.get();
+	}
+
+	private void waitForReport() {
+		if (m_ReportPeriod == 0) {
+			return;
+		}
+		long now = System.nanoTime();
+		if (m_NextReportTime - now > 0) {
+			LockSupport.parkNanos(m_NextReportTime - now);
+		} else if (now - m_NextReportTime > 1000000000L) {
+			// Too far behind to catch up, so start again from now
+			m_NextReportTime = now;
+		}
+		m_NextReportTime = m_NextReportTime + m_ReportPeriod;
+	}
+
+	private void makeUpReport(byte [] p_Report) {
+		if (m_HitReportsLeft > 0) {
+			m_HitReportsLeft--;
+			System.arraycopy(m_HitReport, 0, p_Report, 0, REPORT_SIZE);
+			return;
+		}
+
+		if (m_ReportsUntilHit > 0) {
+			m_ReportsUntilHit--;
+			DrumData.encodeIdle(p_Report);
+			return;
+		}
+
+		DrumData.ControlType [] pads = DrumData.ControlType.values();
+		DrumData.encode(pads[m_Random.nextInt(pads.length)], m_Random.nextInt(7), m_Random.nextBoolean(), m_HitReport);
+		System.arraycopy(m_HitReport, 0, p_Report, 0, REPORT_SIZE);
+		m_HitReportsLeft = m_HitReports - 1;
+		m_ReportsUntilHit = m_ReportsBetweenHits - m_HitReports;
+	}
+}
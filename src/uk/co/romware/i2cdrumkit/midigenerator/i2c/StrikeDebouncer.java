@@ -0,0 +1,136 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains a class that decides which strikes read from the drums are new hits, and which are  */
+/* the same hit being reported again.  The drums report a hit in several reports in a row, sometimes with */
+/* a different softness each time, so passing on every strike that differs from the last one makes a      */
+/* single hit sound like a flam.                                                                          */
+/*                                                                                                        */
+/* Each pad is tracked on its own.  A strike is a new hit (a rising edge) when that pad has not been in a */
+/* report for its retrigger window; every report of the pad pushes the window on, so the repeats of one   */
+/* hit are swallowed however long they go on for, while a different pad is never held up.  For fast       */
+/* rolls the window only has to be shorter than the gap between the repeats of one stroke and the first   */
+/* report of the next.  The windows are set with the system properties:                                   */
+/*   debounceNanos          - the retrigger window for every pad (default 10000000, i.e. 10 milliseconds) */
+/*   debounceNanos.<PAD>    - the retrigger window for one pad, e.g. debounceNanos.PEDAL                  */
+/*   debounceLoudest        - if true, a new hit is held for its window and then passed on with the       */
+/*                            loudest softness reported during the window, rather than passed on at once  */
+/*                            with the first softness reported (default false)                            */
+/*                                                                                                        */
+/* All the state is kept in arrays indexed by pad ordinal and the times come from System.nanoTime(), so   */
+/* that changes to the clock cannot swallow or repeat a hit.  This class is only used from the polling    */
+/* thread.                                                                                                */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.midigenerator.i2c;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class StrikeDebouncer {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(StrikeDebouncer.class);
+
+	// What strike() decided.  A strike that is HELD, or REPLACED a quieter one being held, is passed on by
+	// release() once its window ends, so only a DUPLICATE is really a repeat of a hit already passed on
+	public final static int HIT = 0;
+	public final static int HELD = 1;
+	public final static int REPLACED = 2;
+	public final static int DUPLICATE = 3;
+
+	private final static long DEFAULT_WINDOW = 10000000L;
+
+	private long [] m_Windows = new long [DrumData.getPadCount()];
+	private boolean m_Loudest;
+
+	// The time each pad was last in a report, and whether it has been in one at all
+	private long [] m_LastSeen = new long [DrumData.getPadCount()];
+	private boolean [] m_Seen = new boolean [DrumData.getPadCount()];
+
+	// Only used when holding for the loudest strike.  The strike being held for each pad (NO_STRIKE if
+	// none), the time of its rising edge and the time at which it is passed on
+	private int [] m_Held = new int [DrumData.getPadCount()];
+	private long [] m_EdgeTimes = new long [DrumData.getPadCount()];
+	private long [] m_ReleaseTimes = new long [DrumData.getPadCount()];
+	private int m_HeldCount;
+	private long m_ReleasedEdgeTime;
+
+
+	public StrikeDebouncer() {
+		long window = Long.getLong("debounceNanos", DEFAULT_WINDOW);
+		for (DrumData.ControlType pad : DrumData.ControlType.values()) {
+			m_Windows[pad.ordinal()] = Math.max(0, Long.getLong("debounceNanos." + pad.name(), window));
+			m_Held[pad.ordinal()] = DrumData.NO_STRIKE;
+		}
+		m_Loudest = Boolean.getBoolean("debounceLoudest");
+
+		if (LOGGER.isInfoEnabled()) {
+			StringBuilder windows = new StringBuilder();
+			for (DrumData.ControlType pad : DrumData.ControlType.values()) {
+				windows.append(' ').append(pad).append('=').append(m_Windows[pad.ordinal()] / 1000).append("us");
+			}
+			LOGGER.info("Retrigger windows" + windows + (m_Loudest ? ", holding for the loudest strike" : ""));
+		}
+	}
+
+
+	// Called with each strike decoded from a report and the time it was decoded.  Returns HIT if the strike
+	// should be passed on now, or why it should not
+	public int strike(int p_Strike, long p_Now) {
+		int pad = DrumData.getPad(p_Strike);
+		boolean edge = !m_Seen[pad] || (p_Now - m_LastSeen[pad] > m_Windows[pad]);
+		m_Seen[pad] = true;
+		m_LastSeen[pad] = p_Now;
+
+		if (!m_Loudest) {
+			return edge ? HIT : DUPLICATE;
+		}
+
+		int held = m_Held[pad];
+		if (held != DrumData.NO_STRIKE) {
+			// A lower softness is a harder hit
+			if (DrumData.getSoftness(p_Strike) < DrumData.getSoftness(held)) {
+				m_Held[pad] = p_Strike;
+				return REPLACED;
+			}
+			return DUPLICATE;
+		}
+		if (edge) {
+			m_Held[pad] = p_Strike;
+			m_EdgeTimes[pad] = p_Now;
+			m_ReleaseTimes[pad] = p_Now + m_Windows[pad];
+			m_HeldCount++;
+			return HELD;
+		}
+		return DUPLICATE;
+	}
+
+
+	// True if there are strikes waiting for their window to end, in which case release() should be called
+	// after every poll
+	public boolean isHolding() {
+		return m_HeldCount > 0;
+	}
+
+
+	// Returns a held strike whose window has ended, or NO_STRIKE if there are none.  It should be called
+	// until it returns NO_STRIKE.  The time of the strike's rising edge is then given by getReleasedEdgeTime()
+	public int release(long p_Now) {
+		for (int pad=0; pad<m_Held.length; pad++) {
+			int held = m_Held[pad];
+			if ((held != DrumData.NO_STRIKE) && (p_Now - m_ReleaseTimes[pad] >= 0)) {
+				m_Held[pad] = DrumData.NO_STRIKE;
+				m_HeldCount--;
+				m_ReleasedEdgeTime = m_EdgeTimes[pad];
+				return held;
+			}
+		}
+		return DrumData.NO_STRIKE;
+	}
+
+
+	public long getReleasedEdgeTime() {
+		return m_ReleasedEdgeTime;
+	}
+}
@@ -0,0 +1,97 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains the connection to the drums through the Raspberry PI I2C bus.                       */
+/*                                                                                                        */
+/* By default, the 6 byte report is read from the drums in one block transfer, using the pi4j I2C device, */
+/* rather than a byte at a time through wiringPi, which needs a separate bus transaction for each byte.   */
+/* If the block read is not available, it falls back to reading a byte at a time.  Setting the system     */
+/* property i2cReadMode=byte always reads a byte at a time.                                               */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.midigenerator.i2c;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.pi4j.io.i2c.I2CDevice;
+import com.pi4j.io.i2c.I2CFactory;
+import com.pi4j.wiringpi.I2C;
+
+public class WiringPiI2CBus implements I2CBus {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(WiringPiI2CBus.class);
+	private final static int DRUM_ADDRESS = 0x52;
+
+	private int m_Fd;
+	private I2CDevice m_Device;
+	private boolean m_BlockReadWorks;
+
+	public WiringPiI2CBus() {
+		LOGGER.info("Setting up I2C");
+		m_Fd = I2C.wiringPiI2CSetup(DRUM_ADDRESS);
+		if (!"byte".equals(System.getProperty("i2cReadMode"))) {
+			try {
+				m_Device = I2CFactory.getInstance(com.pi4j.io.i2c.I2CBus.BUS_1).getDevice(DRUM_ADDRESS);
+			} catch (Exception ex) {
+				LOGGER.warn("Block reads are not available, reading a byte at a time", ex);
+			}
+		}
+		LOGGER.info("Set up I2C");
+	}
+
+	public boolean initialise() {
+		int ret = I2C.wiringPiI2CWriteReg8( m_Fd, 0xf0, 0x55);
+		if (ret!=0) {
+			LOGGER.error("Failed to write");
+			return false;
+		}
+		try {
+			Thread.sleep(1);
+		} catch (Exception ex) {
+		}
+		ret = I2C.wiringPiI2CWriteReg8( m_Fd, 0xfb, 0x00);
+		if (ret!=0) {
+			LOGGER.error("Failed to write");
+			return false;
+		}
+		try {
+			Thread.sleep(1);
+		} catch (Exception ex) {
+		}
+		
+		return true;
+	}
+
+	public boolean readReport(byte [] p_Report) {
+		if (m_Device != null) {
+			try {
+				m_Device.write((byte)0x00);
+				if (m_Device.read(p_Report, 0, REPORT_SIZE) == REPORT_SIZE) {
+					m_BlockReadWorks = true;
+					return true;
+				}
+			} catch (Exception ex) {
+			}
+			if (m_BlockReadWorks) {
+				// Block reads have worked before, so this is a problem with the bus rather than the block read
+				return false;
+			}
+			LOGGER.warn("Block read failed, reading a byte at a time");
+			m_Device = null;
+		}
+
+		if (I2C.wiringPiI2CWrite(m_Fd, 0x00)!=0) {
+			return false;
+		}
+		for (int i=0; i<REPORT_SIZE; i++) {
+			p_Report[i] = (byte)I2C.wiringPiI2CRead(m_Fd);
+		}
+		return true;
+	}
+
+	public String getDescription() {
+		return (m_Device != null) ? "block reads" : "byte reads";
+	}
+}
@@ -0,0 +1,147 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains a class that records every note an IMidiGenerator plays to a journal file, so that  */
+/* each practice session is kept without logging every hit.  It is a listener like any other, so it is    */
+/* called on a dispatcher thread of its own and never holds up the drums or the audio.  Each note is one  */
+/* fixed size record written into a memory mapped part of the file, so recording a note is a few stores   */
+/* into memory, with no system call, lock or allocation, and the operating system writes the pages out    */
+/* in its own time.  The file is mapped JOURNAL_CHUNK bytes at a time, and grows as each new part is      */
+/* mapped.  As the pages belong to the operating system, everything recorded is kept even if the          */
+/* application is killed.                                                                                 */
+/*                                                                                                        */
+/* The file is laid out as (big-endian):                                                                  */
+/*   int      MAGIC ("I2CS")                                                                              */
+/*   int      VERSION                                                                                     */
+/*   long     the time the session started, in milliseconds since 1970                                    */
+/*   int      RECORD_SIZE                                                                                 */
+/*   int      the number of records, updated after each record is written                                 */
+/*   8 bytes  unused, then for each note:                                                                 */
+/*     long   the time the note was played, in nanoseconds from the start of the session                  */
+/*     int    MIDI note number                                                                            */
+/*     int    velocity                                                                                    */
+/* The file is longer than the records, as the last part mapped is not filled, so it is read up to the    */
+/* number of records in the header.                                                                       */
+/*                                                                                                        */
+/* The file is named with the system property sessionFile.  %t in the name is replaced by the date and    */
+/* time the application started, e.g. sessions/%t.hits, so that each session has a file of its own        */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.session;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.romware.i2cdrumkit.midigenerator.IMidiGenerator.IMidiGeneratorListener;
+import uk.co.romware.i2cdrumkit.midigenerator.i2c.I2CHandler;
+
+public class SessionJournal implements IMidiGeneratorListener {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(SessionJournal.class);
+
+	public final static int MAGIC = 0x49324353;
+	public final static int VERSION = 1;
+	public final static int HEADER_SIZE = 32;
+	public final static int RECORD_SIZE = 16;
+	private final static int COUNT_OFFSET = 20;
+	private final static int JOURNAL_CHUNK = 1024 * 1024;
+
+	private final static Date APPLICATION_START = new Date();
+
+	private FileChannel m_Channel;
+	private MappedByteBuffer m_Header;
+	private MappedByteBuffer m_Chunk;
+	private long m_ChunkPosition;
+	private long m_StartNanos;
+	private int m_Records;
+	private boolean m_Failed;
+
+
+	public SessionJournal(File p_File) throws IOException {
+		if (p_File.getAbsoluteFile().getParentFile() != null) {
+			p_File.getAbsoluteFile().getParentFile().mkdirs();
+		}
+		m_Channel = FileChannel.open(p_File.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		m_Header = m_Channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+		m_Header.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis()).putInt(RECORD_SIZE).putInt(0);
+		m_StartNanos = System.nanoTime();
+		m_ChunkPosition = HEADER_SIZE;
+		m_Chunk = m_Channel.map(FileChannel.MapMode.READ_WRITE, m_ChunkPosition, JOURNAL_CHUNK);
+		LOGGER.info("Recording the session to " + p_File);
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				m_Header.force();
+				m_Chunk.force();
+				LOGGER.info(m_Records + " notes recorded");
+			}
+		}, "Session Journal Shutdown"));
+	}
+
+
+	// Called from the dispatcher thread only
+	public void noteOn(int p_Note, int p_Velocity) {
+		if (m_Failed) {
+			return;
+		}
+		long time = System.nanoTime() - m_StartNanos;
+		if (!m_Chunk.hasRemaining()) {
+			try {
+				m_ChunkPosition = m_ChunkPosition + JOURNAL_CHUNK;
+				m_Chunk = m_Channel.map(FileChannel.MapMode.READ_WRITE, m_ChunkPosition, JOURNAL_CHUNK);
+			} catch (IOException ex) {
+				LOGGER.error("Failed to grow the session journal, recording stopped", ex);
+				m_Failed = true;
+				return;
+			}
+		}
+		m_Chunk.putLong(time).putInt(p_Note).putInt(p_Velocity);
+		m_Records++;
+		m_Header.putInt(COUNT_OFFSET, m_Records);
+	}
+
+
+	// Passes each note in a journal file to p_Listener, in the order they were played, and returns the time
+	// the session started, in milliseconds since 1970
+	public static long read(File p_File, I2CHandler.IHitListener p_Listener) throws IOException {
+		FileChannel channel = FileChannel.open(p_File.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if ((header.getInt() != MAGIC) || (header.getInt() != VERSION)) {
+				throw new IOException(p_File + " is not a session journal");
+			}
+			long started = header.getLong();
+			int recordSize = header.getInt();
+			int records = header.getInt();
+			ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, (long)records * recordSize);
+			for (int i=0; i<records; i++) {
+				data.position(i * recordSize);
+				p_Listener.hit(data.getLong(), data.getInt(), data.getInt());
+			}
+			return started;
+		} finally {
+			channel.close();
+		}
+	}
+
+
+	// The file named by the system property p_Property, with %t replaced by the date and time the
+	// application started, or null if the property is not set
+	public static File getFile(String p_Property) {
+		String name = System.getProperty(p_Property);
+		if (name == null) {
+			return null;
+		}
+		return new File(name.replace("%t", new SimpleDateFormat("yyyyMMdd-HHmmss").format(APPLICATION_START)));
+	}
+}
@@ -0,0 +1,236 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains the class that creates the application's long running threads, so that how they     */
+/* are scheduled is decided in one place.  Each thread has a ThreadRole, and when it starts it sets up    */
+/* its own scheduling from the system properties for its role, where <role> is poll, audio, dispatch,     */
+/* network or background:                                                                                 */
+/*   threadCpus.<role>        - the CPUs the threads may run on, in the form taskset takes, e.g. 3 or 2-3 */
+/*   threadRtPriority.<role>  - run the threads with the real-time SCHED_FIFO policy at this priority     */
+/*                              (1 to 99)                                                                 */
+/*   threadNice.<role>        - the nice value of the threads (-20 to 19), if not real-time               */
+/*   threadStatsSeconds       - how often the CPU time and scheduling delay of each thread are logged     */
+/*                              (default 60, 0 turns it off)                                              */
+/* Nothing is changed for a role unless it is asked for.  On a 4 core PI, something like                  */
+/* -DthreadCpus.poll=3 -DthreadCpus.audio=2 -DthreadRtPriority.poll=80 -DthreadRtPriority.audio=70 gives  */
+/* the drums and the audio a core each.  A spinning poll thread with a real-time priority will take its   */
+/* core entirely, so it should always be given a core of its own.                                         */
+/*                                                                                                        */
+/* Java has no way of doing this itself (its thread priorities are ignored on Linux unless running as     */
+/* root with -XX:ThreadPriorityPolicy=1), so the Linux id of the thread is read from /proc/thread-self    */
+/* and the taskset, chrt and renice commands are run on it.  Real-time priorities and negative nice       */
+/* values need root or CAP_SYS_NICE.  Anything that cannot be done is logged and the thread carries on    */
+/* with the usual scheduling, so the same settings work on any machine.                                   */
+/*                                                                                                        */
+/* The scheduling delay is the time each thread spent ready to run but waiting for a CPU, which Linux     */
+/* reports in /proc/self/task/<id>/schedstat (if the kernel has schedstats)                               */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.threads;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class ThreadManager {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(ThreadManager.class);
+
+	private final static int DEFAULT_STATS_SECONDS = 60;
+
+	// A thread that has started and set itself up
+	private static class ManagedThread {
+		private Thread m_Thread;
+		private ThreadRole m_Role;
+		private String m_Tid;
+		private String m_Scheduling;
+		private long m_LastCpuTime;
+		private long m_LastWaitTime;
+		private long m_LastSlices;
+	}
+
+	// The array is replaced, rather than changed, when a thread starts, so it can be read without locking
+	private static volatile ManagedThread [] s_Threads = new ManagedThread [0];
+	private static boolean s_StatsStarted;
+
+
+	private ThreadManager() {
+	}
+
+
+	// Returns a new thread, which has not been started, that will set up its scheduling for p_Role and then
+	// run p_Runnable
+	public static Thread newThread(final ThreadRole p_Role, String p_Name, final Runnable p_Runnable) {
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				setUp(p_Role);
+				p_Runnable.run();
+			}
+		}, p_Name);
+		t.setPriority(p_Role.getJavaPriority());
+		return t;
+	}
+
+
+	private static void setUp(ThreadRole p_Role) {
+		ManagedThread managed = new ManagedThread();
+		managed.m_Thread = Thread.currentThread();
+		managed.m_Role = p_Role;
+		managed.m_Tid = getTid();
+
+		List<String> scheduling = new ArrayList<String>();
+		String cpus = System.getProperty("threadCpus." + p_Role.getName());
+		Integer rtPriority = Integer.getInteger("threadRtPriority." + p_Role.getName());
+		Integer nice = Integer.getInteger("threadNice." + p_Role.getName());
+		if (managed.m_Tid == null) {
+			if ((cpus != null) || (rtPriority != null) || (nice != null)) {
+				LOGGER.warn("Cannot find the Linux id of " + managed.m_Thread.getName() + ", so its scheduling cannot be changed");
+			}
+		} else {
+			if ((cpus != null) && run(managed, "taskset", "-p", "-c", cpus, managed.m_Tid)) {
+				scheduling.add("CPUs " + cpus);
+			}
+			if ((rtPriority != null) && run(managed, "chrt", "-f", "-p", rtPriority.toString(), managed.m_Tid)) {
+				scheduling.add("SCHED_FIFO " + rtPriority);
+			} else if ((nice != null) && run(managed, "renice", "-n", nice.toString(), "-p", managed.m_Tid)) {
+				scheduling.add("nice " + nice);
+			}
+		}
+		managed.m_Scheduling = scheduling.isEmpty() ? "usual scheduling" : scheduling.toString();
+		LOGGER.info(managed.m_Thread.getName() + " (" + p_Role.getName() + ", id " + managed.m_Tid + ") started with " + managed.m_Scheduling);
+
+		synchronized (ThreadManager.class) {
+			ManagedThread [] threads = Arrays.copyOf(s_Threads, s_Threads.length + 1);
+			threads[s_Threads.length] = managed;
+			s_Threads = threads;
+			if (!s_StatsStarted) {
+				s_StatsStarted = true;
+				startStats();
+			}
+		}
+	}
+
+
+	// The Linux id of the current thread, or null if it cannot be found
+	private static String getTid() {
+		try {
+			String tid = new File("/proc/thread-self").getCanonicalFile().getName();
+			Integer.parseInt(tid);
+			return tid;
+		} catch (IOException | NumberFormatException ex) {
+			return null;
+		}
+	}
+
+
+	// Runs a command that changes the scheduling of the thread, returning false if it failed
+	private static boolean run(ManagedThread p_Thread, String... p_Command) {
+		try {
+			Process process = new ProcessBuilder(p_Command).redirectErrorStream(true).start();
+			StringBuilder output = new StringBuilder();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					output.append(line).append(' ');
+				}
+			} finally {
+				reader.close();
+			}
+			int exit = process.waitFor();
+			if (exit == 0) {
+				return true;
+			}
+			LOGGER.warn("Could not run " + Arrays.toString(p_Command) + " for " + p_Thread.m_Thread.getName() + ", falling back to the usual scheduling: " + output.toString().trim());
+		} catch (IOException ex) {
+			LOGGER.warn("Could not run " + p_Command[0] + " for " + p_Thread.m_Thread.getName() + ", falling back to the usual scheduling: " + ex.getMessage());
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+
+	private static void startStats() {
+		final long interval = Integer.getInteger("threadStatsSeconds", DEFAULT_STATS_SECONDS) * 1000L;
+		if (interval <= 0) {
+			return;
+		}
+		final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (threadBean.isThreadCpuTimeSupported() && !threadBean.isThreadCpuTimeEnabled()) {
+			threadBean.setThreadCpuTimeEnabled(true);
+		}
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(interval);
+					} catch (InterruptedException ex) {
+						return;
+					}
+					for (ManagedThread thread : s_Threads) {
+						if (thread.m_Thread.isAlive()) {
+							report(thread, threadBean, interval * 1000000L);
+						}
+					}
+				}
+			}
+		}, "Thread Stats");
+		t.setDaemon(true);
+		t.setPriority(ThreadRole.BACKGROUND.getJavaPriority());
+		t.start();
+	}
+
+
+	private static void report(ManagedThread p_Thread, ThreadMXBean p_ThreadBean, long p_IntervalNanos) {
+		StringBuilder report = new StringBuilder(p_Thread.m_Thread.getName());
+		long cpuTime = p_ThreadBean.isThreadCpuTimeEnabled() ? p_ThreadBean.getThreadCpuTime(p_Thread.m_Thread.getId()) : -1;
+		if (cpuTime >= 0) {
+			report.append(": ").append(((cpuTime - p_Thread.m_LastCpuTime) * 100) / p_IntervalNanos).append("% of a core");
+			p_Thread.m_LastCpuTime = cpuTime;
+		}
+
+		// The file holds the time spent running, the time spent waiting to run and the number of times the
+		// thread has been run
+		long [] schedstat = readSchedstat(p_Thread.m_Tid);
+		if (schedstat != null) {
+			long waitTime = schedstat[1] - p_Thread.m_LastWaitTime;
+			long slices = schedstat[2] - p_Thread.m_LastSlices;
+			report.append(", waited ").append((waitTime * 1000) / p_IntervalNanos).append("ms/s for a CPU, ")
+					.append((slices > 0) ? waitTime / slices / 1000 : 0).append("us on average each time it ran");
+			p_Thread.m_LastWaitTime = schedstat[1];
+			p_Thread.m_LastSlices = schedstat[2];
+		}
+		report.append(" (").append(p_Thread.m_Scheduling).append(")");
+		LOGGER.info(report.toString());
+	}
+
+
+	private static long [] readSchedstat(String p_Tid) {
+		if (p_Tid == null) {
+			return null;
+		}
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader("/proc/self/task/" + p_Tid + "/schedstat"));
+			try {
+				String [] fields = reader.readLine().trim().split("\\s+");
+				return new long [] { Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]) };
+			} finally {
+				reader.close();
+			}
+		} catch (IOException | RuntimeException ex) {
+			return null;
+		}
+	}
+}
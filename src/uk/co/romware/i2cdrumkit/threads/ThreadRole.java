@@ -0,0 +1,38 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains the jobs the application's threads do, which ThreadManager uses to decide how each  */
+/* thread is scheduled.  The name of each role is used in the system properties that tune it              */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.threads;
+
+public enum ThreadRole {
+	// Polls the drums
+	POLL("poll", Thread.MAX_PRIORITY),
+	// Writes audio to the sound card
+	AUDIO("audio", Thread.MAX_PRIORITY),
+	// Passes notes from the drums to the audio generators
+	DISPATCH("dispatch", Thread.NORM_PRIORITY + 2),
+	// Sends notes over the network
+	NETWORK("network", Thread.NORM_PRIORITY + 1),
+	// Everything else, none of which is in the path of a hit
+	BACKGROUND("background", Thread.NORM_PRIORITY - 1);
+
+	private String m_Name;
+	private int m_JavaPriority;
+
+	private ThreadRole(String p_Name, int p_JavaPriority) {
+		m_Name = p_Name;
+		m_JavaPriority = p_JavaPriority;
+	}
+
+	public String getName() {
+		return m_Name;
+	}
+
+	public int getJavaPriority() {
+		return m_JavaPriority;
+	}
+}
@@ -0,0 +1,74 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains an application that plays the drums offline: the reports from SimulatedI2CBus,      */
+/* either replayed from a recording or made up, are read as fast as possible and turned into hits the     */
+/* same way I2CHandler does, each at the time its report would have been read, and the hits are rendered  */
+/* through the sampled engine (see OfflineRenderer) to a WAV file, or to nothing, much faster than real   */
+/* time.  It needs no sound card.                                                                         */
+/*                                                                                                        */
+/* Usage: OfflineRender <WAV file | null>                                                                 */
+/*                                                                                                        */
+/* As well as the SimulatedI2CBus and SampledAudioGenerator properties (other than simSpeed), it uses the */
+/* system properties:                                                                                     */
+/*   renderJournal      - a session journal (see SessionJournal) to render instead of the simulated drums */
+/*   renderSeconds      - how many seconds of reports to read (default 60)                                */
+/*   renderThreads      - how many threads to render on (default the number of CPUs)                      */
+/*   renderBlockSeconds - how much audio each thread renders at a time (default 10)                       */
+/*   renderCheck        - the SHA-256 hash the audio should have.  If it is different the application     */
+/*                        exits with 1, so a render can be used to check that a change to the engine has  */
+/*                        not changed the sound                                                           */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.tools;
+
+import java.io.File;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.romware.i2cdrumkit.audiogenerator.sampled.OfflineRenderer;
+import uk.co.romware.i2cdrumkit.midigenerator.i2c.I2CHandler;
+import uk.co.romware.i2cdrumkit.midigenerator.i2c.SimulatedI2CBus;
+import uk.co.romware.i2cdrumkit.session.SessionJournal;
+
+public class OfflineRender {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(OfflineRender.class);
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 1) {
+			LOGGER.error("Usage: OfflineRender <WAV file | null>");
+			System.exit(1);
+		}
+
+		final OfflineRenderer renderer = OfflineRenderer.create();
+
+		I2CHandler.IHitListener listener = new I2CHandler.IHitListener() {
+			public void hit(long p_Nanos, int p_Note, int p_Velocity) {
+				renderer.addHit(p_Nanos, p_Note, p_Velocity);
+			}
+		};
+		String journal = System.getProperty("renderJournal");
+		if (journal != null) {
+			SessionJournal.read(new File(journal), listener);
+		} else {
+			SimulatedI2CBus bus = new SimulatedI2CBus(0);
+			long polls = Integer.getInteger("renderSeconds", 60) * (long)bus.getPollRate();
+			new I2CHandler(bus).readOffline(polls, bus.getPollRate(), listener);
+		}
+
+		OfflineRenderer.IAudioSink sink = "null".equals(args[0]) ? OfflineRenderer.NULL_SINK : OfflineRenderer.createWavSink(new File(args[0]), renderer.getFormat());
+		int threads = Integer.getInteger("renderThreads", Runtime.getRuntime().availableProcessors());
+		long blockFrames = (long)(Integer.getInteger("renderBlockSeconds", 10) * renderer.getFormat().getFrameRate());
+		String hash = renderer.render(sink, threads, blockFrames);
+
+		String check = System.getProperty("renderCheck");
+		if ((check != null) && !check.equalsIgnoreCase(hash)) {
+			LOGGER.error("The audio has changed, its hash is " + hash + " not " + check);
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,219 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains an application that tests RtpMidiAudioGenerator on one machine, by playing the part */
+/* of a DAW: it opens a session (IN on the control and data ports, then CK), plays bursts of notes, reads */
+/* the RTP-MIDI packets, decodes their MIDI lists (running status and delta times) and checks that every  */
+/* Note On arrived, in order, with a matching Note Off, and that the session ends when it says goodbye.   */
+/* It uses the system properties:                                                                         */
+/*   rtpPort    - the generator's control port (default 5004)                                             */
+/*   rtpBursts  - how many bursts of notes to play (default 200)                                          */
+/*                                                                                                        */
+/* It exits with 0 if everything checks out, or 1 if not                                                  */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.tools;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.romware.i2cdrumkit.audiogenerator.rtpmidi.RtpMidiAudioGenerator;
+
+public class RtpMidiLoopback {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(RtpMidiLoopback.class);
+
+	private final static int TOKEN = 0x12345678;
+	private final static int SSRC = 0x0badcafe;
+
+	private static List<Integer> s_NoteOns = new ArrayList<Integer>();
+	private static int s_NoteOffs;
+	private static int s_Packets;
+	private static int s_Errors;
+
+
+	public static void main(String[] args) throws Exception {
+		int port = Integer.getInteger("rtpPort", RtpMidiAudioGenerator.DEFAULT_PORT);
+		int bursts = Integer.getInteger("rtpBursts", 200);
+		RtpMidiAudioGenerator generator = new RtpMidiAudioGenerator();
+
+		InetSocketAddress controlPort = new InetSocketAddress("localhost", port);
+		InetSocketAddress dataPort = new InetSocketAddress("localhost", port + 1);
+		DatagramChannel control = DatagramChannel.open();
+		control.bind(new InetSocketAddress("localhost", 0));
+		final DatagramChannel data = DatagramChannel.open();
+		data.bind(new InetSocketAddress("localhost", 0));
+
+		// Open the session
+		ByteBuffer packet = ByteBuffer.allocate(512);
+		invite(control, controlPort, packet);
+		invite(data, dataPort, packet);
+		sync(data, dataPort, packet);
+		check(generator.getSessionCount() == 1, "one session open");
+
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				ByteBuffer received = ByteBuffer.allocate(2048);
+				int lastSequence = -1;
+				while (true) {
+					try {
+						received.clear();
+						data.receive(received);
+						received.flip();
+						lastSequence = decode(received, lastSequence);
+					} catch (IOException ex) {
+						return;
+					}
+				}
+			}
+		});
+		reader.setDaemon(true);
+		reader.start();
+
+		// Play bursts of 1 to 4 notes, as fast as they can be played, then wait a little
+		List<Integer> played = new ArrayList<Integer>();
+		Random random = new Random(1);
+		for (int burst=0; burst<bursts; burst++) {
+			int notes = 1 + random.nextInt(4);
+			for (int i=0; i<notes; i++) {
+				int note = 35 + random.nextInt(16);
+				int velocity = 1 + random.nextInt(127);
+				generator.playNote(note, velocity);
+				played.add((note << 8) | velocity);
+			}
+			Thread.sleep(random.nextInt(10));
+		}
+		// Wait for the last Note Offs
+		Thread.sleep(Integer.getInteger("rtpNoteOffMillis", 100) + 500);
+
+		synchronized (s_NoteOns) {
+			LOGGER.info("Played " + played.size() + " notes in " + bursts + " bursts, received " + s_NoteOns.size() + " Note Ons and " + s_NoteOffs + " Note Offs in " + s_Packets + " packets");
+			check(s_NoteOns.equals(played), "every Note On arrived in order");
+			check(s_NoteOffs == played.size(), "every Note On has a Note Off");
+		}
+
+		// End the session
+		packet.clear();
+		packet.putShort((short)RtpMidiAudioGenerator.SIGNATURE);
+		packet.putShort((short)RtpMidiAudioGenerator.GOODBYE);
+		packet.putInt(RtpMidiAudioGenerator.PROTOCOL_VERSION);
+		packet.putInt(TOKEN);
+		packet.putInt(SSRC);
+		packet.flip();
+		control.send(packet, controlPort);
+		Thread.sleep(200);
+		check(generator.getSessionCount() == 0, "the session ended");
+
+		if (s_Errors == 0) {
+			LOGGER.info("PASSED");
+		} else {
+			LOGGER.error("FAILED with " + s_Errors + " errors");
+		}
+		System.exit((s_Errors == 0) ? 0 : 1);
+	}
+
+
+	private static void invite(DatagramChannel p_Channel, InetSocketAddress p_To, ByteBuffer p_Packet) throws IOException {
+		p_Packet.clear();
+		p_Packet.putShort((short)RtpMidiAudioGenerator.SIGNATURE);
+		p_Packet.putShort((short)RtpMidiAudioGenerator.INVITATION);
+		p_Packet.putInt(RtpMidiAudioGenerator.PROTOCOL_VERSION);
+		p_Packet.putInt(TOKEN);
+		p_Packet.putInt(SSRC);
+		p_Packet.put("Loopback".getBytes("UTF-8"));
+		p_Packet.put((byte)0);
+		p_Packet.flip();
+		p_Channel.send(p_Packet, p_To);
+
+		p_Packet.clear();
+		p_Channel.receive(p_Packet);
+		p_Packet.flip();
+		check((p_Packet.getShort(2) & 0xffff) == RtpMidiAudioGenerator.ACCEPTED, "invitation to port " + p_To.getPort() + " accepted");
+		check(p_Packet.getInt(8) == TOKEN, "invitation token returned");
+	}
+
+
+	private static void sync(DatagramChannel p_Channel, InetSocketAddress p_To, ByteBuffer p_Packet) throws IOException {
+		p_Packet.clear();
+		p_Packet.putShort((short)RtpMidiAudioGenerator.SIGNATURE);
+		p_Packet.putShort((short)RtpMidiAudioGenerator.SYNC);
+		p_Packet.putInt(SSRC);
+		p_Packet.put((byte)0);
+		p_Packet.put(new byte [3]);
+		p_Packet.putLong(1234);
+		p_Packet.putLong(0);
+		p_Packet.putLong(0);
+		p_Packet.flip();
+		p_Channel.send(p_Packet, p_To);
+
+		p_Packet.clear();
+		p_Channel.receive(p_Packet);
+		p_Packet.flip();
+		check((p_Packet.getShort(2) & 0xffff) == RtpMidiAudioGenerator.SYNC, "clock synchronisation answered");
+		check((p_Packet.get(8) == 1) && (p_Packet.getLong(12) == 1234), "clock synchronisation echoed our time");
+	}
+
+
+	// Decodes an RTP-MIDI packet and returns its sequence number
+	private static int decode(ByteBuffer p_Packet, int p_LastSequence) {
+		synchronized (s_NoteOns) {
+			s_Packets++;
+			check((p_Packet.get() & 0xff) == RtpMidiAudioGenerator.RTP_VERSION, "RTP version");
+			check((p_Packet.get() & 0x7f) == RtpMidiAudioGenerator.RTP_PAYLOAD_TYPE, "RTP payload type");
+			int sequence = p_Packet.getShort() & 0xffff;
+			check((p_LastSequence < 0) || (sequence == ((p_LastSequence + 1) & 0xffff)), "RTP sequence number");
+			p_Packet.getInt();
+			p_Packet.getInt();
+
+			int header = p_Packet.get() & 0xff;
+			int length = header & 0x0f;
+			if ((header & RtpMidiAudioGenerator.LONG_HEADER) != 0) {
+				length = (length << 8) | (p_Packet.get() & 0xff);
+			}
+			check((header & (RtpMidiAudioGenerator.JOURNAL | RtpMidiAudioGenerator.FIRST_HAS_DELTA)) == 0, "no journal and no first delta");
+			int end = p_Packet.position() + length;
+			check(end == p_Packet.limit(), "MIDI list length");
+
+			int status = 0;
+			boolean first = true;
+			while (p_Packet.position() < end) {
+				if (!first) {
+					// Skip the delta time
+					while ((p_Packet.get() & 0x80) != 0) {
+					}
+				}
+				first = false;
+				int b = p_Packet.get() & 0xff;
+				if ((b & 0x80) != 0) {
+					status = b;
+					b = p_Packet.get() & 0xff;
+				}
+				int velocity = p_Packet.get() & 0xff;
+				check((status & 0xf0) == RtpMidiAudioGenerator.NOTE_ON, "Note On status");
+				if (velocity == 0) {
+					s_NoteOffs++;
+				} else {
+					s_NoteOns.add((b << 8) | velocity);
+				}
+			}
+			return sequence;
+		}
+	}
+
+
+	private static void check(boolean p_Passed, String p_What) {
+		if (!p_Passed) {
+			LOGGER.error("Check failed: " + p_What);
+			s_Errors++;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains an application that makes a sample bank file, which SampledAudioGenerator memory    */
+/* maps when the system property sampleBank is set to it.  Every sample is converted to the output format */
+/* and its velocity layers and round-robin variants rendered here, once, instead of every time the kit    */
+/* starts.  It is run as:                                                                                 */
+/*   SampleBankBuilder <bank file> [<note>=<audio file> ...]                                              */
+/* where each audio file can be a WAV or AIFF file in any format Java can read.  With no notes, the       */
+/* bundled kit is used, or the drums of a SoundFont if soundFont is set (see SampledAudioGenerator).  It  */
+/* uses the system properties:                                                                            */
+/*   sampleRate        - the sample rate of the bank (default 44100)                                      */
+/*   sampleChannels    - 1 or 2 (default 2)                                                               */
+/*   sampleLayers      - velocity layers for each note (default 4)                                        */
+/*   sampleRoundRobin  - round-robin variants of each layer (default 2)                                   */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.tools;
+
+import java.io.File;
+import java.util.Map;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.romware.i2cdrumkit.audiogenerator.sampled.SampleBank;
+import uk.co.romware.i2cdrumkit.audiogenerator.sampled.SampledAudioGenerator;
+
+public class SampleBankBuilder {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(SampleBankBuilder.class);
+
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			LOGGER.error("Usage: SampleBankBuilder <bank file> [<note>=<audio file> ...]");
+			System.exit(1);
+		}
+		String rate = System.getProperty("sampleRate");
+		float sampleRate = (rate == null) ? SampleBank.DEFAULT_FORMAT.getSampleRate() : Float.parseFloat(rate);
+		int channels = Integer.getInteger("sampleChannels", SampleBank.DEFAULT_FORMAT.getChannels());
+		int layers = Math.max(1, Integer.getInteger("sampleLayers", 4));
+		int roundRobin = Math.max(1, Integer.getInteger("sampleRoundRobin", 2));
+
+		SampleBank bank = new SampleBank(new AudioFormat(sampleRate, 16, channels, true, SampleBank.DEFAULT_FORMAT.isBigEndian()));
+		if ((args.length == 1) && (System.getProperty("soundFont") != null)) {
+			for (Map.Entry<Integer, byte []> note : SampledAudioGenerator.renderSoundFont(bank.getFormat()).entrySet()) {
+				LOGGER.info("Adding note " + note.getKey() + " from " + System.getProperty("soundFont"));
+				bank.addNote(note.getKey(), note.getValue(), layers, roundRobin);
+			}
+		} else if (args.length == 1) {
+			for (Map.Entry<Integer, String> file : SampledAudioGenerator.getKit().entrySet()) {
+				LOGGER.info("Adding note " + file.getKey() + " from " + file.getValue());
+				bank.addNote(file.getKey(), bank.decode(file.getValue()), layers, roundRobin);
+			}
+		} else {
+			for (int i=1; i<args.length; i++) {
+				int equals = args[i].indexOf('=');
+				if (equals < 1) {
+					LOGGER.error("Expected <note>=<audio file> but got " + args[i]);
+					System.exit(1);
+				}
+				int note = Integer.parseInt(args[i].substring(0, equals));
+				File file = new File(args[i].substring(equals + 1));
+				LOGGER.info("Adding note " + note + " from " + file);
+				bank.addNote(note, bank.decode(file), layers, roundRobin);
+			}
+		}
+		bank.build();
+		bank.save(new File(args[0]));
+	}
+}
@@ -0,0 +1,55 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains a simple client for ServerAudioGenerator, which connects to the server, reads the   */
+/* 16 byte note frames and logs each note, how long it took to arrive (only meaningful when both clocks   */
+/* agree, e.g. on the same machine) and any gaps in the sequence numbers, which are notes the server      */
+/* skipped because this client fell behind.                                                               */
+/*                                                                                                        */
+/* It uses the system properties serverHost (default localhost) and serverPort                            */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.tools;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.net.Socket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.romware.i2cdrumkit.audiogenerator.server.ServerAudioGenerator;
+
+public class ServerClient {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(ServerClient.class);
+
+	public static void main(String[] args) throws Exception {
+		String host = System.getProperty("serverHost", "localhost");
+		int port = Integer.getInteger("serverPort");
+
+		Socket socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		LOGGER.info("Connected to " + host + ":" + port);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), ServerAudioGenerator.FRAME_SIZE * 64));
+
+		int expected = -1;
+		long missed = 0;
+		while (true) {
+			int sequence = in.readInt();
+			long timestamp = in.readLong();
+			int note = in.readUnsignedByte();
+			int velocity = in.readUnsignedByte();
+			in.readShort();
+
+			long nowMicros = System.currentTimeMillis() * 1000;
+			if ((expected >= 0) && (sequence != expected)) {
+				missed = missed + (sequence - expected);
+				LOGGER.warn((sequence - expected) + " notes skipped by the server (" + missed + " in total)");
+			}
+			expected = sequence + 1;
+			LOGGER.info("Note " + note + ", velocity " + velocity + ", sequence " + sequence + ", arrived after " + (nowMicros - timestamp) + "us");
+		}
+	}
+}
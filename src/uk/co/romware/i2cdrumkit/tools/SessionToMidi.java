@@ -0,0 +1,71 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains an application that converts a session journal (see SessionJournal) to a Standard   */
+/* MIDI File, so a session can be loaded into a DAW or notation program.  The notes are put on MIDI       */
+/* channel 10, the General MIDI drum channel, at 120 beats per minute, with each note lasting             */
+/* NOTE_TICKS.  There is a tick every 1/960th of a second, so the times are kept to within about a        */
+/* millisecond.                                                                                           */
+/*                                                                                                        */
+/* Usage: SessionToMidi <journal file> <MIDI file>                                                        */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.tools;
+
+import java.io.File;
+import java.util.Date;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.romware.i2cdrumkit.midigenerator.i2c.I2CHandler;
+import uk.co.romware.i2cdrumkit.session.SessionJournal;
+
+public class SessionToMidi {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(SessionToMidi.class);
+
+	private final static int TICKS_PER_BEAT = 480;
+	private final static int MICROSECONDS_PER_BEAT = 500000;
+	private final static int NOTE_TICKS = TICKS_PER_BEAT / 8;
+	private final static int DRUM_CHANNEL = 9;
+
+	private static int s_Notes;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 2) {
+			LOGGER.error("Usage: SessionToMidi <journal file> <MIDI file>");
+			System.exit(1);
+		}
+
+		Sequence sequence = new Sequence(Sequence.PPQ, TICKS_PER_BEAT);
+		final Track track = sequence.createTrack();
+		byte [] tempo = new byte [] { (byte)(MICROSECONDS_PER_BEAT >> 16), (byte)(MICROSECONDS_PER_BEAT >> 8), (byte)MICROSECONDS_PER_BEAT };
+		track.add(new MidiEvent(new MetaMessage(0x51, tempo, tempo.length), 0));
+
+		long started = SessionJournal.read(new File(args[0]), new I2CHandler.IHitListener() {
+			public void hit(long p_Nanos, int p_Note, int p_Velocity) {
+				long tick = (p_Nanos * TICKS_PER_BEAT) / (MICROSECONDS_PER_BEAT * 1000L);
+				try {
+					track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, DRUM_CHANNEL, p_Note, Math.max(1, p_Velocity)), tick));
+					track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, DRUM_CHANNEL, p_Note, 0), tick + NOTE_TICKS));
+					s_Notes++;
+				} catch (InvalidMidiDataException ex) {
+					LOGGER.warn("Skipping note " + p_Note + " velocity " + p_Velocity + ": " + ex.getMessage());
+				}
+			}
+		});
+
+		MidiSystem.write(sequence, 0, new File(args[1]));
+		LOGGER.info("Wrote " + s_Notes + " notes from the session started " + new Date(started) + " to " + args[1]);
+	}
+}
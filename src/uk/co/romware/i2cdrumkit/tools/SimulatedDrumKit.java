@@ -0,0 +1,112 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains an application that runs the drum kit against SimulatedI2CBus instead of the real   */
+/* drums, and reports how many strikes get through to the audio generator and how long they take, from    */
+/* the moment the simulated drums produce the strike to the moment the audio generator has been asked to  */
+/* play it.  It runs on any machine.                                                                      */
+/*                                                                                                        */
+/* As well as the SimulatedI2CBus properties, it uses the system properties:                              */
+/*   simAudio          - "none" to throw the notes away (the default), or any of the values of            */
+/*                       audioGenerator (see I2CDrumKit), e.g. "sampled", which needs a sound card        */
+/*   simSeconds        - how long to run for (default 30)                                                 */
+/*   simReportSeconds  - how often to report (default 5)                                                  */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.tools;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.romware.i2cdrumkit.I2CDrumKit;
+import uk.co.romware.i2cdrumkit.audiogenerator.IAudioGenerator;
+import uk.co.romware.i2cdrumkit.midigenerator.IMidiGenerator.IMidiGeneratorListener;
+import uk.co.romware.i2cdrumkit.midigenerator.i2c.DrumData;
+import uk.co.romware.i2cdrumkit.midigenerator.i2c.I2CHandler;
+import uk.co.romware.i2cdrumkit.midigenerator.i2c.SimulatedI2CBus;
+
+public class SimulatedDrumKit {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(SimulatedDrumKit.class);
+
+	private static volatile long s_Notes;
+	private static volatile long s_TotalLatency;
+	private final static AtomicLong s_MaxLatency = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		final SimulatedI2CBus bus = new SimulatedI2CBus();
+		I2CHandler midiGen = new I2CHandler(bus);
+
+		final IAudioGenerator audioGen;
+		String simAudio = System.getProperty("simAudio", "none");
+		if (!"none".equals(simAudio)) {
+			audioGen = I2CDrumKit.createAudioGenerator(simAudio);
+		} else {
+			audioGen = new IAudioGenerator() {
+				public void playNote(int p_Note, int p_Velocity) {
+				}
+				public void stopNote(int p_Note) {
+				}
+			};
+		}
+
+		final int [] padByNote = new int [128];
+		Arrays.fill(padByNote, -1);
+		for (DrumData.ControlType pad : DrumData.ControlType.values()) {
+			padByNote[I2CHandler.getNote(pad)] = pad.ordinal();
+			padByNote[I2CHandler.getOpenNote(pad)] = pad.ordinal();
+		}
+
+		// The listener is only ever called from its own dispatcher thread, so the totals are only written by
+		// one thread.  The maximum is reset by the main thread as well, so it is changed atomically
+		midiGen.addAudioListener(new IMidiGeneratorListener() {
+			public void noteOn(int p_Note, int p_Velocity) {
+				audioGen.playNote(p_Note, p_Velocity);
+				long latency = System.nanoTime() - bus.getLastHitTime(padByNote[p_Note]);
+				s_Notes = s_Notes + 1;
+				s_TotalLatency = s_TotalLatency + latency;
+				s_MaxLatency.accumulateAndGet(latency, Math::max);
+			}
+		});
+
+		long runFor = Integer.getInteger("simSeconds", 30) * 1000L;
+		long reportEvery = Integer.getInteger("simReportSeconds", 5) * 1000L;
+
+		I2CDrumKit.recordSession(midiGen);
+
+		midiGen.start();
+		long start = System.currentTimeMillis();
+		long lastReports = 0;
+		long lastHits = 0;
+		long lastNotes = 0;
+		long lastTotalLatency = 0;
+		while (System.currentTimeMillis() - start < runFor) {
+			Thread.sleep(reportEvery);
+
+			long reports = bus.getReports();
+			long hits = bus.getHits();
+			long notes = s_Notes;
+			long totalLatency = s_TotalLatency;
+			long maxLatency = s_MaxLatency.getAndSet(0);
+
+			long newNotes = notes - lastNotes;
+			LOGGER.info(((reports - lastReports) * 1000 / reportEvery) + " reports/s, " +
+					((hits - lastHits) * 1000 / reportEvery) + " strikes/s, " +
+					(newNotes * 1000 / reportEvery) + " notes/s, latency average " +
+					((newNotes > 0) ? (totalLatency - lastTotalLatency) / newNotes / 1000 : 0) + "us, max " +
+					(maxLatency / 1000) + "us");
+
+			lastReports = reports;
+			lastHits = hits;
+			lastNotes = notes;
+			lastTotalLatency = totalLatency;
+		}
+
+		LOGGER.info("Finished: " + bus.getHits() + " strikes produced, " + s_Notes + " notes received");
+		System.exit(0);
+	}
+}
@@ -0,0 +1,173 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains an application that tests UdpAudioGenerator and UdpReceiver on one machine.  The    */
+/* notes are sent through a relay that throws away and swaps round some of the datagrams, to behave like  */
+/* a poor Wi-Fi link, and the relay's record of what it did is then checked against what the receiver     */
+/* worked out.  It uses the system properties:                                                            */
+/*   udpNotes    - how many notes to send (default 10000)                                                 */
+/*   udpRate     - how many notes to send per second (default 1000)                                       */
+/*   udpCopies   - how many times each datagram is sent (default 2)                                       */
+/*   udpLoss     - the percentage of datagrams the relay throws away (default 5)                          */
+/*   udpReorder  - the percentage of datagrams the relay holds back until after the next one (default 5)  */
+/*                                                                                                        */
+/* It exits with 0 if the receiver's counts match the relay's, or 1 if they do not                        */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.tools;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.romware.i2cdrumkit.audiogenerator.udp.UdpAudioGenerator;
+
+public class UdpLoopback {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(UdpLoopback.class);
+
+	private static class Relay {
+		private DatagramChannel m_Channel;
+		private InetSocketAddress m_Target;
+		private ByteBuffer m_Packet = ByteBuffer.allocate(UdpAudioGenerator.PACKET_SIZE);
+		private ByteBuffer m_Held = ByteBuffer.allocate(UdpAudioGenerator.PACKET_SIZE);
+		private boolean m_Holding;
+		private Random m_Random = new Random(1);
+		private int m_Loss;
+		private int m_Reorder;
+		// The number of copies of each note passed on
+		private int [] m_Delivered;
+		private long m_Dropped;
+		private long m_HeldBack;
+
+		public Relay(int p_TargetPort, int p_Notes, int p_Loss, int p_Reorder) throws IOException {
+			m_Channel = DatagramChannel.open();
+			m_Channel.bind(new InetSocketAddress("localhost", 0));
+			m_Target = new InetSocketAddress("localhost", p_TargetPort);
+			m_Delivered = new int [p_Notes];
+			m_Loss = p_Loss;
+			m_Reorder = p_Reorder;
+		}
+
+		public int getPort() throws IOException {
+			return ((InetSocketAddress)m_Channel.getLocalAddress()).getPort();
+		}
+
+		public void start() {
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					while (true) {
+						try {
+							m_Packet.clear();
+							m_Channel.receive(m_Packet);
+							m_Packet.flip();
+							forward();
+						} catch (IOException ex) {
+							LOGGER.error("Relay failed", ex);
+							return;
+						}
+					}
+				}
+			});
+			t.setName("UDP Relay");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		private synchronized void forward() throws IOException {
+			if (m_Random.nextInt(100) < m_Loss) {
+				m_Dropped++;
+				return;
+			}
+			if (!m_Holding && (m_Random.nextInt(100) < m_Reorder)) {
+				m_Held.clear();
+				m_Held.put(m_Packet);
+				m_Held.flip();
+				m_Holding = true;
+				m_HeldBack++;
+				return;
+			}
+			send(m_Packet);
+			flush();
+		}
+
+		// Passes on the datagram being held back, if there is one
+		public synchronized void flush() throws IOException {
+			if (m_Holding) {
+				m_Holding = false;
+				send(m_Held);
+			}
+		}
+
+		private void send(ByteBuffer p_Packet) throws IOException {
+			m_Delivered[p_Packet.getInt(4)]++;
+			m_Channel.send(p_Packet, m_Target);
+		}
+
+		public synchronized long getDeliveredNotes() {
+			long delivered = 0;
+			for (int copies : m_Delivered) {
+				if (copies > 0) {
+					delivered++;
+				}
+			}
+			return delivered;
+		}
+
+		// Notes lost after the last one delivered cannot be spotted by the receiver, so are not counted
+		public synchronized long getLostNotes() {
+			int last = m_Delivered.length - 1;
+			while ((last >= 0) && (m_Delivered[last] == 0)) {
+				last--;
+			}
+			return (last + 1) - getDeliveredNotes();
+		}
+	}
+
+
+	public static void main(String[] args) throws Exception {
+		int notes = Integer.getInteger("udpNotes", 10000);
+		int rate = Integer.getInteger("udpRate", 1000);
+		int copies = Integer.getInteger("udpCopies", 2);
+
+		UdpReceiver receiver = new UdpReceiver(0);
+		receiver.start();
+		Relay relay = new Relay(receiver.getPort(), notes, Integer.getInteger("udpLoss", 5), Integer.getInteger("udpReorder", 5));
+		relay.start();
+		UdpAudioGenerator generator = new UdpAudioGenerator("localhost", relay.getPort(), copies);
+
+		long period = 1000000000L / Math.max(1, rate);
+		long next = System.nanoTime();
+		for (int note=0; note<notes; note++) {
+			generator.playNote(35 + (note % 16), 1 + (note % 127));
+			next = next + period;
+			long wait = next - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+		}
+		Thread.sleep(200);
+		relay.flush();
+		Thread.sleep(200);
+
+		long expectedNotes = relay.getDeliveredNotes();
+		long expectedLost = relay.getLostNotes();
+		LOGGER.info("Sent " + notes + " notes, " + copies + " copies of each.  The relay dropped " + relay.m_Dropped + " datagrams and held back " + relay.m_HeldBack + ", losing " + expectedLost + " notes");
+		LOGGER.info("Received " + receiver);
+
+		boolean passed = (receiver.getNotes() == expectedNotes) && (receiver.getLost() == expectedLost);
+		if (passed) {
+			LOGGER.info("PASSED");
+		} else {
+			LOGGER.error("FAILED: expected " + expectedNotes + " notes and " + expectedLost + " lost");
+		}
+		System.exit(passed ? 0 : 1);
+	}
+}
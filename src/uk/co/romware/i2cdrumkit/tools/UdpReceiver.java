@@ -0,0 +1,189 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains a receiver for the datagrams sent by UdpAudioGenerator.  It throws away the copies  */
+/* of notes it has already seen and measures how well the network is doing:                               */
+/*   lost       - notes none of whose copies arrived (a gap in the sequence that has not been filled)     */
+/*   reordered  - notes that arrived after a later note                                                   */
+/*   duplicate  - extra copies of notes, which are thrown away                                            */
+/*   late       - copies too far behind the latest note to tell whether they are duplicates, also thrown  */
+/*                away                                                                                    */
+/*   jitter     - how much the time taken to arrive varies, smoothed as in RFC 3550.  The sender's and    */
+/*                receiver's clocks do not need to agree                                                  */
+/*   spread     - the difference between the quickest and slowest notes to arrive                         */
+/*                                                                                                        */
+/* Run on its own, it listens on udpPort (default 9125) and logs the statistics every udpReportSeconds    */
+/* (default 5).  UdpLoopback uses it to test the whole thing on one machine.                              */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.tools;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.romware.i2cdrumkit.audiogenerator.udp.UdpAudioGenerator;
+
+public class UdpReceiver {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(UdpReceiver.class);
+
+	// How far back, in notes, duplicates and reordering can be spotted
+	private final static int WINDOW = 64;
+
+	private DatagramChannel m_Channel;
+	private ByteBuffer m_Packet = ByteBuffer.allocateDirect(UdpAudioGenerator.PACKET_SIZE * 4);
+
+	private boolean m_Started;
+	private int m_Highest;
+	// Bit i is set if note m_Highest - i has arrived
+	private long m_Seen;
+	private boolean m_HaveTransit;
+	private long m_LastTransit;
+	private long m_MinTransit = Long.MAX_VALUE;
+	private long m_MaxTransit = Long.MIN_VALUE;
+	private double m_Jitter;
+
+	// Only written by the receiving thread
+	private volatile long m_Notes;
+	private volatile long m_Lost;
+	private volatile long m_Reordered;
+	private volatile long m_Duplicates;
+	private volatile long m_Late;
+	private volatile long m_Invalid;
+	private volatile long m_JitterNanos;
+	private volatile long m_SpreadNanos;
+
+
+	public UdpReceiver(int p_Port) throws IOException {
+		m_Channel = DatagramChannel.open();
+		m_Channel.bind(new InetSocketAddress(p_Port));
+		LOGGER.info("Listening on port " + getPort());
+	}
+
+	public int getPort() throws IOException {
+		return ((InetSocketAddress)m_Channel.getLocalAddress()).getPort();
+	}
+
+	public void start() {
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					try {
+						m_Packet.clear();
+						m_Channel.receive(m_Packet);
+						long now = System.nanoTime();
+						m_Packet.flip();
+						received(now);
+					} catch (IOException ex) {
+						LOGGER.error("Failed to receive", ex);
+						return;
+					}
+				}
+			}
+		});
+		t.setName("UDP Receiver");
+		t.setDaemon(true);
+		t.start();
+	}
+
+
+	private void received(long p_Now) {
+		if ((m_Packet.remaining() != UdpAudioGenerator.PACKET_SIZE) || (m_Packet.getShort() != UdpAudioGenerator.MAGIC)) {
+			m_Invalid++;
+			return;
+		}
+		int note = m_Packet.get() & 0xff;
+		int velocity = m_Packet.get() & 0xff;
+		int sequence = m_Packet.getInt();
+		long sendNanos = m_Packet.getLong();
+
+		if (!m_Started) {
+			m_Started = true;
+			m_Highest = sequence;
+			m_Seen = 1;
+		} else {
+			// The difference is taken as an int so that it still works when the sequence wraps round
+			int diff = sequence - m_Highest;
+			if (diff > 0) {
+				m_Seen = (diff < WINDOW) ? ((m_Seen << diff) | 1) : 1;
+				m_Highest = sequence;
+				// Any notes skipped over count as lost until they turn up
+				m_Lost = m_Lost + (diff - 1);
+			} else if (diff > -WINDOW) {
+				long bit = 1L << -diff;
+				if ((m_Seen & bit) != 0) {
+					m_Duplicates++;
+					return;
+				}
+				m_Seen = m_Seen | bit;
+				m_Lost = m_Lost - 1;
+				m_Reordered++;
+			} else {
+				m_Late++;
+				return;
+			}
+		}
+
+		transit(p_Now - sendNanos);
+		m_Notes++;
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug("Note " + note + ", velocity " + velocity + ", sequence " + sequence);
+		}
+	}
+
+
+	private void transit(long p_Transit) {
+		if (m_HaveTransit) {
+			m_Jitter = m_Jitter + (Math.abs(p_Transit - m_LastTransit) - m_Jitter) / 16;
+			m_JitterNanos = (long)m_Jitter;
+		}
+		m_HaveTransit = true;
+		m_LastTransit = p_Transit;
+		m_MinTransit = Math.min(m_MinTransit, p_Transit);
+		m_MaxTransit = Math.max(m_MaxTransit, p_Transit);
+		m_SpreadNanos = m_MaxTransit - m_MinTransit;
+	}
+
+
+	public long getNotes() {
+		return m_Notes;
+	}
+
+	public long getLost() {
+		return m_Lost;
+	}
+
+	public long getReordered() {
+		return m_Reordered;
+	}
+
+	public long getDuplicates() {
+		return m_Duplicates;
+	}
+
+	public long getLate() {
+		return m_Late;
+	}
+
+	public String toString() {
+		return m_Notes + " notes, " + m_Lost + " lost, " + m_Reordered + " reordered, " + m_Duplicates + " duplicates, " +
+				m_Late + " late, " + m_Invalid + " invalid, jitter " + (m_JitterNanos / 1000) + "us, spread " + (m_SpreadNanos / 1000) + "us";
+	}
+
+
+	public static void main(String[] args) throws Exception {
+		UdpReceiver receiver = new UdpReceiver(Integer.getInteger("udpPort", UdpAudioGenerator.DEFAULT_PORT));
+		receiver.start();
+		long reportEvery = Integer.getInteger("udpReportSeconds", 5) * 1000L;
+		while (true) {
+			Thread.sleep(reportEvery);
+			LOGGER.info(receiver.toString());
+		}
+	}
+}
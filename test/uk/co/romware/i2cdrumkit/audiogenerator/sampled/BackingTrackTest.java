@@ -0,0 +1,83 @@
+/**********************************************************************************************************/
+/*                                                                                                        */
+/* This file contains a test of how the backing track keeps time with the drums through an underrun.      */
+/* The ring is filled by the test rather than from a file, so the underrun happens exactly when wanted.   */
+/* It needs nothing but the application's classes, and throws an AssertionError if the test fails.        */
+/*                                                                                                        */
+/* Usage: javac -cp <classes> -d <test classes> BackingTrackTest.java                                     */
+/*        java -cp <classes>:<test classes> \                                                             */
+/*          uk.co.romware.i2cdrumkit.audiogenerator.sampled.BackingTrackTest                              */
+/*                                                                                                        */
+/* Use at your own risk                                                                                   */
+/*                                                                                                        */
+/**********************************************************************************************************/
+package uk.co.romware.i2cdrumkit.audiogenerator.sampled;
+
+import javax.sound.sampled.AudioFormat;
+
+public class BackingTrackTest {
+
+	private final static AudioFormat FORMAT = new AudioFormat(44100, 16, 2, true, false);
+	private final static int FRAME_SIZE = 4;
+
+	// The value of every sample in the part of the track that plays before the underrun, the part that
+	// should have played during it, and the part after it
+	private final static int BEFORE = 1000;
+	private final static int MISSED = -2000;
+	private final static int AFTER = 3000;
+
+	public static void main(String[] args) {
+		BackingTrack track = new BackingTrack(FORMAT, 1000);
+
+		// 1000 frames are in the ring, but the mixer asks for 2000, so the last 1000 are an underrun
+		track.write(frames(1000, BEFORE), 1000 * FRAME_SIZE);
+		int [] mix = new int [2000 * 2];
+		track.mixInto(mix, 0, mix.length);
+		check(mix, 0, 1000 * 2, BEFORE, "before the underrun");
+		check(mix, 1000 * 2, 1000 * 2, 0, "during the underrun");
+		check(track.getUnderruns() == 1, "one underrun, not " + track.getUnderruns());
+		check(track.getPlayedMillis() == (2000 * 1000) / 44100, "played for " + track.getPlayedMillis() + "ms");
+
+		// The disk catches up.  The 1000 frames that were missing arrive late and must be skipped, so
+		// that the next period plays what comes after them
+		byte [] late = new byte [1500 * FRAME_SIZE];
+		System.arraycopy(frames(1000, MISSED), 0, late, 0, 1000 * FRAME_SIZE);
+		System.arraycopy(frames(500, AFTER), 0, late, 1000 * FRAME_SIZE, 500 * FRAME_SIZE);
+		track.write(late, late.length);
+		check(track.getBufferedMillis() == (500 * 1000) / 44100, "buffered " + track.getBufferedMillis() + "ms");
+
+		mix = new int [500 * 2];
+		track.mixInto(mix, 0, mix.length);
+		check(mix, 0, mix.length, AFTER, "after the underrun");
+		check(track.getUnderruns() == 1, "still one underrun, not " + track.getUnderruns());
+		check(track.getBufferedMillis() == 0, "nothing left buffered");
+
+		System.out.println("BackingTrackTest passed");
+	}
+
+
+	private static byte [] frames(int p_Frames, int p_Sample) {
+		byte [] data = new byte [p_Frames * FRAME_SIZE];
+		for (int sample=0; sample<p_Frames * 2; sample++) {
+			Pcm16.putSample(data, sample * 2, p_Sample, FORMAT.isBigEndian());
+		}
+		return data;
+	}
+
+
+	// Checks that p_Samples samples of the mix from p_Position are p_Sample at the track's volume
+	private static void check(int [] p_Mix, int p_Position, int p_Samples, int p_Sample, String p_What) {
+		int gain = (int)(((long)VelocityCurve.UNITY * Integer.getInteger("backingTrackVolume", 70)) / 100);
+		int expected = (p_Sample * gain) >> VelocityCurve.UNITY_SHIFT;
+		for (int sample=p_Position; sample<p_Position + p_Samples; sample++) {
+			check(p_Mix[sample] == expected, "sample " + sample + " " + p_What + " is " + p_Mix[sample] + ", not " + expected);
+		}
+	}
+
+
+	private static void check(boolean p_Passed, String p_What) {
+		if (!p_Passed) {
+			throw new AssertionError(p_What);
+		}
+	}
+}